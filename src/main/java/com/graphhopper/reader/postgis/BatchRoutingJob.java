@@ -0,0 +1,129 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.GHRequest;
+import com.graphhopper.GHResponse;
+import com.graphhopper.GraphHopper;
+import com.graphhopper.ResponsePath;
+import com.graphhopper.util.PointList;
+import org.opengis.feature.simple.SimpleFeature;
+
+import java.util.Map;
+
+/**
+ * Routes origin/destination pairs read from a PostGIS table or view and writes the results into another table.
+ * <p>
+ * The pairs are read from <code>postgis.batch_source</code>, which needs the columns
+ * <code>id, from_lat, from_lon, to_lat, to_lon</code>. The batches are routed on a thread pool sharing the loaded
+ * graph and written into <code>postgis.batch_target</code>, see the README for its columns.
+ */
+public class BatchRoutingJob extends PostgisBatchJob {
+
+    private final GraphHopper hopper;
+    private final String profile;
+    private final boolean writeGeometry;
+
+    public BatchRoutingJob(GraphHopperPostgis hopper) {
+        this(hopper, hopper.getPostgisParams());
+    }
+
+    BatchRoutingJob(GraphHopper hopper, Map<String, Object> postgisParams) {
+        super(postgisParams, Utils.getString(postgisParams, "batch_source", ""), Utils.getString(postgisParams, "batch_target", ""));
+        this.hopper = hopper;
+        this.profile = Utils.getString(postgisParams, "batch_profile", "");
+        this.writeGeometry = Utils.getBool(postgisParams, "batch_geometry", false);
+        if (hopper.getProfile(profile) == null)
+            throw new IllegalArgumentException("Unknown profile for postgis.batch_profile: " + profile);
+    }
+
+    @Override
+    protected String[] getSourceColumns() {
+        return new String[]{"id", "from_lat", "from_lon", "to_lat", "to_lon"};
+    }
+
+    @Override
+    protected String[] getTargetColumns() {
+        return writeGeometry
+                ? new String[]{"id", "distance", "time", "geom", "error"}
+                : new String[]{"id", "distance", "time", "error"};
+    }
+
+    /**
+     * Appends the route of the pair. A failing pair, e.g. with a NULL coordinate, is written as a row with the error
+     * instead of aborting the job.
+     */
+    @Override
+    protected boolean process(SimpleFeature pair, StringBuilder rows) {
+        int start = rows.length();
+        try {
+            return route(pair, rows);
+        } catch (Exception e) {
+            // remove the partially written row
+            rows.setLength(start);
+            appendError(rows, pair, e.toString());
+            return false;
+        }
+    }
+
+    private boolean route(SimpleFeature pair, StringBuilder rows) {
+        GHRequest request = new GHRequest(
+                ((Number) pair.getAttribute("from_lat")).doubleValue(), ((Number) pair.getAttribute("from_lon")).doubleValue(),
+                ((Number) pair.getAttribute("to_lat")).doubleValue(), ((Number) pair.getAttribute("to_lon")).doubleValue())
+                .setProfile(profile);
+        GHResponse response = hopper.route(request);
+        if (response.hasErrors()) {
+            appendError(rows, pair, response.getErrors().get(0).getMessage());
+            return false;
+        }
+        ResponsePath path = response.getBest();
+        appendCopyValue(rows, pair.getAttribute("id")).append('\t');
+        rows.append(path.getDistance()).append('\t').append(path.getTime()).append('\t');
+        if (writeGeometry)
+            appendCopyValue(rows, toEwkt(path.getPoints())).append('\t');
+        rows.append("\\N\n");
+        return true;
+    }
+
+    private void appendError(StringBuilder rows, SimpleFeature pair, String error) {
+        appendCopyValue(rows, pair.getAttribute("id")).append('\t');
+        rows.append("\\N\t\\N\t");
+        if (writeGeometry)
+            rows.append("\\N\t");
+        appendCopyValue(rows, error).append('\n');
+    }
+
+    /**
+     * @return the points as LineString in EWKT, which PostGIS accepts as input of a geometry column, or null for an
+     * empty route
+     */
+    static String toEwkt(PointList points) {
+        if (points.isEmpty())
+            return null;
+        StringBuilder sb = new StringBuilder(points.size() * 24 + 24).append("SRID=4326;LINESTRING(");
+        for (int i = 0; i < points.size(); i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(points.getLon(i)).append(' ').append(points.getLat(i));
+        }
+        // a LineString needs at least two points, a route to the same location has only one
+        if (points.size() == 1)
+            sb.append(',').append(points.getLon(0)).append(' ').append(points.getLat(0));
+        return sb.append(')').toString();
+    }
+}
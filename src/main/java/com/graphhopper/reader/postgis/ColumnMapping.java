@@ -0,0 +1,158 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.reader.ReaderWay;
+import com.graphhopper.routing.ev.DecimalEncodedValue;
+import com.graphhopper.routing.ev.EncodedValue;
+import com.graphhopper.routing.ev.IntEncodedValue;
+import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.storage.IntsRef;
+import org.opengis.feature.simple.SimpleFeature;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps additional columns of the ways table to the graph. The mapping is configured as a comma separated list of
+ * <code>column:target</code> pairs, e.g. <code>hsi:tci,amble_rating:amb_rat</code>. Only the listed columns are
+ * fetched from the database.
+ * <p>
+ * If the EncodingManager contains an IntEncodedValue or DecimalEncodedValue with the target name, the numeric column
+ * value is written directly into the edge flags. Otherwise the raw value is set as tag of the ReaderWay, so that a
+ * FlagEncoder can still read it.
+ */
+public class ColumnMapping {
+
+    /**
+     * The columns of the import tables that were mapped before the mapping was configurable.
+     */
+    public static final String DEFAULT_MAPPING = "hsi:tci,amble_rating:amb_rat,amble_contra_rating:amb_con_rat";
+
+    private final String[] columns;
+    private final String[] targets;
+    // resolved encoded value per column, null if the value should be set as tag
+    private final EncodedValue[] encodedValues;
+    private final double[] values;
+    private final boolean[] present;
+
+    private ColumnMapping(String[] columns, String[] targets) {
+        this.columns = columns;
+        this.targets = targets;
+        this.encodedValues = new EncodedValue[columns.length];
+        this.values = new double[columns.length];
+        this.present = new boolean[columns.length];
+    }
+
+    /**
+     * Parses a mapping like <code>hsi:tci,amble_rating</code>. If no target is specified the column name is used.
+     */
+    public static ColumnMapping parse(String mapping) {
+        List<String> columns = new ArrayList<>();
+        List<String> targets = new ArrayList<>();
+        if (mapping != null) {
+            for (String entry : mapping.split(",")) {
+                entry = entry.trim();
+                if (entry.isEmpty())
+                    continue;
+
+                int index = entry.indexOf(':');
+                String column = index < 0 ? entry : entry.substring(0, index).trim();
+                String target = index < 0 ? entry : entry.substring(index + 1).trim();
+                if (column.isEmpty() || target.isEmpty())
+                    throw new IllegalArgumentException("Invalid column mapping '" + entry + "' in " + mapping);
+                columns.add(column);
+                targets.add(target);
+            }
+        }
+        return new ColumnMapping(columns.toArray(new String[0]), targets.toArray(new String[0]));
+    }
+
+    /**
+     * Looks up the encoded values of the targets. Has to be called before the first way is read.
+     */
+    public ColumnMapping init(EncodingManager encodingManager) {
+        for (int i = 0; i < targets.length; i++) {
+            encodedValues[i] = null;
+            if (!encodingManager.hasEncodedValue(targets[i]))
+                continue;
+
+            EncodedValue ev = encodingManager.getEncodedValue(targets[i], EncodedValue.class);
+            if (!(ev instanceof IntEncodedValue) && !(ev instanceof DecimalEncodedValue))
+                throw new IllegalArgumentException("Column " + columns[i] + " is mapped to " + targets[i]
+                        + " which is neither an IntEncodedValue nor a DecimalEncodedValue");
+            encodedValues[i] = ev;
+        }
+        return this;
+    }
+
+    public String[] getColumns() {
+        return columns;
+    }
+
+    public boolean isEmpty() {
+        return columns.length == 0;
+    }
+
+    /**
+     * Reads the mapped columns of the specified feature. Columns mapped to an encoded value are kept as primitive
+     * values until {@link #applyTo(IntsRef)} is called, all other columns are set as tag of the way.
+     */
+    public void read(SimpleFeature feature, ReaderWay way) {
+        for (int i = 0; i < columns.length; i++) {
+            Object value = feature.getAttribute(columns[i]);
+            present[i] = false;
+            if (value == null)
+                continue;
+
+            if (encodedValues[i] == null) {
+                way.setTag(targets[i], value);
+            } else if (value instanceof Number) {
+                values[i] = ((Number) value).doubleValue();
+                present[i] = true;
+            } else {
+                throw new IllegalArgumentException("Column " + columns[i] + " of way " + way.getId()
+                        + " has to be numeric but was " + value.getClass().getSimpleName());
+            }
+        }
+    }
+
+    /**
+     * Writes the values of the last read feature into the specified edge flags.
+     */
+    public void applyTo(IntsRef edgeFlags) {
+        for (int i = 0; i < columns.length; i++) {
+            if (!present[i])
+                continue;
+
+            EncodedValue ev = encodedValues[i];
+            if (ev instanceof DecimalEncodedValue) {
+                DecimalEncodedValue decimalEnc = (DecimalEncodedValue) ev;
+                decimalEnc.setDecimal(false, edgeFlags, values[i]);
+                if (ev.isStoreTwoDirections())
+                    decimalEnc.setDecimal(true, edgeFlags, values[i]);
+            } else {
+                IntEncodedValue intEnc = (IntEncodedValue) ev;
+                int intValue = (int) Math.round(values[i]);
+                intEnc.setInt(false, edgeFlags, intValue);
+                if (ev.isStoreTwoDirections())
+                    intEnc.setInt(true, edgeFlags, intValue);
+            }
+        }
+    }
+}
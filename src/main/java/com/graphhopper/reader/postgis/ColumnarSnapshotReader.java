@@ -0,0 +1,450 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import org.geotools.data.postgis.HStore;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static com.graphhopper.reader.postgis.ColumnarSnapshotWriter.*;
+
+/**
+ * Reads a snapshot file written by {@link ColumnarSnapshotWriter}. The blocks are read and decoded one after another,
+ * the elements are returned as features with the same columns as the import tables, ordered by their id.
+ */
+public class ColumnarSnapshotReader implements Closeable {
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final String[] customColumns;
+    // section, offset, compressed length, length and element count of every block
+    private final List<long[]> blocks = new ArrayList<>();
+    private final BlockCache blockCache;
+    // identifies the version of the file in the block cache, null if the cache cannot be used
+    private final Object version;
+
+    public ColumnarSnapshotReader(File file) throws IOException {
+        this(file, null);
+    }
+
+    /**
+     * @param blockCache the inflated blocks shared with other readers of the same file or null
+     */
+    public ColumnarSnapshotReader(File file, BlockCache blockCache) throws IOException {
+        this.file = file;
+        Object versionBefore = blockCache == null ? null : getVersion(file);
+        this.randomAccessFile = new RandomAccessFile(file, "r");
+        this.channel = randomAccessFile.getChannel();
+        // if the file was exported again while it was opened it is unknown which version is read
+        this.version = versionBefore != null && versionBefore.equals(getVersion(file)) ? versionBefore : null;
+        this.blockCache = version == null ? null : blockCache;
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            randomAccessFile.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IllegalArgumentException(file + " is not a snapshot file");
+
+            randomAccessFile.seek(randomAccessFile.length() - 8);
+            randomAccessFile.seek(randomAccessFile.readLong());
+            customColumns = new String[randomAccessFile.readInt()];
+            for (int i = 0; i < customColumns.length; i++) {
+                customColumns[i] = randomAccessFile.readUTF();
+            }
+            int blockCount = randomAccessFile.readInt();
+            for (int i = 0; i < blockCount; i++) {
+                blocks.add(new long[]{randomAccessFile.readByte(), randomAccessFile.readLong(),
+                        randomAccessFile.readInt(), randomAccessFile.readInt(), randomAccessFile.readInt()});
+            }
+        } catch (IOException | RuntimeException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * A file that is exported again is moved to the same path, so the blocks are cached by the file key (the inode
+     * on Unix), the modification time and the size of the file instead of its path.
+     */
+    private static Object getVersion(File file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        return Arrays.asList(attributes.fileKey(), attributes.lastModifiedTime().toMillis(), attributes.size());
+    }
+
+    public String[] getCustomColumns() {
+        return customColumns;
+    }
+
+    /**
+     * @return the number of elements of the specified section
+     */
+    public long getCount(int section) {
+        long count = 0;
+        for (long[] block : blocks) {
+            if (block[0] == section)
+                count += block[4];
+        }
+        return count;
+    }
+
+    /**
+     * Returns the elements of the section as features. The features have all columns of the section, the specified
+     * columns are only checked to exist.
+     */
+    public FeatureIterator<SimpleFeature> read(int section, String... columns) {
+        SimpleFeatureTypeBuilder typeBuilder = new SimpleFeatureTypeBuilder();
+        typeBuilder.setName(file.getName() + "_" + section);
+        if (section == NODES) {
+            typeBuilder.add("osm_id", Long.class);
+            typeBuilder.add("lat", Double.class);
+            typeBuilder.add("lon", Double.class);
+        } else if (section == WAYS) {
+            typeBuilder.add("osm_id", Long.class);
+            typeBuilder.add("nodes", Long[].class);
+            typeBuilder.add("tags", HStore.class);
+            for (String column : customColumns) {
+                typeBuilder.add(column, Object.class);
+            }
+        } else if (section == TAGGED_NODES) {
+            typeBuilder.add("osm_id", Long.class);
+            typeBuilder.add("tags", HStore.class);
+        } else {
+            typeBuilder.add("id", Long.class);
+            typeBuilder.add("tags", HStore.class);
+            typeBuilder.add(RelationMembers.HSTORE_COLUMN, HStore.class);
+            typeBuilder.add(RelationMembers.TYPES_COLUMN, String[].class);
+            typeBuilder.add(RelationMembers.REFS_COLUMN, Long[].class);
+            typeBuilder.add(RelationMembers.ROLES_COLUMN, String[].class);
+        }
+        SimpleFeatureType type = typeBuilder.buildFeatureType();
+        for (String column : columns) {
+            if (type.getDescriptor(column) == null)
+                throw new IllegalArgumentException("The snapshot " + file + " does not contain the column " + column
+                        + ", export it again");
+        }
+        return new SectionIterator(section, type);
+    }
+
+    @Override
+    public void close() throws IOException {
+        randomAccessFile.close();
+    }
+
+    /**
+     * Keeps the last inflated blocks of a snapshot file, so that readers of the same file that read about the same
+     * part, like the imports of GraphHopperPostgis.importOrLoadAll, inflate every block only once. A reader that is
+     * too far behind the others inflates the block again. The blocks are keyed by the version of the file and their
+     * offset, so readers of a file that was exported in the meantime do not share blocks with readers of the previous
+     * file. Thread safe, the cached blocks must not be modified.
+     */
+    public static class BlockCache {
+        private final Map<BlockKey, byte[]> blocks;
+
+        public BlockCache(int maxBlocks) {
+            this.blocks = new LinkedHashMap<BlockKey, byte[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<BlockKey, byte[]> eldest) {
+                    return size() > maxBlocks;
+                }
+            };
+        }
+
+        synchronized byte[] get(Object version, long offset) {
+            return blocks.get(new BlockKey(version, offset));
+        }
+
+        synchronized void put(Object version, long offset, byte[] data) {
+            blocks.put(new BlockKey(version, offset), data);
+        }
+    }
+
+    private static final class BlockKey {
+        private final Object version;
+        private final long offset;
+
+        BlockKey(Object version, long offset) {
+            this.version = version;
+            this.offset = offset;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * version.hashCode() + Long.hashCode(offset);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof BlockKey))
+                return false;
+            BlockKey other = (BlockKey) obj;
+            return offset == other.offset && version.equals(other.version);
+        }
+    }
+
+    private class SectionIterator implements FeatureIterator<SimpleFeature> {
+        private final int section;
+        private final SimpleFeatureBuilder builder;
+        private final Inflater inflater = new Inflater();
+        private int blockIndex = -1;
+        private byte[] compressed = new byte[0];
+        // the inflated block, either the buffer of this iterator or a block of the cache
+        private byte[] buffer = new byte[0];
+        private byte[] data;
+        private int position;
+
+        // the decoded columns of the current block
+        private int count;
+        private int index;
+        private long[] ids = new long[BLOCK_SIZE];
+        private final double[] lats = new double[BLOCK_SIZE];
+        private final double[] lons = new double[BLOCK_SIZE];
+        private String[] strings = new String[0];
+        private HStore[] tags = new HStore[BLOCK_SIZE];
+        private Long[][] nodes = new Long[BLOCK_SIZE][];
+        private HStore[] members = new HStore[BLOCK_SIZE];
+        private String[][] memberTypes = new String[BLOCK_SIZE][];
+        private Long[][] memberRefs = new Long[BLOCK_SIZE][];
+        private String[][] memberRoles = new String[BLOCK_SIZE][];
+        private final Object[][] customValues;
+
+        SectionIterator(int section, SimpleFeatureType type) {
+            this.section = section;
+            this.builder = new SimpleFeatureBuilder(type);
+            this.customValues = new Object[customColumns.length][BLOCK_SIZE];
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (index >= count) {
+                if (!nextBlock())
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        public SimpleFeature next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            int i = index++;
+            builder.add(ids[i]);
+            if (section == NODES) {
+                builder.add(lats[i]);
+                builder.add(lons[i]);
+            } else if (section == WAYS) {
+                builder.add(nodes[i]);
+                builder.add(tags[i]);
+                for (Object[] values : customValues) {
+                    builder.add(values[i]);
+                }
+            } else if (section == TAGGED_NODES) {
+                builder.add(tags[i]);
+            } else {
+                builder.add(tags[i]);
+                builder.add(members[i]);
+                builder.add(memberTypes[i]);
+                builder.add(memberRefs[i]);
+                builder.add(memberRoles[i]);
+            }
+            return builder.buildFeature(section + "." + ids[i]);
+        }
+
+        private boolean nextBlock() {
+            do {
+                blockIndex++;
+                if (blockIndex >= blocks.size())
+                    return false;
+            } while (blocks.get(blockIndex)[0] != section);
+
+            long[] block = blocks.get(blockIndex);
+            int compressedLength = (int) block[2];
+            int length = (int) block[3];
+            if (blockCache != null) {
+                data = blockCache.get(version, block[1]);
+                if (data != null) {
+                    decode();
+                    return true;
+                }
+                // the cached blocks are shared, so they cannot reuse the buffer
+                data = new byte[length];
+            } else {
+                if (buffer.length < length)
+                    buffer = new byte[length];
+                data = buffer;
+            }
+            if (compressed.length < compressedLength)
+                compressed = new byte[compressedLength];
+            try {
+                // a positional read, as a mapping per block would only be released by the garbage collector
+                ByteBuffer input = ByteBuffer.wrap(compressed, 0, compressedLength);
+                while (input.hasRemaining()) {
+                    if (channel.read(input, block[1] + input.position()) < 0)
+                        throw new EOFException("Block " + blockIndex + " of " + file + " is truncated");
+                }
+                inflater.reset();
+                inflater.setInput(compressed, 0, compressedLength);
+                if (inflater.inflate(data, 0, length) != length)
+                    throw new IllegalStateException("Block " + blockIndex + " of " + file + " is corrupt");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Block " + blockIndex + " of " + file + " is corrupt", e);
+            }
+            if (blockCache != null)
+                blockCache.put(version, block[1], data);
+            decode();
+            return true;
+        }
+
+        private void decode() {
+            position = 0;
+            index = 0;
+            count = (int) readUnsigned();
+            long id = 0;
+            for (int i = 0; i < count; i++) {
+                id += readSigned();
+                ids[i] = id;
+            }
+
+            if (section == NODES) {
+                long lat = 0, lon = 0;
+                for (int i = 0; i < count; i++) {
+                    lat += readSigned();
+                    lats[i] = lat / COORDINATE_FACTOR;
+                }
+                for (int i = 0; i < count; i++) {
+                    lon += readSigned();
+                    lons[i] = lon / COORDINATE_FACTOR;
+                }
+                return;
+            }
+
+            strings = new String[(int) readUnsigned()];
+            for (int i = 0; i < strings.length; i++) {
+                int length = (int) readUnsigned();
+                strings[i] = new String(data, position, length, StandardCharsets.UTF_8);
+                position += length;
+            }
+            for (int i = 0; i < count; i++) {
+                int tagCount = (int) readUnsigned();
+                Map<String, String> map = new HashMap<>(tagCount * 2);
+                for (int t = 0; t < tagCount; t++) {
+                    String key = strings[(int) readUnsigned()];
+                    map.put(key, readNullableString());
+                }
+                tags[i] = new HStore(map);
+            }
+
+            long ref = 0;
+            if (section == WAYS) {
+                for (int i = 0; i < count; i++) {
+                    Long[] wayNodes = new Long[(int) readUnsigned()];
+                    for (int n = 0; n < wayNodes.length; n++) {
+                        ref += readSigned();
+                        wayNodes[n] = ref;
+                    }
+                    nodes[i] = wayNodes;
+                }
+                for (Object[] values : customValues) {
+                    for (int i = 0; i < count; i++) {
+                        values[i] = readValue();
+                    }
+                }
+            } else if (section == RELATIONS) {
+                for (int i = 0; i < count; i++) {
+                    int memberCount = (int) readUnsigned();
+                    Map<String, String> map = new HashMap<>(memberCount * 2);
+                    String[] types = new String[memberCount];
+                    Long[] refs = new Long[memberCount];
+                    String[] roles = new String[memberCount];
+                    for (int m = 0; m < memberCount; m++) {
+                        types[m] = String.valueOf(MEMBER_TYPES.charAt(data[position++]));
+                        ref += readSigned();
+                        refs[m] = ref;
+                        roles[m] = readNullableString();
+                        map.put(types[m] + ref, roles[m]);
+                    }
+                    members[i] = new HStore(map);
+                    memberTypes[i] = types;
+                    memberRefs[i] = refs;
+                    memberRoles[i] = roles;
+                }
+            }
+        }
+
+        private Object readValue() {
+            int type = data[position++];
+            switch (type) {
+                case VALUE_NULL:
+                    return null;
+                case VALUE_LONG:
+                    return readSigned();
+                case VALUE_DOUBLE:
+                    return Double.longBitsToDouble(readUnsigned());
+                case VALUE_STRING:
+                    return strings[(int) readUnsigned()];
+                default:
+                    throw new IllegalStateException("Unknown value type " + type + " in " + file);
+            }
+        }
+
+        private String readNullableString() {
+            int index = (int) readUnsigned();
+            return index == NULL_STRING ? null : strings[index];
+        }
+
+        private long readUnsigned() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = data[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+        }
+
+        private long readSigned() {
+            long value = readUnsigned();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        @Override
+        public void close() {
+            inflater.end();
+        }
+    }
+}
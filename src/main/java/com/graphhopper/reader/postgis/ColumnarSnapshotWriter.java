@@ -0,0 +1,325 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the nodes, ways and relations of the import tables into a compressed columnar snapshot file, which can be
+ * read by {@link ColumnarSnapshotReader} instead of the database.
+ * <p>
+ * The elements of a table are stored in blocks of up to BLOCK_SIZE elements. Within a block every column is stored
+ * separately: ids and node refs as varint encoded differences, coordinates as differences of fixed point numbers and
+ * tags, custom values and member roles as indexes into a string table of the block, NULL_STRING for NULL values of
+ * tags and roles. Every block is deflated. An index
+ * of the blocks and the names of the custom columns are stored at the end of the file. The elements have to be added
+ * ordered by their id, all nodes first, then all ways, all relations and finally the tags of the tagged nodes.
+ */
+public class ColumnarSnapshotWriter implements Closeable {
+
+    static final byte[] MAGIC = "GHSNAP01".getBytes(StandardCharsets.US_ASCII);
+    static final int NODES = 0;
+    static final int WAYS = 1;
+    static final int RELATIONS = 2;
+    static final int TAGGED_NODES = 3;
+    static final int BLOCK_SIZE = 16_384;
+    static final String MEMBER_TYPES = RelationMembers.TYPE_DECODE;
+    static final double COORDINATE_FACTOR = 1e7;
+    // the type of a custom value
+    static final int VALUE_NULL = 0;
+    static final int VALUE_LONG = 1;
+    static final int VALUE_DOUBLE = 2;
+    static final int VALUE_STRING = 3;
+    // the string index of the NULL values of tags and roles, which are valid in an hstore
+    static final int NULL_STRING = Integer.MAX_VALUE;
+
+    private final OutputStream out;
+    private final String[] customColumns;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final List<long[]> blockIndex = new ArrayList<>();
+    private long position;
+    private int section = NODES;
+
+    // the columns of the current block
+    private int count;
+    private final ColumnBuffer ids = new ColumnBuffer();
+    private final ColumnBuffer lats = new ColumnBuffer();
+    private final ColumnBuffer lons = new ColumnBuffer();
+    private final ColumnBuffer refs = new ColumnBuffer();
+    private final ColumnBuffer tags = new ColumnBuffer();
+    private final ColumnBuffer members = new ColumnBuffer();
+    private final ColumnBuffer[] customValues;
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final ColumnBuffer stringTable = new ColumnBuffer();
+    private long previousId, previousRef;
+    private int previousLat, previousLon;
+    private byte[] compressed = new byte[1 << 16];
+
+    /**
+     * @param customColumns the names of the additional columns of the ways
+     */
+    public ColumnarSnapshotWriter(File file, String[] customColumns) throws IOException {
+        this.out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+        this.customColumns = customColumns;
+        this.customValues = new ColumnBuffer[customColumns.length];
+        for (int i = 0; i < customColumns.length; i++) {
+            customValues[i] = new ColumnBuffer();
+        }
+        out.write(MAGIC);
+        position = MAGIC.length;
+    }
+
+    public void addNode(long id, double lat, double lon) throws IOException {
+        startElement(NODES, id);
+        int fixedLat = (int) Math.round(lat * COORDINATE_FACTOR);
+        int fixedLon = (int) Math.round(lon * COORDINATE_FACTOR);
+        lats.writeSigned(fixedLat - previousLat);
+        lons.writeSigned(fixedLon - previousLon);
+        previousLat = fixedLat;
+        previousLon = fixedLon;
+        finishElement();
+    }
+
+    /**
+     * @param values the values of the custom columns, Numbers or Strings
+     */
+    public void addWay(long id, long[] nodes, Map<String, String> wayTags, Object[] values) throws IOException {
+        startElement(WAYS, id);
+        refs.writeUnsigned(nodes.length);
+        for (long ref : nodes) {
+            refs.writeSigned(ref - previousRef);
+            previousRef = ref;
+        }
+        writeTags(wayTags);
+        for (int i = 0; i < customColumns.length; i++) {
+            Object value = values[i];
+            if (value == null) {
+                customValues[i].write(VALUE_NULL);
+            } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                customValues[i].write(VALUE_LONG);
+                customValues[i].writeSigned(((Number) value).longValue());
+            } else if (value instanceof Number) {
+                customValues[i].write(VALUE_DOUBLE);
+                customValues[i].writeUnsigned(Double.doubleToRawLongBits(((Number) value).doubleValue()));
+            } else {
+                customValues[i].write(VALUE_STRING);
+                customValues[i].writeUnsigned(stringIndex(value.toString()));
+            }
+        }
+        finishElement();
+    }
+
+    /**
+     * @param relationMembers the members like in the members column, i.e. the type and id of the member mapped to
+     *                        its role, e.g. "w123" to "from"
+     */
+    public void addRelation(long id, Map<String, String> relationTags, Map<String, String> relationMembers) throws IOException {
+        addRelation(id, relationTags, new RelationMembers().readHStore(relationMembers));
+    }
+
+    /**
+     * Stores the members in their order, including members that occur more than once.
+     */
+    public void addRelation(long id, Map<String, String> relationTags, RelationMembers relationMembers) throws IOException {
+        startElement(RELATIONS, id);
+        writeTags(relationTags);
+        members.writeUnsigned(relationMembers.size());
+        for (int i = 0; i < relationMembers.size(); i++) {
+            long ref = relationMembers.getRef(i);
+            members.write(relationMembers.getType(i));
+            members.writeSigned(ref - previousRef);
+            members.writeUnsigned(nullableStringIndex(relationMembers.getRole(i)));
+            previousRef = ref;
+        }
+        finishElement();
+    }
+
+    /**
+     * Stores the tags of a node, e.g. of a barrier. Its coordinates are added with addNode.
+     */
+    public void addTaggedNode(long id, Map<String, String> nodeTags) throws IOException {
+        startElement(TAGGED_NODES, id);
+        writeTags(nodeTags);
+        finishElement();
+    }
+
+    private void writeTags(Map<String, String> elementTags) {
+        tags.writeUnsigned(elementTags == null ? 0 : elementTags.size());
+        if (elementTags == null)
+            return;
+        for (Map.Entry<String, String> tag : elementTags.entrySet()) {
+            tags.writeUnsigned(stringIndex(tag.getKey()));
+            tags.writeUnsigned(nullableStringIndex(tag.getValue()));
+        }
+    }
+
+    private int nullableStringIndex(String string) {
+        return string == null ? NULL_STRING : stringIndex(string);
+    }
+
+    private int stringIndex(String string) {
+        Integer index = strings.get(string);
+        if (index == null) {
+            index = strings.size();
+            strings.put(string, index);
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            stringTable.writeUnsigned(bytes.length);
+            stringTable.write(bytes, 0, bytes.length);
+        }
+        return index;
+    }
+
+    private void startElement(int elementSection, long id) throws IOException {
+        if (elementSection < section)
+            throw new IllegalStateException("Add all nodes, then all ways, all relations and then all tagged nodes");
+        if (elementSection != section) {
+            flushBlock();
+            section = elementSection;
+        }
+        ids.writeSigned(id - previousId);
+        previousId = id;
+    }
+
+    private void finishElement() throws IOException {
+        count++;
+        if (count == BLOCK_SIZE)
+            flushBlock();
+    }
+
+    private void flushBlock() throws IOException {
+        if (count == 0)
+            return;
+
+        ColumnBuffer block = new ColumnBuffer();
+        block.writeUnsigned(count);
+        block.append(ids);
+        if (section == NODES) {
+            block.append(lats);
+            block.append(lons);
+        } else {
+            block.writeUnsigned(strings.size());
+            block.append(stringTable);
+            block.append(tags);
+            if (section == WAYS) {
+                block.append(refs);
+                for (ColumnBuffer values : customValues) {
+                    block.append(values);
+                }
+            } else if (section == RELATIONS) {
+                block.append(members);
+            }
+        }
+
+        deflater.reset();
+        deflater.setInput(block.buffer, 0, block.size);
+        deflater.finish();
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == compressed.length)
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        }
+        out.write(compressed, 0, compressedLength);
+        blockIndex.add(new long[]{section, position, compressedLength, block.size, count});
+        position += compressedLength;
+
+        count = 0;
+        previousId = previousRef = previousLat = previousLon = 0;
+        strings.clear();
+        for (ColumnBuffer buffer : Arrays.asList(ids, lats, lons, refs, tags, members, stringTable)) {
+            buffer.size = 0;
+        }
+        for (ColumnBuffer values : customValues) {
+            values.size = 0;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBlock();
+            DataOutputStream footer = new DataOutputStream(out);
+            footer.writeInt(customColumns.length);
+            for (String column : customColumns) {
+                footer.writeUTF(column);
+            }
+            footer.writeInt(blockIndex.size());
+            for (long[] block : blockIndex) {
+                footer.writeByte((int) block[0]);
+                footer.writeLong(block[1]);
+                footer.writeInt((int) block[2]);
+                footer.writeInt((int) block[3]);
+                footer.writeInt((int) block[4]);
+            }
+            // the footer starts after the last block
+            footer.writeLong(position);
+            footer.flush();
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    /**
+     * A growing byte array with varint encoding. Signed values are zig zag encoded.
+     */
+    static class ColumnBuffer {
+        byte[] buffer = new byte[1 << 12];
+        int size;
+
+        void write(int b) {
+            ensureCapacity(size + 1);
+            buffer[size++] = (byte) b;
+        }
+
+        void write(byte[] bytes, int offset, int length) {
+            ensureCapacity(size + length);
+            System.arraycopy(bytes, offset, buffer, size, length);
+            size += length;
+        }
+
+        void writeUnsigned(long value) {
+            ensureCapacity(size + 10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        void writeSigned(long value) {
+            writeUnsigned((value << 1) ^ (value >> 63));
+        }
+
+        void append(ColumnBuffer other) {
+            write(other.buffer, 0, other.size);
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > buffer.length)
+                buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.coll.LongIntMap;
+import com.graphhopper.storage.DAType;
+import com.graphhopper.storage.DataAccess;
+import com.graphhopper.storage.Directory;
+import com.graphhopper.util.Helper;
+
+/**
+ * An open addressing hash map from long to int that stores its entries in a DataAccess. Depending on the DAType the
+ * entries are kept in primitive arrays on the heap (RAM) or in a memory mapped file (MMAP), there is no object per
+ * entry.
+ * <p>
+ * An entry needs 12 bytes, the table is kept at most half full. Not thread safe.
+ */
+public class DataAccessLongIntMap implements LongIntMap {
+
+    private static final int ENTRY_BYTES = 12;
+    private static final double MAX_LOAD = 0.5;
+
+    private final Directory dir;
+    private final String name;
+    private final DAType type;
+    private final int noValue;
+    private DataAccess entries;
+    private int generation = 0;
+    private long capacity;
+    private long size;
+    // the key 0 marks an empty slot, so it is stored separately
+    private boolean hasZeroKey;
+    private int zeroKeyValue;
+
+    /**
+     * @param noValue the value returned by get for keys that are not contained
+     */
+    public DataAccessLongIntMap(Directory dir, String name, DAType type, long expectedSize, int noValue) {
+        this.dir = dir;
+        this.name = name;
+        this.type = type;
+        this.noValue = noValue;
+        this.capacity = capacityFor(expectedSize);
+        this.entries = createEntries(capacity);
+    }
+
+    private static long capacityFor(long expectedSize) {
+        long minCapacity = (long) Math.ceil(Math.max(16, expectedSize) / MAX_LOAD);
+        return Long.highestOneBit(minCapacity - 1) << 1;
+    }
+
+    private DataAccess createEntries(long capacity) {
+        DataAccess da = dir.find(name + "_" + generation++, type);
+        // newly allocated segments are zeroed, i.e. all slots are empty. An existing file would keep its content, the
+        // reader therefore uses a new scratch directory for every import
+        da.create(capacity * ENTRY_BYTES);
+        return da;
+    }
+
+    static long hash(long key) {
+        // finalizer of MurmurHash3, spreads the packed coordinates and ascending OSM ids over the table
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private long getKey(DataAccess da, long slot) {
+        long pointer = slot * ENTRY_BYTES;
+        return ((long) da.getInt(pointer) << 32) | (da.getInt(pointer + 4) & 0xFFFFFFFFL);
+    }
+
+    private void setEntry(DataAccess da, long slot, long key, int value) {
+        long pointer = slot * ENTRY_BYTES;
+        da.setInt(pointer, (int) (key >>> 32));
+        da.setInt(pointer + 4, (int) key);
+        da.setInt(pointer + 8, value);
+    }
+
+    /**
+     * @return the slot of the key or the empty slot where it would be inserted
+     */
+    private long findSlot(DataAccess da, long mask, long key) {
+        long slot = hash(key) & mask;
+        while (true) {
+            long existing = getKey(da, slot);
+            if (existing == key || existing == 0)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    @Override
+    public int put(long key, int value) {
+        if (key == 0) {
+            int old = hasZeroKey ? zeroKeyValue : noValue;
+            hasZeroKey = true;
+            zeroKeyValue = value;
+            return old;
+        }
+
+        long slot = findSlot(entries, capacity - 1, key);
+        if (getKey(entries, slot) == key) {
+            int old = entries.getInt(slot * ENTRY_BYTES + 8);
+            entries.setInt(slot * ENTRY_BYTES + 8, value);
+            return old;
+        }
+
+        if (size + 1 > capacity * MAX_LOAD) {
+            grow();
+            slot = findSlot(entries, capacity - 1, key);
+        }
+        setEntry(entries, slot, key, value);
+        size++;
+        return noValue;
+    }
+
+    @Override
+    public int get(long key) {
+        if (key == 0)
+            return hasZeroKey ? zeroKeyValue : noValue;
+
+        long slot = findSlot(entries, capacity - 1, key);
+        if (getKey(entries, slot) == 0)
+            return noValue;
+        return entries.getInt(slot * ENTRY_BYTES + 8);
+    }
+
+    private void grow() {
+        long newCapacity = capacity * 2;
+        DataAccess newEntries = createEntries(newCapacity);
+        for (long slot = 0; slot < capacity; slot++) {
+            long key = getKey(entries, slot);
+            if (key != 0)
+                setEntry(newEntries, findSlot(newEntries, newCapacity - 1, key), key, entries.getInt(slot * ENTRY_BYTES + 8));
+        }
+        dir.remove(entries);
+        entries = newEntries;
+        capacity = newCapacity;
+    }
+
+    @Override
+    public long getSize() {
+        return size + (hasZeroKey ? 1 : 0);
+    }
+
+    @Override
+    public void optimize() {
+    }
+
+    @Override
+    public int getMemoryUsage() {
+        return (int) (capacity * ENTRY_BYTES / Helper.MB);
+    }
+
+    /**
+     * Releases the storage. The map must not be used afterwards.
+     */
+    public void release() {
+        if (entries != null) {
+            dir.remove(entries);
+            entries = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + type + "), size:" + getSize() + ", capacity:" + capacity;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.reader.ReaderNode;
+import com.graphhopper.reader.ReaderWay;
+import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.storage.IntsRef;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the results of the encoders for the tag combinations of the ways. Road networks have only few distinct
+ * combinations compared to the number of ways, so most ways reuse the accept decision and the edge flags of an earlier
+ * way instead of running all tag parsers again. Both are kept in LRU maps bounded to the specified number of entries.
+ * <p>
+ * The key consists of the tags that can change the encoding plus the relation flags. Names, references and other
+ * descriptive tags and the artificial tags of the reader are not part of the key, otherwise nearly every way would have
+ * its own entry. The tags of the custom columns are part of the key, as tag parsers may read them. Ways whose encoding
+ * depends on more than their tags, e.g. ferries whose speed is derived from <code>estimated_distance</code> and
+ * <code>duration</code>, bypass the cache. Encoders that depend on the location of a way via
+ * <code>estimated_center</code> (spatial rules) or that read one of the ignored tags cannot be used with this cache.
+ * <p>
+ * The node flags of barriers and access restrictions are cached the same way, keyed by the tags of the node.
+ */
+public class EncodingCache {
+
+    // tags that make the encoding depend on the geometry of the way
+    private static final String[] BYPASS_TAGS = {"route", "duration", "estimated_distance", "estimated_center", "duration:seconds"};
+    // tags that are not read by the encoders, or whose value is derived from the geometry of a cacheable way
+    private static final Set<String> IGNORED_KEYS = new HashSet<>(Arrays.asList("name", "alt_name", "old_name",
+            "official_name", "short_name", "loc_name", "reg_name", "int_name", "nat_name", "ref", "int_ref", "nat_ref",
+            "reg_ref", "loc_ref", "old_ref", "note", "description", "fixme", "FIXME", "source", "wikidata", "wikipedia",
+            "estimated_distance", "estimated_center"));
+    private static final String[] IGNORED_PREFIXES = {"name:", "alt_name:", "old_name:", "official_name:", "note:",
+            "source:", "wikipedia:"};
+    // marks tag combinations that are not accepted by any encoder
+    private static final IntsRef REJECTED = new IntsRef(1);
+
+    private final EncodingManager encodingManager;
+    private final Map<TagKey, Boolean> acceptCache;
+    private final Map<TagKey, IntsRef> flagsCache;
+    private final Map<TagKey, Long> nodeFlagsCache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public EncodingCache(EncodingManager encodingManager, int maxEntries) {
+        this.encodingManager = encodingManager;
+        this.acceptCache = createLruMap(maxEntries);
+        this.flagsCache = createLruMap(maxEntries);
+        this.nodeFlagsCache = createLruMap(maxEntries);
+    }
+
+    private static <V> Map<TagKey, V> createLruMap(int maxEntries) {
+        return new LinkedHashMap<TagKey, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<TagKey, V> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return true if the encoders of the specified way do not depend on its geometry
+     */
+    public boolean isCacheable(ReaderWay way) {
+        for (String tag : BYPASS_TAGS) {
+            if (way.getTag(tag) != null)
+                return false;
+        }
+        return true;
+    }
+
+    static boolean isIgnored(String key) {
+        if (IGNORED_KEYS.contains(key))
+            return true;
+        for (String prefix : IGNORED_PREFIXES) {
+            if (key.startsWith(prefix))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Like EncodingManager.acceptWay. Thread safe.
+     */
+    public boolean acceptWay(ReaderWay way) {
+        TagKey key = new TagKey(way.getTags(), (int[]) null);
+        synchronized (acceptCache) {
+            Boolean accepted = acceptCache.get(key);
+            if (accepted != null) {
+                hits.incrementAndGet();
+                return accepted;
+            }
+        }
+        misses.incrementAndGet();
+        boolean accepted = encodingManager.acceptWay(way, new EncodingManager.AcceptWay());
+        synchronized (acceptCache) {
+            acceptCache.put(key.copy(), accepted);
+        }
+        return accepted;
+    }
+
+    /**
+     * Like EncodingManager.acceptWay followed by handleWayTags. Thread safe. The artificial tags of the way are not part
+     * of the key, so they should be set before like for uncached ways, but isCacheable has to be checked before.
+     *
+     * @return a copy of the edge flags that can be modified or null if the way is not accepted
+     */
+    public IntsRef getEdgeFlags(ReaderWay way, IntsRef relationFlags) {
+        TagKey key = new TagKey(way.getTags(), relationFlags);
+        IntsRef edgeFlags;
+        synchronized (flagsCache) {
+            edgeFlags = flagsCache.get(key);
+        }
+        if (edgeFlags != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            EncodingManager.AcceptWay acceptWay = new EncodingManager.AcceptWay();
+            edgeFlags = encodingManager.acceptWay(way, acceptWay)
+                    ? encodingManager.handleWayTags(way, acceptWay, relationFlags) : REJECTED;
+            synchronized (flagsCache) {
+                flagsCache.put(key.copy(), edgeFlags);
+            }
+        }
+        return edgeFlags == REJECTED ? null : IntsRef.deepCopyOf(edgeFlags);
+    }
+
+    /**
+     * Like EncodingManager.handleNodeTags. Thread safe.
+     */
+    public long getNodeFlags(ReaderNode node) {
+        TagKey key = new TagKey(node.getTags(), (int[]) null);
+        synchronized (nodeFlagsCache) {
+            Long nodeFlags = nodeFlagsCache.get(key);
+            if (nodeFlags != null) {
+                hits.incrementAndGet();
+                return nodeFlags;
+            }
+        }
+        misses.incrementAndGet();
+        long nodeFlags = encodingManager.handleNodeTags(node);
+        synchronized (nodeFlagsCache) {
+            nodeFlagsCache.put(key.copy(), nodeFlags);
+        }
+        return nodeFlags;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRate() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    @Override
+    public String toString() {
+        return "encoding cache hits:" + hits.get() + ", misses:" + misses.get()
+                + ", hit rate:" + Math.round(getHitRate() * 1000) / 10d + "%";
+    }
+
+    /**
+     * The relevant tags and relation flags of a way. For lookups the tags of the way are used directly and the ignored
+     * tags are skipped while hashing and comparing, only keys stored in a cache are copied without the ignored tags.
+     */
+    private static final class TagKey {
+        private final Map<String, Object> tags;
+        private final int[] relationFlags;
+        private final int size;
+        private final int hash;
+
+        TagKey(Map<String, Object> tags, IntsRef relationFlags) {
+            this(tags, relationFlags == null ? null
+                    : Arrays.copyOfRange(relationFlags.ints, relationFlags.offset, relationFlags.offset + relationFlags.length));
+        }
+
+        private TagKey(Map<String, Object> tags, int[] relationFlags) {
+            this.tags = tags;
+            this.relationFlags = relationFlags;
+            int tmpSize = 0;
+            int tagsHash = 0;
+            for (Map.Entry<String, Object> entry : tags.entrySet()) {
+                if (isIgnored(entry.getKey()))
+                    continue;
+                tmpSize++;
+                // like Map.hashCode, so the hash does not depend on the order of the tags
+                tagsHash += entry.hashCode();
+            }
+            this.size = tmpSize;
+            this.hash = 31 * tagsHash + Arrays.hashCode(relationFlags);
+        }
+
+        TagKey copy() {
+            Map<String, Object> relevantTags = new HashMap<>(size);
+            for (Map.Entry<String, Object> entry : tags.entrySet()) {
+                if (!isIgnored(entry.getKey()))
+                    relevantTags.put(entry.getKey(), entry.getValue());
+            }
+            return new TagKey(relevantTags, relationFlags);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TagKey))
+                return false;
+            TagKey other = (TagKey) obj;
+            if (hash != other.hash || size != other.size || !Arrays.equals(relationFlags, other.relationFlags))
+                return false;
+            for (Map.Entry<String, Object> entry : tags.entrySet()) {
+                if (!isIgnored(entry.getKey()) && !Objects.equals(entry.getValue(), other.tags.get(entry.getKey())))
+                    return false;
+            }
+            return true;
+        }
+    }
+}
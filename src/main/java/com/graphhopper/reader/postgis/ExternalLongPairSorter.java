@@ -0,0 +1,262 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts pairs of longs by their key with a fixed amount of memory. Pairs are collected in a buffer, if it is full
+ * the buffer is sorted and written as run to a temporary file. When reading, the runs are merged. Pairs with the
+ * same key are returned in an undefined order.
+ * <p>
+ * Usage: add all pairs, then call {@link #sort()} and iterate the result with {@link #next()}, {@link #getKey()} and
+ * {@link #getValue()}. Close the sorter to remove the temporary files. Not thread safe.
+ */
+public class ExternalLongPairSorter implements Closeable {
+
+    private static final int IO_BUFFER_SIZE = 1 << 16;
+
+    private final File dir;
+    private final long[] keys;
+    private final long[] values;
+    private int size;
+    private final List<File> runs = new ArrayList<>();
+    private long count;
+    private boolean sorted;
+
+    // the state while reading
+    private int bufferIndex = -1;
+    private PriorityQueue<Run> queue;
+    private Run current;
+    private long key, value;
+
+    /**
+     * @param bufferPairs the number of pairs kept in memory, each needs 16 bytes
+     */
+    public ExternalLongPairSorter(File dir, int bufferPairs) {
+        if (bufferPairs < 1)
+            throw new IllegalArgumentException("The buffer needs space for at least one pair");
+        this.dir = dir;
+        this.keys = new long[bufferPairs];
+        this.values = new long[bufferPairs];
+    }
+
+    public void add(long key, long value) {
+        if (sorted)
+            throw new IllegalStateException("Cannot add pairs after sort was called");
+        if (size == keys.length)
+            spill();
+        keys[size] = key;
+        values[size] = value;
+        size++;
+        count++;
+    }
+
+    /**
+     * @return the number of added pairs
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public int getRunCount() {
+        return runs.size();
+    }
+
+    private void spill() {
+        sortBuffer(0, size - 1);
+        try {
+            File file = File.createTempFile("gh_sort_", ".run", dir);
+            file.deleteOnExit();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), IO_BUFFER_SIZE))) {
+                out.writeInt(size);
+                for (int i = 0; i < size; i++) {
+                    out.writeLong(keys[i]);
+                    out.writeLong(values[i]);
+                }
+            }
+            runs.add(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write sorted run to " + dir, e);
+        }
+        size = 0;
+    }
+
+    /**
+     * Finishes adding pairs, afterwards the pairs can be read in the order of their keys.
+     */
+    public ExternalLongPairSorter sort() {
+        if (sorted)
+            throw new IllegalStateException("sort was already called");
+        sorted = true;
+        if (runs.isEmpty()) {
+            // everything fits into memory
+            sortBuffer(0, size - 1);
+            bufferIndex = 0;
+            return this;
+        }
+
+        if (size > 0)
+            spill();
+        queue = new PriorityQueue<>(runs.size(), (a, b) -> Long.compare(a.key, b.key));
+        for (File file : runs) {
+            Run run = new Run(file);
+            if (run.next())
+                queue.add(run);
+            else
+                run.close();
+        }
+        return this;
+    }
+
+    /**
+     * Moves to the next pair.
+     *
+     * @return false if there are no more pairs
+     */
+    public boolean next() {
+        if (!sorted)
+            throw new IllegalStateException("Call sort before reading the pairs");
+
+        if (queue == null) {
+            if (bufferIndex >= size)
+                return false;
+            key = keys[bufferIndex];
+            value = values[bufferIndex];
+            bufferIndex++;
+            return true;
+        }
+
+        if (current != null) {
+            if (current.next())
+                queue.add(current);
+            else
+                current.close();
+        }
+        current = queue.poll();
+        if (current == null)
+            return false;
+        key = current.key;
+        value = current.value;
+        return true;
+    }
+
+    public long getKey() {
+        return key;
+    }
+
+    public long getValue() {
+        return value;
+    }
+
+    @Override
+    public void close() {
+        if (current != null)
+            current.close();
+        if (queue != null) {
+            for (Run run : queue) {
+                run.close();
+            }
+            queue.clear();
+        }
+        for (File file : runs) {
+            file.delete();
+        }
+        runs.clear();
+    }
+
+    private void sortBuffer(int from, int to) {
+        // quick sort of both arrays by the keys, small ranges are sorted by insertion sort
+        while (to - from > 16) {
+            long pivot = median(keys[from], keys[(from + to) >>> 1], keys[to]);
+            int i = from, j = to;
+            while (i <= j) {
+                while (keys[i] < pivot) i++;
+                while (keys[j] > pivot) j--;
+                if (i <= j)
+                    swap(i++, j--);
+            }
+            // recurse into the smaller part to limit the stack depth
+            if (j - from < to - i) {
+                sortBuffer(from, j);
+                from = i;
+            } else {
+                sortBuffer(i, to);
+                to = j;
+            }
+        }
+        for (int i = from + 1; i <= to; i++) {
+            for (int j = i; j > from && keys[j - 1] > keys[j]; j--) {
+                swap(j - 1, j);
+            }
+        }
+    }
+
+    private static long median(long a, long b, long c) {
+        return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+    }
+
+    private void swap(int i, int j) {
+        long tmp = keys[i];
+        keys[i] = keys[j];
+        keys[j] = tmp;
+        tmp = values[i];
+        values[i] = values[j];
+        values[j] = tmp;
+    }
+
+    private static class Run implements Closeable {
+        private final DataInputStream in;
+        private int remaining;
+        long key, value;
+
+        Run(File file) {
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), IO_BUFFER_SIZE));
+                remaining = in.readInt();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read sorted run " + file, e);
+            }
+        }
+
+        boolean next() {
+            if (remaining == 0)
+                return false;
+            try {
+                key = in.readLong();
+                value = in.readLong();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            remaining--;
+            return true;
+        }
+
+        @Override
+        public void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore, the file is deleted anyway
+            }
+        }
+    }
+}
@@ -22,8 +22,19 @@ import com.graphhopper.json.geo.JsonFeatureCollection;
 import com.graphhopper.reader.DataReader;
 import com.graphhopper.reader.osm.GraphHopperOSM;
 import com.graphhopper.storage.GraphHopperStorage;
+import com.graphhopper.util.Helper;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Modified version of GraphHopper to optimize working with Postgis
@@ -32,10 +43,18 @@ import java.util.Map;
  * @author Robin Boldt
  */
 public class GraphHopperPostgis extends GraphHopperOSM {
-    
+
     private final Map<String, Object> postgisParams;
+    private OsmIdIndex osmIdIndex;
+    // set while importOrLoadAll imports this graph together with others
+    private volatile ColumnarSnapshotReader.BlockCache snapshotBlockCache;
     
+    /**
+     * @param landmarkSplittingFeatureCollection the areas that split the landmark preparation, replaced by the areas of
+     *                                           postgis.lm_split_table if it is configured
+     */
     public GraphHopperPostgis(GraphHopperConfig configuration, JsonFeatureCollection landmarkSplittingFeatureCollection) {
+        super(LandmarkSplittingAreas.load(configuration, landmarkSplittingFeatureCollection));
         super.init(configuration);
         
         super.setDataReaderFile(configuration.getString("postgis.table", ""));
@@ -46,8 +65,111 @@ public class GraphHopperPostgis extends GraphHopperOSM {
     @Override
     protected DataReader createReader(GraphHopperStorage ghStorage) {
         OSMPostgisReader reader = new OSMPostgisReader(ghStorage, postgisParams);
+        reader.setSnapshotBlockCache(snapshotBlockCache);
         return initDataReader(reader);
     }   
+
+    public Map<String, Object> getPostgisParams() {
+        return postgisParams;
+    }
+
+    /**
+     * Imports or loads several graphs of the same database, e.g. with other profiles and graph locations. The tables
+     * are read from the database only once into the postgis.snapshot_file of the first graph, or into a temporary
+     * snapshot file if it is not set, and the graphs are then built concurrently from this file. The graphs share the
+     * inflated blocks of the file as long as their imports read about the same part of it.
+     */
+    public static void importOrLoadAll(List<GraphHopperPostgis> hoppers) {
+        if (hoppers.isEmpty())
+            return;
+        Map<String, Object> firstParams = hoppers.get(0).getPostgisParams();
+        for (GraphHopperPostgis hopper : hoppers) {
+            for (String key : OSMPostgisReader.SNAPSHOT_PARAMS) {
+                if (!Objects.equals(String.valueOf(firstParams.get(key)), String.valueOf(hopper.getPostgisParams().get(key))))
+                    throw new IllegalArgumentException("All graphs have to use the same postgis." + key + " to share the tables");
+            }
+        }
+
+        String configuredFile = String.valueOf(firstParams.get("snapshot_file"));
+        File tmpDir = null;
+        File snapshotFile;
+        try {
+            if (configuredFile.isEmpty()) {
+                tmpDir = Files.createTempDirectory("gh-postgis-").toFile();
+                snapshotFile = new File(tmpDir, "tables.ghs");
+            } else {
+                snapshotFile = new File(configuredFile);
+            }
+        } catch (IOException e) {
+            throw Utils.asUnchecked(e);
+        }
+
+        List<Object> previousFiles = new ArrayList<>();
+        // a few blocks per graph, so that a graph whose import is slightly behind still finds them
+        ColumnarSnapshotReader.BlockCache blockCache = new ColumnarSnapshotReader.BlockCache(16 * hoppers.size());
+        for (GraphHopperPostgis hopper : hoppers) {
+            previousFiles.add(hopper.getPostgisParams().put("snapshot_file", snapshotFile.getPath()));
+            hopper.snapshotBlockCache = blockCache;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(hoppers.size());
+        Throwable failure = null;
+        try {
+            List<Future<?>> imports = new ArrayList<>();
+            for (GraphHopperPostgis hopper : hoppers) {
+                imports.add(executor.submit(hopper::importOrLoad));
+            }
+            // wait for all imports, as they read the snapshot file until they are finished
+            for (Future<?> future : imports) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null)
+                        failure = e.getCause();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = e;
+        } finally {
+            executor.shutdownNow();
+            for (int i = 0; i < hoppers.size(); i++) {
+                hoppers.get(i).snapshotBlockCache = null;
+                if (previousFiles.get(i) == null)
+                    hoppers.get(i).getPostgisParams().remove("snapshot_file");
+                else
+                    hoppers.get(i).getPostgisParams().put("snapshot_file", previousFiles.get(i));
+            }
+            if (tmpDir != null)
+                Helper.removeDir(tmpDir);
+        }
+        if (failure != null)
+            throw Utils.asUnchecked(failure);
+    }
+
+    /**
+     * @return the OSM ids of the edges and tower nodes or null if the graph was imported without
+     * postgis.osm_id_index
+     */
+    public synchronized OsmIdIndex getOsmIdIndex() {
+        if (osmIdIndex == null) {
+            OsmIdIndex index = new OsmIdIndex(getGraphHopperStorage().getDirectory());
+            if (!index.loadExisting())
+                return null;
+            osmIdIndex = index;
+        }
+        return osmIdIndex;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        synchronized (this) {
+            if (osmIdIndex != null) {
+                osmIdIndex.close();
+                osmIdIndex = null;
+            }
+        }
+    }
         
 //    @Override
 //    protected DataReader importData() throws IOException {
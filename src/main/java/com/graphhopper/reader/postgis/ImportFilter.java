@@ -0,0 +1,88 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.routing.util.FlagEncoder;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Derives SQL predicates from the configured flag encoders, that are pushed down into the table scans. The
+ * predicates are conservative: every row that could be accepted by one of the encoders passes the predicate, the
+ * final decision is still made by the EncodingManager.
+ * <p>
+ * For unknown (custom) encoders no predicate can be derived and null is returned, i.e. all rows are fetched.
+ */
+public class ImportFilter {
+
+    private static final Set<String> MOTOR_VEHICLES = new HashSet<>(Arrays.asList(
+            "car", "car4wd", "motorcycle"));
+    private static final Set<String> NON_MOTOR_VEHICLES = new HashSet<>(Arrays.asList(
+            "foot", "hike", "wheelchair", "bike", "bike2", "racingbike", "mtb"));
+
+    private ImportFilter() {
+    }
+
+    /**
+     * @return a predicate for the ways table or null if the encoders do not allow to restrict the ways
+     */
+    public static String forWays(EncodingManager encodingManager) {
+        boolean nonMotorVehicles = false;
+        for (FlagEncoder encoder : encodingManager.fetchEdgeEncoders()) {
+            String name = encoder.toString();
+            if (NON_MOTOR_VEHICLES.contains(name))
+                nonMotorVehicles = true;
+            else if (!MOTOR_VEHICLES.contains(name))
+                return null;
+        }
+
+        StringBuilder sb = new StringBuilder("array_length(nodes, 1) > 1 and (tags -> 'highway' is not null"
+                + " or tags -> 'route' in ('ferry', 'shuttle_train')");
+        if (nonMotorVehicles)
+            sb.append(" or tags -> 'railway' = 'platform' or tags -> 'man_made' = 'pier'");
+        return sb.append(")").toString();
+    }
+
+    /**
+     * @return a predicate for the relations table, only route and restriction relations are used by the reader
+     */
+    public static String forRelations() {
+        return "tags -> 'type' in ('route', 'restriction')";
+    }
+
+    /**
+     * @return a predicate for the relations table that returns only the turn restrictions
+     */
+    public static String forRestrictions() {
+        return "tags -> 'type' = 'restriction'";
+    }
+
+    /**
+     * The encoders set node flags only for barriers and fords, the access tags are evaluated for barriers only. Unlike
+     * a predicate per key the hstore operators can use a GIN index on the tags column, e.g.
+     * <code>create index on planet_osm_nodes_import using gin (tags)</code>, so only the few tagged nodes are read.
+     *
+     * @return a predicate for nodes that could be relevant for barriers and access restrictions
+     */
+    public static String forTaggedNodes() {
+        return "(tags ?| array['barrier', 'ford'] or tags @> 'highway=>ford')";
+    }
+}
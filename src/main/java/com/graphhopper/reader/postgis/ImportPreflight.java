@@ -0,0 +1,262 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.util.Helper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Estimates the size of an import from the statistics of PostgreSQL before the tables are read. The number of rows is
+ * taken from <code>pg_class.reltuples</code>, the share of accepted ways, their average number of nodes and the
+ * members of the route and restriction relations from a block sample of the tables. The estimates are used to presize
+ * the maps and the graph storage and to check that the import fits into the heap.
+ * <p>
+ * All numbers are rough: the used nodes are an upper bound, as nodes shared by several ways are counted more than once,
+ * and road networks have about two junctions per way and 1.25 edges per junction.
+ */
+public class ImportPreflight {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImportPreflight.class);
+
+    public enum Policy {
+        // neither read the statistics nor presize the structures
+        OFF,
+        // log a warning if the heap is too small
+        WARN,
+        // throw an exception if the heap is too small
+        FAIL,
+        // switch to the external sort if the heap is too small and throw an exception if it is still too small
+        AUTO;
+
+        public static Policy parse(String policy) {
+            try {
+                return valueOf(policy.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown postgis.preflight " + policy + ", use off, warn, fail or auto");
+            }
+        }
+    }
+
+    // the number of rows read from every table to estimate the averages
+    private static final long SAMPLE_ROWS = 100_000;
+    // the used heap should not exceed this share of the free heap, the remainder is left for the garbage collector
+    private static final double HEAP_HEADROOM = 0.8;
+    // one entry of the GHLongIntBTree node map including the overhead of the tree
+    private static final int NODE_MAP_BYTES = 16;
+    // lat, lon and the first edge of a node in the graph, plus 4 bytes for the elevation
+    private static final int TOWER_NODE_BYTES = 16;
+    // the nodes, links, distance and geometry reference of an edge, without the flags
+    private static final int EDGE_BYTES = 28;
+    // one entry of the open addressing hash maps with a load factor of 0.5
+    private static final int HASH_MAP_BYTES = 32;
+
+    private final long nodeRows;
+    private final long wayRows;
+    private final long acceptedWays;
+    private final long wayNodeRefs;
+    private final long routeWayMembers;
+    private final long restrictions;
+
+    /**
+     * @param acceptedShare the share of the ways that pass the way filter
+     */
+    public ImportPreflight(long nodeRows, long wayRows, double acceptedShare, double averageWayNodes,
+                           long routeWayMembers, long restrictions) {
+        this.nodeRows = nodeRows;
+        this.wayRows = wayRows;
+        this.acceptedWays = Math.round(wayRows * acceptedShare);
+        this.wayNodeRefs = Math.round(acceptedWays * averageWayNodes);
+        this.routeWayMembers = routeWayMembers;
+        this.restrictions = restrictions;
+    }
+
+    /**
+     * Reads the statistics of the specified tables.
+     *
+     * @param wayFilter     the predicate of the accepted ways or null if all ways are read
+     * @param memberCount   the SQL expression for the number of members of a relation
+     * @return the estimate or null if the tables have no statistics, e.g. because they were never analyzed
+     */
+    public static ImportPreflight read(Connection connection, String nodesTable, String waysTable,
+                                       String relationsTable, String wayFilter, String memberCount) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            long nodeRows = readRowEstimate(statement, nodesTable);
+            long wayRows = readRowEstimate(statement, waysTable);
+            long relationRows = readRowEstimate(statement, relationsTable);
+            if (nodeRows <= 0 || wayRows <= 0) {
+                LOGGER.warn("No statistics for " + nodesTable + " or " + waysTable + ", run analyze to enable the preflight");
+                return null;
+            }
+
+            String accepted = wayFilter == null ? "true" : wayFilter;
+            double acceptedShare = 1;
+            double averageWayNodes = 0;
+            try (ResultSet rs = statement.executeQuery("select count(*), count(*) filter (where " + accepted + "),"
+                    + " avg(array_length(nodes, 1)) filter (where " + accepted + ") from " + waysTable
+                    + " tablesample system (" + getSamplePercent(wayRows) + ")")) {
+                rs.next();
+                long sampled = rs.getLong(1);
+                if (sampled > 0)
+                    acceptedShare = (double) rs.getLong(2) / sampled;
+                averageWayNodes = rs.getDouble(3);
+            }
+
+            long routeWayMembers = 0;
+            long restrictions = 0;
+            if (relationRows > 0) {
+                try (ResultSet rs = statement.executeQuery("select count(*),"
+                        + " count(*) filter (where tags -> 'type' = 'restriction'),"
+                        + " coalesce(sum(" + memberCount + ") filter (where tags -> 'type' = 'route'), 0) from "
+                        + relationsTable + " tablesample system (" + getSamplePercent(relationRows) + ")")) {
+                    rs.next();
+                    long sampled = rs.getLong(1);
+                    if (sampled > 0) {
+                        restrictions = relationRows * rs.getLong(2) / sampled;
+                        routeWayMembers = relationRows * rs.getLong(3) / sampled;
+                    }
+                }
+            }
+            return new ImportPreflight(nodeRows, wayRows, acceptedShare, averageWayNodes, routeWayMembers, restrictions);
+        }
+    }
+
+    private static long readRowEstimate(Statement statement, String table) throws SQLException {
+        try (ResultSet rs = statement.executeQuery("select reltuples::int8 from pg_class where oid = to_regclass('"
+                + table.replace("'", "''") + "')")) {
+            return rs.next() ? rs.getLong(1) : -1;
+        }
+    }
+
+    /**
+     * @return the percentage of the blocks to sample about SAMPLE_ROWS rows
+     */
+    static double getSamplePercent(long rows) {
+        return Math.min(100, Math.max(0.01, 100d * SAMPLE_ROWS / rows));
+    }
+
+    public long getAcceptedWays() {
+        return acceptedWays;
+    }
+
+    /**
+     * @return the number of nodes used by the accepted ways, which is at most the number of rows of the nodes table
+     */
+    public long getUsedNodes() {
+        return Math.min(nodeRows, wayNodeRefs);
+    }
+
+    public long getTowerNodes() {
+        return Math.min(getUsedNodes(), 2 * acceptedWays);
+    }
+
+    public long getPillarNodes() {
+        return getUsedNodes() - getTowerNodes();
+    }
+
+    public long getEdges() {
+        return getTowerNodes() * 5 / 4;
+    }
+
+    public long getRouteWayMembers() {
+        return routeWayMembers;
+    }
+
+    public long getRestrictions() {
+        return restrictions;
+    }
+
+    /**
+     * @return the bytes of the graph storage after the import
+     */
+    public long getGraphBytes(int flagsBytes, boolean is3D) {
+        int pointBytes = is3D ? 12 : 8;
+        return getTowerNodes() * (TOWER_NODE_BYTES + (is3D ? 4 : 0))
+                + getEdges() * (EDGE_BYTES + flagsBytes + 4)
+                + getPillarNodes() * pointBytes;
+    }
+
+    /**
+     * @return the bytes of the node map, the pillar coordinates and the relation flags of the specified import mode
+     */
+    long getImportMapBytes(String importMode, boolean is3D) {
+        long relationBytes = routeWayMembers * HASH_MAP_BYTES;
+        switch (importMode) {
+            case "external_sort":
+                // only the via nodes are kept in the node map, the coordinates are in the scratch directory
+                return restrictions * NODE_MAP_BYTES + relationBytes;
+            case "inline_coordinates":
+                // only the shared nodes are kept in the node map, there is no pillar store
+                return getTowerNodes() * NODE_MAP_BYTES + relationBytes;
+            default:
+                return getUsedNodes() * NODE_MAP_BYTES + getPillarNodes() * (is3D ? 12 : 8) + relationBytes;
+        }
+    }
+
+    /**
+     * @param importMode      the postgis.import_mode
+     * @param sortBufferBytes the buffer of the external sort
+     * @param scratchStorage  true if the maps of the import are stored in the scratch directory
+     * @return the heap used by the temporary structures of the import, without the graph storage
+     */
+    public long getImportHeapBytes(String importMode, long sortBufferBytes, boolean is3D, boolean scratchStorage) {
+        long heapBytes = 2 * restrictions * HASH_MAP_BYTES;
+        if ("external_sort".equals(importMode))
+            heapBytes += sortBufferBytes;
+        return scratchStorage ? heapBytes : heapBytes + getImportMapBytes(importMode, is3D);
+    }
+
+    /**
+     * @param graphInHeap true if the graph storage is not memory mapped
+     * @return the heap required by the import including the graph storage, if it is stored in the heap
+     */
+    public long getHeapBytes(String importMode, long sortBufferBytes, int flagsBytes, boolean is3D,
+                             boolean scratchStorage, boolean graphInHeap) {
+        return getImportHeapBytes(importMode, sortBufferBytes, is3D, scratchStorage)
+                + (graphInHeap ? getGraphBytes(flagsBytes, is3D) : 0);
+    }
+
+    /**
+     * @return true if the specified bytes fit into the free heap, leaving room for the garbage collector
+     */
+    public static boolean fitsIntoHeap(long heapBytes, long freeHeapBytes) {
+        return heapBytes <= freeHeapBytes * HEAP_HEADROOM;
+    }
+
+    /**
+     * @return the bytes written to the scratch directory
+     */
+    public long getScratchBytes(String importMode, boolean is3D, boolean scratchStorage) {
+        // the sorted runs of node id and position pairs plus the state and coordinates of every position
+        long scratchBytes = "external_sort".equals(importMode) ? wayNodeRefs * (16 + 16) : 0;
+        return scratchStorage ? scratchBytes + getImportMapBytes(importMode, is3D) : scratchBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "nodes:" + Helper.nf(nodeRows) + ", ways:" + Helper.nf(wayRows) + ", accepted ways:" + Helper.nf(acceptedWays)
+                + ", used nodes:" + Helper.nf(getUsedNodes()) + ", tower nodes:" + Helper.nf(getTowerNodes())
+                + ", edges:" + Helper.nf(getEdges()) + ", route members:" + Helper.nf(routeWayMembers)
+                + ", restrictions:" + Helper.nf(restrictions);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.GraphHopper;
+import com.graphhopper.config.Profile;
+import com.graphhopper.isochrone.algorithm.ContourBuilder;
+import com.graphhopper.isochrone.algorithm.JTSTriangulator;
+import com.graphhopper.isochrone.algorithm.ShortestPathTree;
+import com.graphhopper.isochrone.algorithm.Triangulator;
+import com.graphhopper.routing.querygraph.QueryGraph;
+import com.graphhopper.routing.querygraph.VirtualEdgeIteratorState;
+import com.graphhopper.routing.util.DefaultEdgeFilter;
+import com.graphhopper.routing.util.EdgeFilter;
+import com.graphhopper.routing.util.TraversalMode;
+import com.graphhopper.routing.weighting.Weighting;
+import com.graphhopper.storage.index.Snap;
+import com.graphhopper.util.GHUtility;
+import com.graphhopper.util.PMap;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.opengis.feature.simple.SimpleFeature;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Computes isochrones or reachability sets for the facilities of a PostGIS table or view and writes them into
+ * another table.
+ * <p>
+ * The facilities are read from <code>postgis.isochrone_source</code>, which needs the columns <code>id, lat, lon</code>.
+ * For every time limit of <code>postgis.isochrone_limits</code> (in seconds) one row is written into
+ * <code>postgis.isochrone_target</code>. With <code>postgis.isochrone_output: polygon</code> the row contains the
+ * isochrone polygon, with <code>ways</code> the OSM ids of all ways that are reachable within the limit, which requires
+ * the {@link OsmIdIndex}. The shortest path tree is searched once per facility up to the largest limit.
+ */
+public class IsochroneJob extends PostgisBatchJob {
+
+    private final GraphHopper hopper;
+    private final Profile profile;
+    private final long[] limits;
+    private final boolean writeWays;
+    private final OsmIdIndex osmIdIndex;
+    // the weighting, edge filter and triangulator are created once per worker thread
+    private final ThreadLocal<RoutingState> routingState;
+
+    public IsochroneJob(GraphHopperPostgis hopper) {
+        this(hopper, hopper.getPostgisParams(), hopper.getOsmIdIndex());
+    }
+
+    IsochroneJob(GraphHopper hopper, Map<String, Object> postgisParams, OsmIdIndex osmIdIndex) {
+        super(postgisParams, Utils.getString(postgisParams, "isochrone_source", ""), Utils.getString(postgisParams, "isochrone_target", ""));
+        this.hopper = hopper;
+        this.osmIdIndex = osmIdIndex;
+        this.profile = hopper.getProfile(Utils.getString(postgisParams, "isochrone_profile", ""));
+        if (profile == null)
+            throw new IllegalArgumentException("Unknown profile for postgis.isochrone_profile: " + postgisParams.get("isochrone_profile"));
+        this.limits = parseLimits(Utils.getString(postgisParams, "isochrone_limits", "600"));
+        String output = Utils.getString(postgisParams, "isochrone_output", "polygon");
+        if (!"polygon".equals(output) && !"ways".equals(output))
+            throw new IllegalArgumentException("Unknown postgis.isochrone_output " + output);
+        this.writeWays = "ways".equals(output);
+        if (writeWays && osmIdIndex == null)
+            throw new IllegalArgumentException("postgis.isochrone_output: ways requires a graph imported with postgis.osm_id_index");
+        this.routingState = ThreadLocal.withInitial(RoutingState::new);
+    }
+
+    /**
+     * @return the limits in milliseconds, ascending
+     */
+    static long[] parseLimits(String limits) {
+        long[] result = Arrays.stream(limits.split(","))
+                .map(String::trim)
+                .filter(limit -> !limit.isEmpty())
+                .mapToLong(limit -> Long.parseLong(limit) * 1000)
+                .sorted()
+                .toArray();
+        if (result.length == 0 || result[0] <= 0)
+            throw new IllegalArgumentException("postgis.isochrone_limits needs positive limits in seconds but was " + limits);
+        return result;
+    }
+
+    private class RoutingState {
+        final Weighting weighting = hopper.createWeighting(profile, new PMap());
+        final EdgeFilter edgeFilter = DefaultEdgeFilter.allEdges(
+                hopper.getEncodingManager().getEncoder(profile.getVehicle()).getAccessEnc());
+        final JTSTriangulator triangulator = new JTSTriangulator(hopper.getRouterConfig());
+        final TraversalMode traversalMode = profile.isTurnCosts() ? TraversalMode.EDGE_BASED : TraversalMode.NODE_BASED;
+    }
+
+    @Override
+    protected String[] getSourceColumns() {
+        return new String[]{"id", "lat", "lon"};
+    }
+
+    @Override
+    protected String[] getTargetColumns() {
+        return new String[]{"id", "time_limit", writeWays ? "ways" : "geom"};
+    }
+
+    @Override
+    protected boolean process(SimpleFeature facility, StringBuilder rows) {
+        RoutingState state = routingState.get();
+        Snap snap = hopper.getLocationIndex().findClosest(((Number) facility.getAttribute("lat")).doubleValue(),
+                ((Number) facility.getAttribute("lon")).doubleValue(), state.edgeFilter);
+        if (!snap.isValid())
+            return false;
+
+        QueryGraph queryGraph = QueryGraph.create(hopper.getGraphHopperStorage(), snap);
+        ShortestPathTree tree = new ShortestPathTree(queryGraph, queryGraph.wrapWeighting(state.weighting), false,
+                state.traversalMode);
+        long maxLimit = limits[limits.length - 1];
+        if (writeWays) {
+            tree.setTimeLimit(maxLimit);
+            // the reachable ways per limit, sorted and without duplicates
+            TreeSet<Long>[] ways = newWaySets();
+            int baseEdges = hopper.getGraphHopperStorage().getEdges();
+            tree.search(snap.getClosestNode(), label -> {
+                if (label.edge < 0)
+                    return;
+                int edge = label.edge;
+                if (edge >= baseEdges)
+                    edge = GHUtility.getEdgeFromEdgeKey(((VirtualEdgeIteratorState) queryGraph.getEdgeIteratorState(
+                            edge, label.node)).getOriginalEdgeKey());
+                long wayId = osmIdIndex.getWayId(edge);
+                if (wayId == OsmIdIndex.UNKNOWN)
+                    return;
+                for (int i = 0; i < limits.length; i++) {
+                    if (label.time <= limits[i])
+                        ways[i].add(wayId);
+                }
+            });
+            for (int i = 0; i < limits.length; i++) {
+                appendRow(rows, facility, limits[i], toArrayLiteral(ways[i]));
+            }
+        } else {
+            // search a bit further than the limit, so the triangulation also covers the edges leaving the isochrone
+            tree.setTimeLimit(maxLimit + Math.max(maxLimit * 0.14, 200_000));
+            // like the isochrone endpoint by default the points are not simplified before the triangulation
+            Triangulator.Result result = state.triangulator.triangulate(snap, queryGraph, tree, label -> label.time, 0);
+            ContourBuilder contourBuilder = new ContourBuilder(result.triangulation);
+            for (long limit : limits) {
+                MultiPolygon isochrone = contourBuilder.computeIsoline(limit, result.seedEdges);
+                appendRow(rows, facility, limit, isochrone.isEmpty() ? null : "SRID=4326;" + isochrone.toText());
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private TreeSet<Long>[] newWaySets() {
+        TreeSet<Long>[] sets = new TreeSet[limits.length];
+        for (int i = 0; i < sets.length; i++) {
+            sets[i] = new TreeSet<>();
+        }
+        return sets;
+    }
+
+    private static void appendRow(StringBuilder rows, SimpleFeature facility, long limit, String value) {
+        appendCopyValue(rows, facility.getAttribute("id")).append('\t').append(limit / 1000).append('\t');
+        appendCopyValue(rows, value).append('\n');
+    }
+
+    /**
+     * @return the ids as literal of a PostgreSQL array
+     */
+    static String toArrayLiteral(Iterable<Long> ids) {
+        StringBuilder sb = new StringBuilder("{");
+        for (Long id : ids) {
+            if (sb.length() > 1)
+                sb.append(',');
+            sb.append(id);
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.GraphHopperConfig;
+import com.graphhopper.json.geo.JsonFeature;
+import com.graphhopper.json.geo.JsonFeatureCollection;
+import org.geotools.data.DataStore;
+import org.geotools.data.DataStoreFinder;
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.Query;
+import org.geotools.feature.FeatureIterator;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Polygonal;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+import org.locationtech.jts.io.WKTWriter;
+import org.opengis.feature.simple.SimpleFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads the polygons that split the landmark preparation into independent areas from a PostGIS table, e.g. islands or
+ * countries that are not connected by roads. The landmarks are then chosen per area, which is what makes long distance
+ * LM queries fast.
+ * <p>
+ * The areas are cached next to the graph, so a restart with a prepared graph does not need the database. As the
+ * prepared landmarks are stored with the graph as well, delete the graph directory when the areas change.
+ */
+public class LandmarkSplittingAreas {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LandmarkSplittingAreas.class);
+    static final String CACHE_FILE = "lm_split_areas.wkt";
+
+    /**
+     * @param fallback the areas to use if <code>postgis.lm_split_table</code> is not configured, can be null
+     * @return the areas of the table configured with <code>postgis.lm_split_table</code> or the fallback
+     */
+    public static JsonFeatureCollection load(GraphHopperConfig configuration, JsonFeatureCollection fallback) {
+        Map<String, Object> postgisParams = Utils.postGisParamsFromConfig(configuration);
+        String table = Utils.getString(postgisParams, "lm_split_table", "");
+        if (table.isEmpty())
+            return fallback;
+
+        File cache = new File(configuration.getString("graph.location", ""), CACHE_FILE);
+        List<JsonFeature> features;
+        if (cache.exists()) {
+            features = readCache(cache);
+            LOGGER.info("Read " + features.size() + " landmark splitting areas from " + cache);
+        } else {
+            features = readTable(postgisParams, table);
+            LOGGER.info("Read " + features.size() + " landmark splitting areas from " + table);
+            writeCache(cache, features);
+        }
+        JsonFeatureCollection collection = new JsonFeatureCollection();
+        collection.getFeatures().addAll(features);
+        return collection;
+    }
+
+    static List<JsonFeature> readTable(Map<String, Object> postgisParams, String table) {
+        DataStore dataStore;
+        try {
+            dataStore = DataStoreFinder.getDataStore(postgisParams);
+        } catch (IOException e) {
+            throw Utils.asUnchecked(e);
+        }
+        if (dataStore == null)
+            throw new IllegalArgumentException("Error Connecting to Database ");
+
+        List<JsonFeature> features = new ArrayList<>();
+        FeatureIterator<SimpleFeature> iterator = new TransactionFeatureIterator(dataStore, new Query(table),
+                new DefaultTransaction(table));
+        try {
+            while (iterator.hasNext()) {
+                SimpleFeature feature = iterator.next();
+                Object geometry = feature.getDefaultGeometry();
+                // the coordinates have to be in WGS84 like the graph
+                if (geometry instanceof Polygonal)
+                    features.add(createFeature(feature.getID(), (Geometry) geometry));
+                else
+                    LOGGER.warn("Ignoring landmark splitting area " + feature.getID() + " without polygon");
+            }
+        } finally {
+            iterator.close();
+            dataStore.dispose();
+        }
+        return features;
+    }
+
+    private static JsonFeature createFeature(String id, Geometry geometry) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("area", id);
+        return new JsonFeature(id, "Feature", geometry.getEnvelopeInternal(), geometry, properties);
+    }
+
+    /**
+     * Writes one area per line as id and WKT separated by a tab.
+     */
+    static void writeCache(File cache, List<JsonFeature> features) {
+        File dir = cache.getAbsoluteFile().getParentFile();
+        if (!dir.exists() && !dir.mkdirs())
+            throw new IllegalStateException("Cannot create graph directory " + dir);
+        WKTWriter writer = new WKTWriter();
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(cache), StandardCharsets.UTF_8))) {
+            for (JsonFeature feature : features) {
+                out.write(feature.getId());
+                out.write('\t');
+                out.write(writer.write(feature.getGeometry()));
+                out.write('\n');
+            }
+        } catch (IOException e) {
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    static List<JsonFeature> readCache(File cache) {
+        List<JsonFeature> features = new ArrayList<>();
+        WKTReader reader = new WKTReader();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(cache), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int separator = line.indexOf('\t');
+                if (separator < 0)
+                    continue;
+                features.add(createFeature(line.substring(0, separator), reader.read(line.substring(separator + 1))));
+            }
+        } catch (IOException | ParseException e) {
+            throw Utils.asUnchecked(e);
+        }
+        return features;
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.util.Helper;
+
+import java.util.Arrays;
+
+/**
+ * Decodes LineString and MultiLineString geometries from WKB (as returned by <code>ST_AsBinary</code>, EWKB is
+ * accepted too) or TWKB (as returned by <code>ST_AsTWKB</code>) into primitive arrays. The arrays are reused for the next geometry, so decoding does not create any
+ * objects once the buffers are large enough.
+ * <p>
+ * The vertices of all parts are stored one after another, use {@link #getPartStart(int)} and
+ * {@link #getPartEnd(int)} to iterate over the parts. Other geometry types result in zero parts.
+ */
+public class LineGeometryBuffer {
+
+    private static final int WKB_LINESTRING = 2;
+    private static final int WKB_MULTILINESTRING = 5;
+    private static final int EWKB_Z = 0x80000000;
+    private static final int EWKB_M = 0x40000000;
+    private static final int EWKB_SRID = 0x20000000;
+    private static final int TWKB_BBOX = 0x01;
+    private static final int TWKB_SIZE = 0x02;
+    private static final int TWKB_ID_LIST = 0x04;
+    private static final int TWKB_EXTENDED_DIMENSIONS = 0x08;
+    private static final int TWKB_EMPTY = 0x10;
+
+    private double[] lats = new double[64];
+    private double[] lons = new double[64];
+    private double[] eles = new double[64];
+    // start index of every part plus the end index of the last part
+    private int[] partOffsets = new int[8];
+    private int parts;
+    private int size;
+    private boolean is3D;
+
+    private byte[] data;
+    private int position;
+    private boolean littleEndian;
+    // the last TWKB coordinate of every dimension, the differences continue over all parts
+    private final long[] previous = new long[4];
+
+    /**
+     * Replaces the current content with the geometry of the specified WKB.
+     *
+     * @return this buffer
+     */
+    public LineGeometryBuffer readWkb(byte[] wkb) {
+        clear();
+        if (wkb == null)
+            return this;
+
+        data = wkb;
+        position = 0;
+        readGeometry(true);
+        data = null;
+        return this;
+    }
+
+    private void readGeometry(boolean allowMulti) {
+        littleEndian = data[position++] == 1;
+        int type = readInt();
+        boolean hasZ = (type & EWKB_Z) != 0;
+        boolean hasM = (type & EWKB_M) != 0;
+        if ((type & EWKB_SRID) != 0)
+            position += 4;
+        type &= 0x0FFFFFFF;
+        // ISO WKB encodes the dimensions as multiple of 1000
+        int isoDimensions = type / 1000;
+        type %= 1000;
+        if (isoDimensions == 1 || isoDimensions == 3)
+            hasZ = true;
+        if (isoDimensions == 2 || isoDimensions == 3)
+            hasM = true;
+
+        if (type == WKB_LINESTRING) {
+            readLineString(hasZ, hasM);
+        } else if (type == WKB_MULTILINESTRING && allowMulti) {
+            int count = readInt();
+            for (int i = 0; i < count; i++) {
+                readGeometry(false);
+            }
+        } else if (!allowMulti) {
+            throw new IllegalArgumentException("Unexpected WKB geometry type " + type + " in a MultiLineString");
+        }
+        // other geometry types are ignored
+    }
+
+    private void readLineString(boolean hasZ, boolean hasM) {
+        int count = readInt();
+        ensureCapacity(size + count);
+        for (int i = 0; i < count; i++) {
+            lons[size] = readDouble();
+            lats[size] = readDouble();
+            eles[size] = hasZ ? readDouble() : Double.NaN;
+            if (hasM)
+                position += 8;
+            size++;
+        }
+        is3D |= hasZ;
+        addPart();
+    }
+
+    /**
+     * Replaces the current content with the geometry of the specified TWKB. TWKB stores the coordinates as varint
+     * encoded differences of fixed point numbers, so <code>ST_AsTWKB(geom, 6)</code> needs only a fraction of the
+     * bytes of WKB.
+     *
+     * @return this buffer
+     */
+    public LineGeometryBuffer readTwkb(byte[] twkb) {
+        clear();
+        if (twkb == null)
+            return this;
+
+        data = twkb;
+        position = 0;
+        int type = data[0] & 0x0F;
+        double factor = Math.pow(10, zigZag(data[0] >> 4 & 0x0F));
+        int metadata = data[1] & 0xFF;
+        position = 2;
+
+        boolean hasZ = false, hasM = false;
+        double zFactor = 1;
+        if ((metadata & TWKB_EXTENDED_DIMENSIONS) != 0) {
+            int dimensions = data[position++] & 0xFF;
+            hasZ = (dimensions & 0x01) != 0;
+            hasM = (dimensions & 0x02) != 0;
+            zFactor = Math.pow(10, dimensions >> 2 & 0x07);
+        }
+        if ((metadata & TWKB_SIZE) != 0)
+            readVarLong();
+        if ((metadata & TWKB_BBOX) != 0) {
+            // minimum and delta of every dimension
+            int dimensionCount = 2 + (hasZ ? 1 : 0) + (hasM ? 1 : 0);
+            for (int i = 0; i < 2 * dimensionCount; i++) {
+                readVarLong();
+            }
+        }
+
+        if ((metadata & TWKB_EMPTY) == 0) {
+            Arrays.fill(previous, 0);
+            if (type == WKB_LINESTRING) {
+                readTwkbLineString(factor, zFactor, hasZ, hasM);
+            } else if (type == WKB_MULTILINESTRING) {
+                int count = (int) readVarLong();
+                if ((metadata & TWKB_ID_LIST) != 0) {
+                    for (int i = 0; i < count; i++) {
+                        readVarLong();
+                    }
+                }
+                for (int i = 0; i < count; i++) {
+                    readTwkbLineString(factor, zFactor, hasZ, hasM);
+                }
+            }
+            // other geometry types are ignored
+        }
+        data = null;
+        return this;
+    }
+
+    private void readTwkbLineString(double factor, double zFactor, boolean hasZ, boolean hasM) {
+        int count = (int) readVarLong();
+        ensureCapacity(size + count);
+        for (int i = 0; i < count; i++) {
+            previous[0] += zigZag(readVarLong());
+            previous[1] += zigZag(readVarLong());
+            lons[size] = previous[0] / factor;
+            lats[size] = previous[1] / factor;
+            if (hasZ) {
+                previous[2] += zigZag(readVarLong());
+                eles[size] = previous[2] / zFactor;
+            } else {
+                eles[size] = Double.NaN;
+            }
+            if (hasM)
+                previous[3] += zigZag(readVarLong());
+            size++;
+        }
+        is3D |= hasZ;
+        addPart();
+    }
+
+    private long readVarLong() {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = data[position++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private int readInt() {
+        int b0 = data[position] & 0xFF, b1 = data[position + 1] & 0xFF, b2 = data[position + 2] & 0xFF,
+                b3 = data[position + 3] & 0xFF;
+        position += 4;
+        if (littleEndian)
+            return b3 << 24 | b2 << 16 | b1 << 8 | b0;
+        return b0 << 24 | b1 << 16 | b2 << 8 | b3;
+    }
+
+    private double readDouble() {
+        long first = readInt() & 0xFFFFFFFFL;
+        long second = readInt() & 0xFFFFFFFFL;
+        return Double.longBitsToDouble(littleEndian ? second << 32 | first : first << 32 | second);
+    }
+
+    /**
+     * Closes the current part, all vertices added since the last call belong to it.
+     */
+    void addPart() {
+        if (parts + 2 > partOffsets.length)
+            partOffsets = Arrays.copyOf(partOffsets, partOffsets.length * 2);
+        parts++;
+        partOffsets[parts] = size;
+    }
+
+    /**
+     * Appends a vertex to the current part.
+     */
+    void add(double lat, double lon, double ele) {
+        ensureCapacity(size + 1);
+        lats[size] = lat;
+        lons[size] = lon;
+        eles[size] = ele;
+        size++;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= lats.length)
+            return;
+        int newCapacity = Math.max(capacity, lats.length * 2);
+        lats = Arrays.copyOf(lats, newCapacity);
+        lons = Arrays.copyOf(lons, newCapacity);
+        eles = Arrays.copyOf(eles, newCapacity);
+    }
+
+    /**
+     * Rounds all coordinates to 6 decimal places.
+     *
+     * @return this buffer
+     */
+    public LineGeometryBuffer round6() {
+        for (int i = 0; i < size; i++) {
+            lats[i] = Helper.round6(lats[i]);
+            lons[i] = Helper.round6(lons[i]);
+            if (!Double.isNaN(eles[i]))
+                eles[i] = Helper.round6(eles[i]);
+        }
+        return this;
+    }
+
+    public void clear() {
+        parts = 0;
+        size = 0;
+        is3D = false;
+        partOffsets[0] = 0;
+    }
+
+    public int getPartCount() {
+        return parts;
+    }
+
+    /**
+     * @return the index of the first vertex of the specified part
+     */
+    public int getPartStart(int part) {
+        return partOffsets[part];
+    }
+
+    /**
+     * @return the index after the last vertex of the specified part
+     */
+    public int getPartEnd(int part) {
+        return partOffsets[part + 1];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double getLat(int index) {
+        return lats[index];
+    }
+
+    public double getLon(int index) {
+        return lons[index];
+    }
+
+    /**
+     * @return the elevation or NaN if the geometry has no z coordinate
+     */
+    public double getEle(int index) {
+        return eles[index];
+    }
+
+    public boolean is3D() {
+        return is3D;
+    }
+}
@@ -22,7 +22,6 @@ import java.util.HashMap;
 import com.carrotsearch.hppc.IntLongMap;
 import com.carrotsearch.hppc.LongArrayList;
 import com.carrotsearch.hppc.LongIndexedContainer;
-import com.carrotsearch.hppc.LongLongMap;
 import com.carrotsearch.hppc.LongSet;
 import com.graphhopper.coll.GHIntLongHashMap;
 import com.graphhopper.coll.GHLongHashSet;
@@ -44,11 +43,16 @@ import com.graphhopper.reader.osm.OSMReaderUtility;
 import com.graphhopper.routing.ev.BooleanEncodedValue;
 import com.graphhopper.routing.util.EncodingManager;
 import com.graphhopper.routing.util.parsers.TurnCostParser;
+import com.graphhopper.storage.DAType;
+import com.graphhopper.storage.DataAccess;
+import com.graphhopper.storage.Directory;
+import com.graphhopper.storage.GHDirectory;
 import com.graphhopper.storage.Graph;
 import com.graphhopper.storage.GraphHopperStorage;
 import com.graphhopper.storage.GraphStorage;
 import com.graphhopper.storage.IntsRef;
 import com.graphhopper.storage.NodeAccess;
+import com.graphhopper.storage.RAMDirectory;
 import com.graphhopper.storage.TurnCostStorage;
 import com.graphhopper.util.DistanceCalc;
 import com.graphhopper.util.DistanceCalcEarth;
@@ -72,11 +76,34 @@ import com.graphhopper.util.StopWatch;
 import java.io.IOException;
 import java.util.logging.Level;
 import org.geotools.data.DataStoreFinder;
+import org.geotools.data.DefaultTransaction;
 import org.geotools.data.FeatureSource;
-import org.geotools.feature.FeatureCollection;
+import org.geotools.data.Query;
+import org.geotools.data.Transaction;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.jdbc.JDBCDataStore;
 import org.geotools.jdbc.JDBCDataStoreFactory;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.sort.SortBy;
+import org.opengis.filter.sort.SortOrder;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Reads OSM data from Postgis and uses it in GraphHopper via the standard OSM reader
@@ -88,7 +115,14 @@ import org.opengis.filter.Filter;
  */
 public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInternalMap {
 
-    private static final String TYPE_DECODE = "nwr";
+    static final String NODES_TABLE = "planet_osm_nodes_import";
+    static final String WAYS_TABLE = "planet_osm_ways_import";
+    static final String RELATIONS_TABLE = "planet_osm_rels_import";
+    // imports of several graphs export a shared snapshot file only once
+    private static final Object SNAPSHOT_EXPORT_LOCK = new Object();
+    // the settings that change what is read from the tables, they have to be equal for imports that share a snapshot
+    static final String[] SNAPSHOT_PARAMS = {"dbtype", "host", "port", "database", "schema", "user", "custom_columns",
+            "node_tags", "relation_members", "pushdown_filter", "consistent_snapshot"};
     
     protected static final int EMPTY_NODE = -1;
     // pillar node is >= 3
@@ -96,10 +130,21 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
     // tower node is <= -3
     protected static final int TOWER_NODE = -2;
     private static final Logger LOGGER = LoggerFactory.getLogger(OSMPostgisReader.class);
+    private static final int PREPROCESS_BATCH_SIZE = 1_000;
+    // a way node position stores the state, latitude, longitude and elevation as ints
+    private static final int POSITION_BYTES = 16;
+    private static final int POSITION_MISSING = 0;
+    private static final int POSITION_PILLAR = -1;
     private final GraphStorage ghStorage;
     private final Graph graph;
     private final NodeAccess nodeAccess;
     private final LongIndexedContainer barrierNodeIds = new LongArrayList();
+    // scratch objects reused for every way, the ways are added by a single thread
+    private final List<EdgeIteratorState> createdEdges = new ArrayList<>();
+    private final LongArrayList partNodeIds = new LongArrayList();
+    private final PointList wayPoints;
+    private final PointList pillarPoints;
+    private final GHPoint estimatedCenter = new GHPoint();
     private final DistanceCalc distCalc = DistanceCalcEarth.DIST_EARTH;
     private final DouglasPeucker simplifyAlgo = new DouglasPeucker();
     private boolean smoothElevation = false;
@@ -120,8 +165,8 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
     // smaller memory overhead for bigger data sets because of avoiding a "rehash"
     // remember how many times a node was used to identify tower nodes
     private LongIntMap osmNodeIdToInternalNodeMap;
-    private GHLongLongHashMap osmNodeIdToNodeFlagsMap;
-    private GHLongLongHashMap osmWayIdToRouteWeightMap;
+    private DataAccessLongLongMap osmNodeIdToNodeFlagsMap;
+    private DataAccessLongLongMap osmWayIdToRouteWeightMap;
     // stores osm way ids used by relations to identify which edge ids needs to be mapped later
     private GHLongHashSet osmWayIdSet = new GHLongHashSet();
     private IntLongMap edgeIdToOsmWayIdMap;
@@ -137,6 +182,57 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
     private final TurnCostStorage tcs;
     
     private Map<String, Object> postgisParams;
+    private final ColumnMapping columnMapping;
+    // SQL predicates pushed down into the table scans, null if all rows are required
+    private final String wayFilter;
+    private final String relationFilter;
+    private final boolean consistentSnapshot;
+    // number of connections used to read a table concurrently in id ranges
+    private final int readConnections;
+    private PostgisSnapshot snapshot;
+    // the postgis.import_mode, the preflight can switch it to external_sort
+    private String importMode;
+    // if true the way nodes are sorted on disk instead of being classified in the node map, see preProcessWay
+    private boolean externalSort;
+    // if true the database counts how often a node is used by the ways and there is no way scan in preProcess
+    private boolean databaseClassification;
+    // if true the ways are read with the coordinates and reference counts of their nodes, there is no nodes pass
+    private final boolean inlineCoordinates;
+    private double[] inlineLats = new double[0];
+    private double[] inlineLons = new double[0];
+    private long[] inlineCounts = new long[0];
+    private final int sortBufferPairs;
+    private Directory scratchDirectory;
+    private File scratchLocation;
+    // if true the node map, the node and relation flags and the pillar coordinates are stored in the scratch directory
+    private final boolean scratchStorage;
+    // the directory of the maps of the import, the scratch directory or a directory on the heap
+    private Directory mapDirectory = new RAMDirectory();
+    private ExternalLongPairSorter wayNodeSorter;
+    // the state and coordinates of every node of every accepted way, in the order of the ways
+    private DataAccess wayNodePositions;
+    private long wayNodePositionCount;
+    private long wayNodeCursor;
+    private GHLongHashSet viaNodeIds;
+    // if set the tables are read from this file instead of the database, see ColumnarSnapshotWriter
+    private final File snapshotFile;
+    private ColumnarSnapshotReader snapshotReader;
+    // the inflated blocks shared with the imports of other graphs, see GraphHopperPostgis.importOrLoadAll
+    private ColumnarSnapshotReader.BlockCache snapshotBlockCache;
+    // if true the OSM ids of all edges and tower nodes are stored with the graph, see OsmIdIndex
+    private final boolean storeOsmIds;
+    private OsmIdIndex osmIdIndex;
+    // the copies of barrier nodes get new ids, the index stores the id of the original node
+    private GHLongLongHashMap barrierCopyOsmIds;
+    // null if the encoder results are not cached
+    private final EncodingCache encodingCache;
+    // if true the tags of barrier and access nodes are read in a separate pass, see readTaggedNodes
+    private final boolean readNodeTags;
+    // if true the members are read from the typed array columns instead of the hstore column
+    private final boolean typedMembers;
+    private final ImportPreflight.Policy preflightPolicy;
+    // the estimates from the table statistics, null if not available
+    private ImportPreflight preflight;
     
     public OSMPostgisReader(GraphHopperStorage ghStorage, Map<String, Object> postgisParams) {
         this.postgisParams = postgisParams;
@@ -145,17 +241,64 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
         this.graph = ghStorage;
         this.nodeAccess = graph.getNodeAccess();
         this.encodingManager = ghStorage.getEncodingManager();
+        this.wayPoints = new PointList(64, nodeAccess.is3D());
+        this.pillarPoints = new PointList(64, nodeAccess.is3D());
 
         osmNodeIdToInternalNodeMap = new GHLongIntBTree(200);
-        osmNodeIdToNodeFlagsMap = new GHLongLongHashMap(200, .5f);
-        osmWayIdToRouteWeightMap = new GHLongLongHashMap(200, .5f);
-        pillarInfo = new PillarInfo(nodeAccess.is3D(), ghStorage.getDirectory());
+        osmNodeIdToNodeFlagsMap = new DataAccessLongLongMap(mapDirectory, "tmp_node_flags", DAType.RAM, 200, 0);
+        osmWayIdToRouteWeightMap = new DataAccessLongLongMap(mapDirectory, "tmp_relation_flags", DAType.RAM, 200, 0);
         tempRelFlags = encodingManager.createRelationFlags();
         if (tempRelFlags.length != 2)
             throw new IllegalArgumentException("Cannot use relation flags with != 2 integers");
 
         tcs = graph.getTurnCostStorage();
-        
+
+        columnMapping = ColumnMapping.parse(Utils.getString(postgisParams, "custom_columns", ColumnMapping.DEFAULT_MAPPING)).init(encodingManager);
+        if (Utils.getBool(postgisParams, "pushdown_filter", false)) {
+            wayFilter = ImportFilter.forWays(encodingManager);
+            relationFilter = ImportFilter.forRelations();
+            if (wayFilter == null)
+                LOGGER.info("Cannot derive a way filter for the encoders " + encodingManager + ", reading all ways");
+        } else {
+            wayFilter = null;
+            relationFilter = null;
+        }
+        consistentSnapshot = Utils.getBool(postgisParams, "consistent_snapshot", false);
+        readConnections = Math.max(1, Utils.getInt(postgisParams, "read_connections", 1));
+        importMode = Utils.getString(postgisParams, "import_mode", "memory");
+        if (!Arrays.asList("memory", "external_sort", "db_classify", "inline_coordinates").contains(importMode))
+            throw new IllegalArgumentException("Unknown postgis.import_mode " + importMode);
+        externalSort = "external_sort".equals(importMode);
+        databaseClassification = "db_classify".equals(importMode);
+        inlineCoordinates = "inline_coordinates".equals(importMode);
+        // without a filter the database would count the nodes of all ways, e.g. of buildings, and split the roads there
+        if ((databaseClassification || inlineCoordinates) && wayFilter == null)
+            throw new IllegalArgumentException("postgis.import_mode " + importMode + " requires postgis.pushdown_filter and "
+                    + "encoders a way filter can be derived from, see ImportFilter.forWays");
+        String snapshotLocation = Utils.getString(postgisParams, "snapshot_file", "");
+        snapshotFile = snapshotLocation.isEmpty() ? null : new File(snapshotLocation);
+        if (snapshotFile != null && (databaseClassification || inlineCoordinates))
+            throw new IllegalArgumentException("postgis.import_mode " + importMode + " requires the database and cannot be used with postgis.snapshot_file");
+        storeOsmIds = Utils.getBool(postgisParams, "osm_id_index", false);
+        int encodingCacheSize = Utils.getInt(postgisParams, "encoding_cache_size", 0);
+        encodingCache = encodingCacheSize > 0 ? new EncodingCache(encodingManager, encodingCacheSize) : null;
+        readNodeTags = Utils.getBool(postgisParams, "node_tags", false);
+        if (readNodeTags && (externalSort || inlineCoordinates))
+            throw new IllegalArgumentException("postgis.import_mode " + importMode + " does not support barrier nodes and cannot be used with postgis.node_tags");
+        String relationMembersFormat = Utils.getString(postgisParams, "relation_members", "hstore");
+        if (!Arrays.asList("hstore", "typed").contains(relationMembersFormat))
+            throw new IllegalArgumentException("Unknown postgis.relation_members " + relationMembersFormat);
+        typedMembers = "typed".equals(relationMembersFormat);
+        preflightPolicy = ImportPreflight.Policy.parse(Utils.getString(postgisParams, "preflight", "off"));
+        String importStorage = Utils.getString(postgisParams, "import_storage", "heap");
+        if (!Arrays.asList("heap", "scratch").contains(importStorage))
+            throw new IllegalArgumentException("Unknown postgis.import_storage " + importStorage);
+        scratchStorage = "scratch".equals(importStorage);
+        // the coordinates of the pillar nodes are part of the ways
+        if (!inlineCoordinates)
+            pillarInfo = new PillarInfo(nodeAccess.is3D(), ghStorage.getDirectory());
+        long sortBufferBytes = Utils.getInt(postgisParams, "sort_buffer_mb", 256) * Helper.MB;
+        sortBufferPairs = (int) Math.max(1, Math.min(Integer.MAX_VALUE - 8, sortBufferBytes / 16));
     }
     
     protected DataStore openPostGisStore() {
@@ -163,6 +306,9 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
 //            LOGGER.info("Opening DB connection to " + this.postgisParams.get("dbtype") + " " + this.postgisParams.get("host") + ":" + this.postgisParams.get("port").toString() + " to database " + this.postgisParams.get("database") + " schema " + this.postgisParams.get("schema"));
             
             this.postgisParams.put(JDBCDataStoreFactory.FETCHSIZE.key, 100);
+            // every range reader of the up to three concurrent reads needs its own connection, plus the one holding the
+            // exported snapshot
+            this.postgisParams.put(JDBCDataStoreFactory.MAXCONN.key, Math.max(10, 3 * readConnections + 2));
             DataStore ds = DataStoreFinder.getDataStore(this.postgisParams);
             if (ds == null)
                 throw new IllegalArgumentException("Error Connecting to Database ");
@@ -198,21 +344,58 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
 //        if (!osmFile.exists())
 //            throw new IllegalStateException("Your specified OSM file does not exist:" + osmFile.getAbsolutePath());
 
-        DataStore dataStore = openPostGisStore();
-
-        StopWatch sw1 = new StopWatch().start();
-        preProcess(dataStore);
-        sw1.stop();
+        if (snapshotFile != null) {
+            // imports of several graphs can share the file, the first one exports it
+            synchronized (SNAPSHOT_EXPORT_LOCK) {
+                String source = describeSnapshotSource();
+                if (!snapshotFile.exists()) {
+                    writeSnapshotFile(snapshotFile, source);
+                } else if (source != null && !source.equals(readSnapshotSource(snapshotFile))) {
+                    LOGGER.info("The tables or the settings changed since the snapshot file " + snapshotFile
+                            + " was exported, exporting it again");
+                    writeSnapshotFile(snapshotFile, source);
+                }
+            }
+            LOGGER.info("Reading the tables from the snapshot file " + snapshotFile);
+            snapshotReader = new ColumnarSnapshotReader(snapshotFile, snapshotBlockCache);
+        }
 
-        StopWatch sw2 = new StopWatch().start();
+        DataStore dataStore = snapshotReader == null ? openPostGisStore() : null;
+        StopWatch sw1 = new StopWatch();
+        StopWatch sw2 = new StopWatch();
         try {
-            writeOsmToGraph(dataStore);
-        } catch (InterruptedException ex) {
-            java.util.logging.Logger.getLogger(OSMPostgisReader.class.getName()).log(Level.SEVERE, null, ex);
+            // all passes read the same snapshot, so that e.g. ways never reference nodes that were inserted later
+            if (consistentSnapshot && dataStore != null)
+                snapshot = PostgisSnapshot.export(dataStore);
+            if (preflightPolicy != ImportPreflight.Policy.OFF && dataStore != null)
+                runPreflight(dataStore);
+            createImportStorage();
+
+            sw1.start();
+            preProcess(dataStore);
+            sw1.stop();
+
+            sw2.start();
+            try {
+                writeOsmToGraph(dataStore);
+            } catch (InterruptedException ex) {
+                java.util.logging.Logger.getLogger(OSMPostgisReader.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            sw2.stop();
+        } finally {
+            if (snapshot != null) {
+                snapshot.close();
+                snapshot = null;
+            }
+            if (snapshotReader != null) {
+                snapshotReader.close();
+                snapshotReader = null;
+            }
+            if (dataStore != null)
+                dataStore.dispose();
+            // finishedReading already removed it unless the import failed
+            removeScratchDirectory();
         }
-        sw2.stop();
-        
-        dataStore.dispose();
 
         LOGGER.info("time pass1:" + (int) sw1.getSeconds() + "s, "
                 + "pass2:" + (int) sw2.getSeconds() + "s, "
@@ -220,81 +403,320 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
     }
 
     /**
-     * Preprocessing of OSM file to select nodes which are used for highways. This allows a more
-     * compact graph data structure.
+     * Estimates the size of the import from the table statistics, presizes the relation maps and checks that the
+     * import fits into the heap. Depending on postgis.preflight a heap that is too small is logged, fails the import
+     * or switches the memory and db_classify modes to external_sort.
      */
-    void preProcess(DataStore dataStore) {
-        LOGGER.info("Starting to process OSM db");
-        long tmpWayCounter = 1;
-        long tmpRelationCounter = 1;
-        FeatureIterator<SimpleFeature>nodes = getFeatureIterator(dataStore, "planet_osm_ways_import");
-        
-         while (nodes.hasNext()) {
-            SimpleFeature node = nodes.next();     
+    private void runPreflight(DataStore dataStore) {
+        String memberCount = typedMembers ? "coalesce(array_length(" + RelationMembers.REFS_COLUMN + ", 1), 0)"
+                : "coalesce(array_length(akeys(" + RelationMembers.HSTORE_COLUMN + "), 1), 0)";
+        Transaction transaction = beginTransaction("preflight");
+        try {
+            Connection connection = ((JDBCDataStore) dataStore).getConnection(transaction);
+            preflight = ImportPreflight.read(connection, Utils.qualifiedTable(postgisParams, NODES_TABLE),
+                    Utils.qualifiedTable(postgisParams, WAYS_TABLE), Utils.qualifiedTable(postgisParams, RELATIONS_TABLE),
+                    wayFilter, memberCount);
+        } catch (IOException | SQLException e) {
+            throw Utils.asUnchecked(e);
+        } finally {
+            PostgisSnapshot.closeQuietly(transaction);
+        }
+        if (preflight == null)
+            return;
 
-            ReaderWay way = new ReaderWay((long) node.getProperty("osm_id").getValue());
-//            LOGGER.info("ATTRIBUTES " + node.getProperty("tags").getValue().getClass());
-            long[] wayParsedNodes = Utils.LongsToPrimitive((Long[]) node.getProperty("nodes").getValue());
-            way.getNodes().add(wayParsedNodes);
-            
-            HStore tags = (HStore) node.getProperty("tags").getValue();
-            way.setTags(tags);
-            
-            boolean valid = filterWay(way);
-            if (valid) {
-//                LongIndexedContainer wayNodes = way.getNodes();
-                int s = wayParsedNodes.length;
-                for (int index = 0; index < s; index++) {
-                    prepareHighwayNode(wayParsedNodes[index]);
+        LOGGER.info("Preflight estimate " + preflight);
+        if (preflight.getRestrictions() > 0)
+            osmWayIdSet = new GHLongHashSet((int) Math.min(Integer.MAX_VALUE / 4, 2 * preflight.getRestrictions()));
+
+        Runtime runtime = Runtime.getRuntime();
+        long freeHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        long sortBufferBytes = (long) sortBufferPairs * 16;
+        boolean graphInHeap = ghStorage.getDirectory().getDefaultType().isInMemory();
+        long heapBytes = preflight.getHeapBytes(importMode, sortBufferBytes, encodingManager.getBytesForFlags(),
+                nodeAccess.is3D(), scratchStorage, graphInHeap);
+        LOGGER.info("Preflight estimate for postgis.import_mode " + importMode + ": heap " + heapBytes / Helper.MB
+                + "MB of " + freeHeap / Helper.MB + "MB free, graph " + preflight.getGraphBytes(encodingManager.getBytesForFlags(),
+                nodeAccess.is3D()) / Helper.MB + "MB" + (graphInHeap ? " (in heap)" : " (memory mapped)")
+                + ", scratch directory " + preflight.getScratchBytes(importMode, nodeAccess.is3D(), scratchStorage) / Helper.MB + "MB");
+        if (ImportPreflight.fitsIntoHeap(heapBytes, freeHeap))
+            return;
+
+        String message = "The import needs about " + heapBytes / Helper.MB + "MB heap but only " + freeHeap / Helper.MB
+                + "MB are free. Increase -Xmx, use postgis.import_mode: external_sort, postgis.import_storage: scratch"
+                + (graphInHeap ? " or a memory mapped graph (graph.dataaccess: MMAP)" : "");
+        switch (preflightPolicy) {
+            case WARN:
+                LOGGER.warn(message);
+                return;
+            case FAIL:
+                throw new IllegalStateException(message);
+            default:
+                // external_sort does not support barrier nodes
+                if (externalSort || inlineCoordinates || readNodeTags)
+                    throw new IllegalStateException(message);
+                long externalSortBytes = preflight.getHeapBytes("external_sort", sortBufferBytes,
+                        encodingManager.getBytesForFlags(), nodeAccess.is3D(), scratchStorage, graphInHeap);
+                if (!ImportPreflight.fitsIntoHeap(externalSortBytes, freeHeap))
+                    throw new IllegalStateException(message);
+                LOGGER.warn("The import needs about " + heapBytes / Helper.MB + "MB heap but only " + freeHeap / Helper.MB
+                        + "MB are free, switching postgis.import_mode from " + importMode + " to external_sort");
+                importMode = "external_sort";
+                externalSort = true;
+                databaseClassification = false;
+        }
+    }
+
+    /**
+     * Creates the maps of the import, presized with the estimates of the preflight if available. With
+     * postgis.import_storage: scratch the node map, the node and relation flags and the pillar coordinates are stored
+     * in the scratch directory, i.e. memory mapped with the default postgis.scratch_storage, so the heap stays small.
+     */
+    private void createImportStorage() {
+        if (!scratchStorage && (preflight == null || preflight.getRouteWayMembers() == 0))
+            return;
+
+        DAType type = DAType.RAM;
+        if (scratchStorage) {
+            getScratchDirectory();
+            mapDirectory = scratchDirectory;
+            type = scratchDirectory.getDefaultType();
+            long expectedNodes = preflight == null || externalSort ? 0
+                    : inlineCoordinates ? preflight.getTowerNodes() : preflight.getUsedNodes();
+            osmNodeIdToInternalNodeMap = new DataAccessLongIntMap(scratchDirectory, "tmp_node_map", type, expectedNodes, EMPTY_NODE);
+            osmNodeIdToNodeFlagsMap.release();
+            osmNodeIdToNodeFlagsMap = new DataAccessLongLongMap(scratchDirectory, "tmp_node_flags", type, 200, 0);
+            if (pillarInfo != null) {
+                pillarInfo.clear();
+                pillarInfo = new PillarInfo(nodeAccess.is3D(), scratchDirectory);
+            }
+            LOGGER.info("Storing the import maps in " + scratchLocation + " (" + type + ")");
+        }
+        osmWayIdToRouteWeightMap.release();
+        osmWayIdToRouteWeightMap = new DataAccessLongLongMap(mapDirectory, "tmp_relation_flags", type,
+                preflight == null ? 200 : preflight.getRouteWayMembers(), 0);
+    }
+
+    /**
+     * Describes the source of the snapshot file: the settings that change what is read and the state of the tables.
+     * The state of a table is its file node, which changes e.g. with TRUNCATE or VACUUM FULL, and the number of
+     * inserted, updated and deleted rows counted by the statistics of PostgreSQL. Resetting the statistics only makes
+     * the next import export the file again.
+     *
+     * @return the description or null if the database cannot be reached
+     */
+    String describeSnapshotSource() {
+        StringBuilder source = new StringBuilder();
+        for (String key : SNAPSHOT_PARAMS) {
+            source.append(key).append('=').append(Utils.getString(postgisParams, key, "")).append('\n');
+        }
+        DataStore dataStore;
+        try {
+            dataStore = openPostGisStore();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Cannot check if the snapshot file " + snapshotFile + " is up to date", e);
+            return null;
+        }
+        Transaction transaction = new DefaultTransaction("snapshot_source");
+        try {
+            Connection connection = ((JDBCDataStore) dataStore).getConnection(transaction);
+            try (PreparedStatement statement = connection.prepareStatement("select c.relfilenode, s.n_tup_ins,"
+                    + " s.n_tup_upd, s.n_tup_del from pg_class c left join pg_stat_all_tables s on s.relid = c.oid"
+                    + " where c.oid = to_regclass(?)")) {
+                for (String table : new String[]{NODES_TABLE, WAYS_TABLE, RELATIONS_TABLE}) {
+                    statement.setString(1, Utils.qualifiedTable(postgisParams, table));
+                    source.append(table).append('=');
+                    try (ResultSet rs = statement.executeQuery()) {
+                        if (rs.next())
+                            source.append(rs.getLong(1)).append(',').append(rs.getLong(2)).append(',')
+                                    .append(rs.getLong(3)).append(',').append(rs.getLong(4));
+                    }
+                    source.append('\n');
+                }
+            }
+            return source.toString();
+        } catch (IOException | SQLException e) {
+            LOGGER.warn("Cannot check if the snapshot file " + snapshotFile + " is up to date", e);
+            return null;
+        } finally {
+            PostgisSnapshot.closeQuietly(transaction);
+            dataStore.dispose();
+        }
+    }
+
+    /**
+     * @return the source the snapshot file was exported from, see describeSnapshotSource, or null if it is unknown
+     */
+    static String readSnapshotSource(File file) throws IOException {
+        File sourceFile = getSnapshotSourceFile(file);
+        return sourceFile.exists() ? new String(Files.readAllBytes(sourceFile.toPath()), StandardCharsets.UTF_8) : null;
+    }
+
+    private static File getSnapshotSourceFile(File file) {
+        return new File(file.getPath() + ".source");
+    }
+
+    /**
+     * Exports the complete import tables ordered by their ids into the snapshot file and stores the source next to
+     * it. The file is written under a temporary name first, so an interrupted export is not used by the next import.
+     */
+    void writeSnapshotFile(File file, String source) throws IOException {
+        LOGGER.info("Exporting the tables into the snapshot file " + file);
+        String[] wayColumns = getWayColumns();
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataStore dataStore = openPostGisStore();
+        long counter = 0;
+        try (ColumnarSnapshotWriter writer = new ColumnarSnapshotWriter(tmpFile, columnMapping.getColumns())) {
+            if (consistentSnapshot)
+                snapshot = PostgisSnapshot.export(dataStore);
+
+            FeatureIterator<SimpleFeature> features = getOrderedFeatureIterator(dataStore, NODES_TABLE, null, "osm_id", "lat", "lon");
+            try {
+                while (features.hasNext()) {
+                    SimpleFeature node = features.next();
+                    writer.addNode((long) node.getProperty("osm_id").getValue(), (double) node.getProperty("lat").getValue(),
+                            (double) node.getProperty("lon").getValue());
+                    if (++counter % 10_000_000 == 0)
+                        LOGGER.info(nf(counter) + " (snapshot nodes) " + Helper.getMemInfo());
+                }
+            } finally {
+                features.close();
+            }
+
+            Object[] values = new Object[columnMapping.getColumns().length];
+            features = getOrderedFeatureIterator(dataStore, WAYS_TABLE, null, wayColumns);
+            try {
+                while (features.hasNext()) {
+                    SimpleFeature way = features.next();
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = way.getAttribute(columnMapping.getColumns()[i]);
+                    }
+                    writer.addWay((long) way.getProperty("osm_id").getValue(),
+                            Utils.LongsToPrimitive((Long[]) way.getProperty("nodes").getValue()),
+                            (HStore) way.getProperty("tags").getValue(), values);
                 }
+            } finally {
+                features.close();
+            }
 
-                if (++tmpWayCounter % 100_000 == 0) {
-                    LOGGER.info(nf(tmpWayCounter) + " (preprocess), osmIdMap:" + nf(getNodeMap().getSize()) + " ("
-                            + getNodeMap().getMemoryUsage() + "MB) " + Helper.getMemInfo());
+            features = getOrderedFeatureIterator(dataStore, RELATIONS_TABLE, null, getRelationColumns());
+            RelationMembers members = new RelationMembers();
+            try {
+                while (features.hasNext()) {
+                    SimpleFeature relation = features.next();
+                    writer.addRelation((long) relation.getProperty("id").getValue(),
+                            (HStore) relation.getProperty("tags").getValue(), readRelationMembers(relation, members));
                 }
-                if (++tmpWayCounter % 1_000_000 == 0) {
-                    System.gc();
+            } finally {
+                features.close();
+            }
+
+            if (readNodeTags) {
+                features = getOrderedFeatureIterator(dataStore, NODES_TABLE, ImportFilter.forTaggedNodes(), "osm_id", "tags");
+                try {
+                    while (features.hasNext()) {
+                        SimpleFeature node = features.next();
+                        writer.addTaggedNode((long) node.getProperty("osm_id").getValue(), (HStore) node.getProperty("tags").getValue());
+                    }
+                } finally {
+                    features.close();
                 }
             }
+        } finally {
+            if (snapshot != null) {
+                snapshot.close();
+                snapshot = null;
+            }
+            dataStore.dispose();
         }
-        nodes.close();
-         
-        nodes = getFeatureIterator(dataStore, "planet_osm_rels_import");
-        while (nodes.hasNext()) {
-            SimpleFeature node = nodes.next();
+        // without a source the next import checks the file again, so an interruption cannot mark an old file as current
+        File sourceFile = getSnapshotSourceFile(file);
+        Files.deleteIfExists(sourceFile.toPath());
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        if (source != null)
+            Files.write(sourceFile.toPath(), source.getBytes(StandardCharsets.UTF_8));
+        LOGGER.info("Exported " + nf(counter) + " nodes into " + file + " (" + file.length() / Helper.MB + "MB)");
+    }
 
-            ReaderRelation relation = new ReaderRelation((long) node.getProperty("id").getValue());
-//            LOGGER.info("ATTRIBUTES " + node.getProperty("tags").getValue().getClass());
-            
-            HStore tags = (HStore) node.getProperty("tags").getValue();
-            relation.setTags(tags);
-            
-            HStore members = (HStore) node.getProperty("members").getValue();
-            members.keySet().forEach(key -> {
-                String role = members.get(key);
-                int type = TYPE_DECODE.indexOf(key.charAt(0));
-                long ref = Long.parseLong(key.substring(1));
-                
-                ReaderRelation.Member member = new ReaderRelation.Member(type, ref, role);
-                relation.add(member);
-            });
-            
-            if (!relation.isMetaRelation() && relation.hasTag("type", "route"))
-                prepareWaysWithRelationInfo(relation);
+    /**
+     * @return the section of the snapshot file that contains the specified table
+     */
+    private static int getSnapshotSection(String tableName) {
+        switch (tableName) {
+            case NODES_TABLE:
+                return ColumnarSnapshotWriter.NODES;
+            case WAYS_TABLE:
+                return ColumnarSnapshotWriter.WAYS;
+            case RELATIONS_TABLE:
+                return ColumnarSnapshotWriter.RELATIONS;
+            default:
+                throw new IllegalArgumentException("The snapshot file does not contain the table " + tableName);
+        }
+    }
 
-            if (relation.hasTag("type", "restriction")) {
-                prepareRestrictionRelation(relation);
-            }
+    private String[] getRelationColumns() {
+        if (typedMembers)
+            return new String[]{"id", "tags", RelationMembers.TYPES_COLUMN, RelationMembers.REFS_COLUMN, RelationMembers.ROLES_COLUMN};
+        return new String[]{"id", "tags", RelationMembers.HSTORE_COLUMN};
+    }
+
+    /**
+     * Reads the members of the specified relation feature into the specified members.
+     */
+    private RelationMembers readRelationMembers(SimpleFeature relation, RelationMembers members) {
+        if (typedMembers)
+            return members.readArrays((Object[]) relation.getAttribute(RelationMembers.TYPES_COLUMN),
+                    (Object[]) relation.getAttribute(RelationMembers.REFS_COLUMN),
+                    (Object[]) relation.getAttribute(RelationMembers.ROLES_COLUMN));
+        return members.readHStore((HStore) relation.getAttribute(RelationMembers.HSTORE_COLUMN));
+    }
+
+    private String[] getWayColumns() {
+        String[] wayColumns = new String[3 + columnMapping.getColumns().length];
+        wayColumns[0] = "osm_id";
+        wayColumns[1] = "nodes";
+        wayColumns[2] = "tags";
+        System.arraycopy(columnMapping.getColumns(), 0, wayColumns, 3, columnMapping.getColumns().length);
+        return wayColumns;
+    }
 
-            if (++tmpRelationCounter % 100_000 == 0) {
-                LOGGER.info(nf(tmpRelationCounter) + " (preprocess), osmWayMap:" + nf(getRelFlagsMapSize())
-                        + " " + Helper.getMemInfo());
+    /**
+     * Preprocessing of OSM file to select nodes which are used for highways. This allows a more
+     * compact graph data structure.
+     */
+    void preProcess(DataStore dataStore) {
+        LOGGER.info("Starting to process OSM db");
+        if (externalSort)
+            viaNodeIds = new GHLongHashSet();
+        // the relations are read concurrently on their own connection. Only this task writes the ways of the
+        // restrictions and the via nodes, which are not used before the second pass. The encoders are not thread safe,
+        // so the route relations are collected and their relation flags are created by this thread after the ways
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<RouteRelation>> relations = executor.submit(() -> preProcessRelations(dataStore));
+            if (databaseClassification || inlineCoordinates) {
+                LOGGER.info("The nodes are classified by the database, skipping the ways");
+            } else {
+                FeatureIterator<SimpleFeature> nodes;
+                if (externalSort) {
+                    wayNodeSorter = new ExternalLongPairSorter(getScratchDirectory(), sortBufferPairs);
+                    // the second pass has to see the ways in the same order
+                    nodes = getOrderedFeatureIterator(dataStore, WAYS_TABLE, wayFilter, "osm_id", "nodes", "tags");
+                } else {
+                    nodes = getFeatureIterator(dataStore, WAYS_TABLE, wayFilter, "osm_id", "nodes", "tags");
+                }
+                try {
+                    preProcessWays(nodes);
+                } finally {
+                    nodes.close();
+                }
             }
-            if (++tmpRelationCounter % 1_000_000 == 0) {
-                System.gc();
+            for (RouteRelation routeRelation : await(relations)) {
+                prepareWaysWithRelationInfo(routeRelation.relation, routeRelation.wayIds);
             }
+            LOGGER.info("relation flags of " + nf(getRelFlagsMapSize()) + " ways, " + Helper.getMemInfo());
+        } finally {
+            executor.shutdownNow();
         }
-        nodes.close();
 //        try (OSMInput in = openOsmInputFile(osmFile)) {
 //            long tmpWayCounter = 1;
 //            long tmpRelationCounter = 1;
@@ -339,11 +761,87 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
 //        }
     }
 
-    private void prepareRestrictionRelation(ReaderRelation relation) {
-        List<OSMTurnRelation> turnRelations = createTurnRelations(relation);
+    /**
+     * Collects the ways and via nodes of the turn restrictions. Does not call the encoders, as they are used by the
+     * way scan at the same time.
+     *
+     * @return the route relations with the ids of their ways
+     */
+    private List<RouteRelation> preProcessRelations(DataStore dataStore) {
+        long tmpRelationCounter = 1;
+        List<RouteRelation> routeRelations = new ArrayList<>();
+        RelationMembers members = new RelationMembers();
+        FeatureIterator<SimpleFeature> nodes = getFeatureIterator(dataStore, RELATIONS_TABLE, relationFilter, getRelationColumns());
+        try {
+            while (nodes.hasNext()) {
+                SimpleFeature node = nodes.next();
+
+                // the members are not added to the relation, only the primitive members are used
+                ReaderRelation relation = new ReaderRelation((long) node.getProperty("id").getValue());
+                HStore tags = (HStore) node.getProperty("tags").getValue();
+                relation.setTags(tags);
+                readRelationMembers(node, members);
+
+                if (!members.isMetaRelation() && relation.hasTag("type", "route"))
+                    routeRelations.add(new RouteRelation(relation, members));
+
+                if (relation.hasTag("type", "restriction"))
+                    prepareRestrictionRelation(relation, members);
+
+                if (++tmpRelationCounter % 100_000 == 0) {
+                    LOGGER.info(nf(tmpRelationCounter) + " (preprocess), route relations:" + nf(routeRelations.size())
+                            + " " + Helper.getMemInfo());
+                }
+            }
+        } finally {
+            nodes.close();
+        }
+        return routeRelations;
+    }
+
+    /**
+     * A route relation and the ids of its way members, the other members are not needed for the relation flags.
+     */
+    private static final class RouteRelation {
+        final ReaderRelation relation;
+        final long[] wayIds;
+
+        RouteRelation(ReaderRelation relation, RelationMembers members) {
+            this.relation = relation;
+            int count = 0;
+            for (int i = 0; i < members.size(); i++) {
+                if (members.getType(i) == ReaderElement.WAY)
+                    count++;
+            }
+            this.wayIds = new long[count];
+            for (int i = 0, j = 0; i < members.size(); i++) {
+                if (members.getType(i) == ReaderElement.WAY)
+                    wayIds[j++] = members.getRef(i);
+            }
+        }
+    }
+
+    /**
+     * Waits for the specified task of the import and rethrows its exception.
+     */
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a concurrent read", e);
+        } catch (ExecutionException e) {
+            throw Utils.asUnchecked(e.getCause());
+        }
+    }
+
+    private void prepareRestrictionRelation(ReaderRelation relation, RelationMembers members) {
+        List<OSMTurnRelation> turnRelations = createTurnRelations(relation, members);
         for (OSMTurnRelation turnRelation : turnRelations) {
             getOsmWayIdSet().add(turnRelation.getOsmIdFrom());
             getOsmWayIdSet().add(turnRelation.getOsmIdTo());
+            if (viaNodeIds != null)
+                viaNodeIds.add(turnRelation.getViaOsmNodeId());
         }
     }
 
@@ -361,6 +859,387 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
         return edgeIdToOsmWayIdMap;
     }
 
+    /**
+     * Classifies the nodes of all accepted ways. With more than one worker thread this thread fetches and filters
+     * the ways, as the encoders are not thread safe, and the workers classify the nodes of the accepted ways in a
+     * StripedLongIntMap. The map is converted into a GHLongIntBTree afterwards, so the second pass reads it without
+     * locks.
+     */
+    private void preProcessWays(FeatureIterator<SimpleFeature> ways) {
+        long wayCounter = 1;
+        // the positions of the way nodes require the order of the ways, the scratch node map is not thread safe
+        if (workerThreads <= 1 || externalSort || scratchStorage) {
+            while (ways.hasNext()) {
+                long[] wayNodes = getAcceptedWayNodes(ways.next());
+                if (wayNodes == null)
+                    continue;
+                if (externalSort) {
+                    addWayNodePositions(wayNodes);
+                } else {
+                    for (long wayNode : wayNodes) {
+                        prepareHighwayNode(wayNode);
+                    }
+                }
+                logPreProcessProgress(++wayCounter);
+                if (wayCounter % 1_000_000 == 0)
+                    System.gc();
+            }
+            return;
+        }
+
+        // the classification of a node has to be atomic as several threads can see the same node
+        StripedLongIntMap nodeMap = new StripedLongIntMap(workerThreads);
+        osmNodeIdToInternalNodeMap = nodeMap;
+        ExecutorService executor = Executors.newFixedThreadPool(workerThreads);
+        // limit the number of batches waiting for a worker
+        Semaphore permits = new Semaphore(2 * workerThreads);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        try {
+            List<long[]> batch = new ArrayList<>(PREPROCESS_BATCH_SIZE);
+            while (error.get() == null && ways.hasNext()) {
+                long[] wayNodes = getAcceptedWayNodes(ways.next());
+                if (wayNodes != null) {
+                    batch.add(wayNodes);
+                    logPreProcessProgress(++wayCounter);
+                }
+                if (batch.size() < PREPROCESS_BATCH_SIZE && ways.hasNext())
+                    continue;
+
+                permits.acquire();
+                List<long[]> tmpBatch = batch;
+                executor.execute(() -> {
+                    try {
+                        for (long[] tmpWayNodes : tmpBatch) {
+                            for (long wayNode : tmpWayNodes) {
+                                nodeMap.update(wayNode, OSMPostgisReader::classifyHighwayNode);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    } finally {
+                        permits.release();
+                    }
+                });
+                batch = new ArrayList<>(PREPROCESS_BATCH_SIZE);
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while classifying the nodes", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        if (error.get() != null)
+            throw Utils.asUnchecked(error.get());
+        osmNodeIdToInternalNodeMap = nodeMap.toBTree(200);
+    }
+
+    /**
+     * @return the nodes of the way or null if the way is not accepted
+     */
+    private long[] getAcceptedWayNodes(SimpleFeature feature) {
+        ReaderWay way = new ReaderWay((long) feature.getProperty("osm_id").getValue());
+        long[] wayParsedNodes = Utils.LongsToPrimitive((Long[]) feature.getProperty("nodes").getValue());
+        way.getNodes().add(wayParsedNodes);
+
+        HStore tags = (HStore) feature.getProperty("tags").getValue();
+        way.setTags(tags);
+        return filterWay(way) ? wayParsedNodes : null;
+    }
+
+    private void logPreProcessProgress(long wayCounter) {
+        if (wayCounter % 100_000 != 0)
+            return;
+        if (externalSort)
+            LOGGER.info(nf(wayCounter) + " (preprocess), way nodes:" + nf(wayNodePositionCount) + ", sorted runs:"
+                    + wayNodeSorter.getRunCount() + " " + Helper.getMemInfo());
+        else
+            LOGGER.info(nf(wayCounter) + " (preprocess), osmIdMap:" + nf(getNodeMap().getSize()) + " ("
+                    + getNodeMap().getMemoryUsage() + "MB) " + Helper.getMemInfo());
+    }
+
+    /**
+     * Instead of counting the ways of every node in the node map, every way node is written with its position to the
+     * external sorter. The position of a way node is the number of way nodes before it, where the ways are ordered
+     * by their id. The lowest bit marks the first and last node of a way, as they always become tower nodes.
+     */
+    private void addWayNodePositions(long[] wayNodes) {
+        int last = wayNodes.length - 1;
+        for (int i = 0; i <= last; i++) {
+            long endFlag = i == 0 || i == last ? 1 : 0;
+            wayNodeSorter.add(wayNodes[i], wayNodePositionCount++ << 1 | endFlag);
+        }
+    }
+
+    /**
+     * Merge joins the sorted way nodes with the nodes ordered by their id. A node is a tower node if it ends a way or
+     * is used more than once, in this case it is added to the graph directly. The state and the coordinates are
+     * written to every position of the node, so the ways of the second pass read them sequentially. Only the via nodes
+     * of turn restrictions are kept in the node map.
+     */
+    private void mergeWayNodes(DataStore dataStore) {
+        wayNodeSorter.sort();
+        LOGGER.info("sorted " + nf(wayNodeSorter.getCount()) + " way nodes in " + wayNodeSorter.getRunCount() + " runs");
+        wayNodePositions = scratchDirectory.find("tmp_way_node_positions");
+        // the file is new, as the scratch directory is created per import, and new segments are zeroed, i.e. all
+        // positions are POSITION_MISSING until their node is found
+        wayNodePositions.create(Math.max(1, wayNodePositionCount) * POSITION_BYTES);
+
+        FeatureIterator<SimpleFeature> nodes = getOrderedFeatureIterator(dataStore, NODES_TABLE, null, "osm_id", "lat", "lon");
+        LongArrayList positions = new LongArrayList();
+        long counter = 1;
+        try {
+            boolean hasWayNode = wayNodeSorter.next();
+            while (hasWayNode && nodes.hasNext()) {
+                SimpleFeature feature = nodes.next();
+                long osmId = (long) feature.getProperty("osm_id").getValue();
+                // positions of nodes that do not exist stay missing
+                while (hasWayNode && wayNodeSorter.getKey() < osmId) {
+                    hasWayNode = wayNodeSorter.next();
+                }
+                if (!hasWayNode || wayNodeSorter.getKey() != osmId)
+                    continue;
+
+                positions.clear();
+                boolean tower = false;
+                while (hasWayNode && wayNodeSorter.getKey() == osmId) {
+                    tower |= (wayNodeSorter.getValue() & 1) != 0;
+                    positions.add(wayNodeSorter.getValue() >>> 1);
+                    hasWayNode = wayNodeSorter.next();
+                }
+                tower |= positions.size() > 1;
+
+                ReaderNode node = new ReaderNode(osmId, (double) feature.getProperty("lat").getValue(),
+                        (double) feature.getProperty("lon").getValue());
+                double ele = getElevation(node);
+                int state = POSITION_PILLAR;
+                if (tower) {
+                    int towerId = createTowerNode(osmId, node.getLat(), node.getLon(), ele);
+                    state = towerId + 1;
+                    if (viaNodeIds.contains(osmId))
+                        getNodeMap().put(osmId, -towerId - 3);
+                }
+                for (int i = 0; i < positions.size(); i++) {
+                    long pointer = positions.get(i) * POSITION_BYTES;
+                    wayNodePositions.setInt(pointer, state);
+                    wayNodePositions.setInt(pointer + 4, Helper.degreeToInt(node.getLat()));
+                    wayNodePositions.setInt(pointer + 8, Helper.degreeToInt(node.getLon()));
+                    wayNodePositions.setInt(pointer + 12, Helper.eleToInt(ele));
+                }
+                locations++;
+                if (++counter % 1_000_000 == 0)
+                    LOGGER.info(nf(counter) + " (merge), locs:" + nf(locations) + ", towers:" + nf(nextTowerId) + " " + Helper.getMemInfo());
+            }
+        } finally {
+            nodes.close();
+            wayNodeSorter.close();
+            wayNodeSorter = null;
+        }
+    }
+
+    /**
+     * @param osmId the id of the OSM node or OsmIdIndex.UNKNOWN
+     */
+    private int createTowerNode(long osmId, double lat, double lon, double ele) {
+        if (nodeAccess.is3D())
+            nodeAccess.setNode(nextTowerId, lat, lon, ele);
+        else
+            nodeAccess.setNode(nextTowerId, lat, lon);
+        if (osmIdIndex != null) {
+            long originalOsmId = barrierCopyOsmIds.get(osmId);
+            osmIdIndex.setNodeId(nextTowerId, originalOsmId == 0 ? osmId : originalOsmId);
+        }
+        return nextTowerId++;
+    }
+
+    private double getPositionLatitude(long position) {
+        if (wayNodePositions.getInt(position * POSITION_BYTES) == POSITION_MISSING)
+            return Double.NaN;
+        return Helper.intToDegree(wayNodePositions.getInt(position * POSITION_BYTES + 4));
+    }
+
+    private double getPositionLongitude(long position) {
+        if (wayNodePositions.getInt(position * POSITION_BYTES) == POSITION_MISSING)
+            return Double.NaN;
+        return Helper.intToDegree(wayNodePositions.getInt(position * POSITION_BYTES + 8));
+    }
+
+    /**
+     * Like addOSMWay, but for the way nodes from the specified position on, which were resolved by mergeWayNodes.
+     * Missing nodes are skipped. Barriers are not supported in this mode.
+     */
+    void addSortedWay(long firstPosition, int size, IntsRef flags, long wayOsmId, List<EdgeIteratorState> newEdges) {
+        PointList pointList = wayPoints;
+        pointList.clear();
+        int fromNode = -1;
+        for (long position = firstPosition; position < firstPosition + size; position++) {
+            long pointer = position * POSITION_BYTES;
+            int state = wayNodePositions.getInt(pointer);
+            if (state == POSITION_MISSING)
+                continue;
+
+            double lat = Helper.intToDegree(wayNodePositions.getInt(pointer + 4));
+            double lon = Helper.intToDegree(wayNodePositions.getInt(pointer + 8));
+            double ele = Helper.intToEle(wayNodePositions.getInt(pointer + 12));
+            if (state == POSITION_PILLAR) {
+                // pillar nodes before the first tower node do not belong to an edge
+                if (fromNode >= 0)
+                    addPoint(pointList, lat, lon, ele);
+                continue;
+            }
+
+            fromNode = addTowerPoint(newEdges, pointList, fromNode, state - 1, lat, lon, ele, flags, wayOsmId);
+        }
+    }
+
+    /**
+     * Like addOSMWay, but with the coordinates and reference counts read by readInlineCoordinates. Only tower nodes
+     * used by more than one way are stored in the node map, the other nodes do not need an id.
+     */
+    void addInlineWay(LongIndexedContainer osmNodeIds, IntsRef flags, long wayOsmId, List<EdgeIteratorState> newEdges) {
+        int size = osmNodeIds.size();
+        PointList pointList = wayPoints;
+        pointList.clear();
+        int fromNode = -1;
+        for (int i = 0; i < size; i++) {
+            double lat = inlineLats[i], lon = inlineLons[i];
+            // the node does not exist
+            if (Double.isNaN(lat) || Double.isNaN(lon))
+                continue;
+
+            double ele = eleProvider.getEle(lat, lon);
+            if (inlineCounts[i] <= 1 && i > 0 && i < size - 1) {
+                // pillar nodes before the first tower node do not belong to an edge
+                if (fromNode >= 0)
+                    addPoint(pointList, lat, lon, ele);
+                continue;
+            }
+
+            int towerNode;
+            if (inlineCounts[i] > 1) {
+                long osmNodeId = osmNodeIds.get(i);
+                int id = getNodeMap().get(osmNodeId);
+                if (id < TOWER_NODE) {
+                    towerNode = -id - 3;
+                } else {
+                    towerNode = createTowerNode(osmNodeId, lat, lon, ele);
+                    getNodeMap().put(osmNodeId, -towerNode - 3);
+                }
+            } else {
+                // the end of a single way
+                towerNode = createTowerNode(osmNodeIds.get(i), lat, lon, ele);
+            }
+            fromNode = addTowerPoint(newEdges, pointList, fromNode, towerNode, lat, lon, ele, flags, wayOsmId);
+        }
+    }
+
+    /**
+     * Adds the tower node to the point list and creates the edge from the previous tower node.
+     *
+     * @return the tower node, which is the start of the next edge
+     */
+    private int addTowerPoint(List<EdgeIteratorState> newEdges, PointList pointList, int fromNode, int towerNode,
+                              double lat, double lon, double ele, IntsRef flags, long wayOsmId) {
+        if (fromNode >= 0) {
+            if (towerNode == fromNode) {
+                // loop detected, see #1525 and #1533. The last pillar node becomes a tower node
+                int last = pointList.size() - 1;
+                if (last == 0)
+                    return fromNode;
+
+                int newEndNode = createTowerNode(OsmIdIndex.UNKNOWN, pointList.getLat(last), pointList.getLon(last),
+                        pointList.is3D() ? pointList.getEle(last) : Double.NaN);
+                newEdges.add(addEdge(fromNode, newEndNode, pointList, flags, wayOsmId));
+                pointList.clear();
+                pointList.add(nodeAccess, newEndNode);
+                fromNode = newEndNode;
+            }
+            addPoint(pointList, lat, lon, ele);
+            newEdges.add(addEdge(fromNode, towerNode, pointList, flags, wayOsmId));
+            pointList.clear();
+        }
+        addPoint(pointList, lat, lon, ele);
+        return towerNode;
+    }
+
+    /**
+     * Reads the coordinates and reference counts of the way nodes. Missing nodes have NaN coordinates.
+     */
+    private void readInlineCoordinates(SimpleFeature way, int size) {
+        if (inlineLats.length < size) {
+            inlineLats = new double[size];
+            inlineLons = new double[size];
+            inlineCounts = new long[size];
+        }
+        Double[] lats = (Double[]) way.getProperty("gh_lats").getValue();
+        Double[] lons = (Double[]) way.getProperty("gh_lons").getValue();
+        Long[] counts = (Long[]) way.getProperty("gh_counts").getValue();
+        for (int i = 0; i < size; i++) {
+            inlineLats[i] = lats[i] == null ? Double.NaN : lats[i];
+            inlineLons[i] = lons[i] == null ? Double.NaN : lons[i];
+            inlineCounts[i] = counts[i];
+        }
+    }
+
+    /**
+     * Creates the statement that returns the ways matching the filter with the coordinates of their nodes and how
+     * often every node is used by these ways. The arrays gh_lats, gh_lons and gh_counts are aligned with nodes. Like
+     * in createClassifiedNodesSql a node shared with a way that matches the filter but is rejected by the encoders
+     * becomes a tower node.
+     */
+    static String createInlineWaysSql(String waysTable, String nodesTable, String wayFilter, String[] columns) {
+        return "with ways as ("
+                + " select " + String.join(", ", columns) + " from " + waysTable + " where " + wayFilter
+                + "), counts as ("
+                + " select gh_ref, count(*) as gh_count from ways, unnest(nodes) as gh_ref group by gh_ref"
+                + ")"
+                + " select w.*, c.gh_lats, c.gh_lons, c.gh_counts from ways w cross join lateral ("
+                + " select array_agg(n.lat order by u.gh_index) as gh_lats, array_agg(n.lon order by u.gh_index) as gh_lons,"
+                + " array_agg(k.gh_count order by u.gh_index) as gh_counts"
+                + " from unnest(w.nodes) with ordinality as u(gh_ref, gh_index)"
+                + " join counts k on k.gh_ref = u.gh_ref"
+                + " left join " + nodesTable + " n on n.osm_id = u.gh_ref"
+                + ") c";
+    }
+
+    private static void addPoint(PointList pointList, double lat, double lon, double ele) {
+        if (pointList.is3D())
+            pointList.add(lat, lon, ele);
+        else
+            pointList.add(lat, lon);
+    }
+
+    /**
+     * Every import gets a new directory in postgis.scratch_dir, so concurrent imports and files left by a failed
+     * import are never read or mapped again. The directory is removed in finishedReading.
+     *
+     * @return the directory for temporary files of the import, e.g. the runs of the external sort
+     */
+    private File getScratchDirectory() {
+        if (scratchLocation != null)
+            return scratchLocation;
+
+        String location = Utils.getString(postgisParams, "scratch_dir", "");
+        try {
+            File dir;
+            if (location.isEmpty()) {
+                dir = Files.createTempDirectory("gh_postgis_").toFile();
+            } else {
+                File parent = new File(location);
+                if (!parent.exists() && !parent.mkdirs())
+                    throw new IllegalStateException("Cannot create scratch directory " + parent);
+                dir = Files.createTempDirectory(parent.toPath(), "gh_import_").toFile();
+            }
+            DAType type = DAType.fromString(Utils.getString(postgisParams, "scratch_storage", "MMAP"));
+            scratchDirectory = new GHDirectory(dir.getAbsolutePath(), type);
+            scratchLocation = dir;
+            return dir;
+        } catch (IOException e) {
+            throw Utils.asUnchecked(e);
+        }
+    }
+
     /**
      * Filter ways but do not analyze properties wayNodes will be filled with participating node ids.
      *
@@ -374,110 +1253,279 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
         // ignore multipolygon geometry
         if (!item.hasTags())
             return false;
-        
-        return encodingManager.acceptWay(item, new EncodingManager.AcceptWay());
+
+        boolean cached = encodingCache != null && encodingCache.isCacheable(item);
+        if (cached)
+            return encodingCache.acceptWay(item);
+        EncodingManager.AcceptWay acceptWay = new EncodingManager.AcceptWay();
+        return encodingManager.acceptWay(item, acceptWay);
     }
 
     /**
      * Creates the graph with edges and nodes from the specified osm file.
      */
     private void writeOsmToGraph(DataStore dataStore) throws InterruptedException {
-        int tmp = (int) Math.max(getNodeMap().getSize() / 50, 100);
-        LOGGER.info("creating graph. Found nodes (pillar+tower):" + nf(getNodeMap().getSize()) + ", " + Helper.getMemInfo());
+        // without the way scan in preProcess the number of nodes is not known, the storage grows when necessary
+        long expectedNodes = externalSort ? wayNodePositionCount : getNodeMap().getSize();
+        if (expectedNodes == 0 && preflight != null)
+            expectedNodes = preflight.getUsedNodes();
+        int tmp = (int) Math.min(Integer.MAX_VALUE, Math.max(expectedNodes / 50, 100));
+        LOGGER.info("creating graph. Found nodes (pillar+tower):" + nf(expectedNodes) + ", " + Helper.getMemInfo());
         ghStorage.create(tmp);
-        long counter = 1;
+        if (storeOsmIds) {
+            osmIdIndex = new OsmIdIndex(ghStorage.getDirectory()).create(tmp, tmp);
+            barrierCopyOsmIds = new GHLongLongHashMap(200, .5f);
+        }
+        
+        // the tagged nodes and the turn restrictions do not depend on the nodes and ways, they are read concurrently on
+        // their own connections and applied once the nodes, respectively the edges, exist
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        long counter;
+        try {
+            Future<LongArrayList> taggedNodes = canReadNodeTags() ? executor.submit(() -> readTaggedNodes(dataStore)) : null;
+            Future<List<OSMTurnRelation>> turnRelations = tcs == null ? null : executor.submit(() -> readTurnRelations(dataStore));
+            if (externalSort) {
+                mergeWayNodes(dataStore);
+            } else if (databaseClassification) {
+                readClassifiedNodes(dataStore);
+            } else if (!inlineCoordinates) {
+                readNodes(dataStore);
+            }
+            if (taggedNodes != null)
+                applyNodeFlags(await(taggedNodes));
+
+            counter = readWays(dataStore);
+            if (turnRelations != null)
+                storeTurnRelation(await(turnRelations));
+        } finally {
+            executor.shutdownNow();
+        }
+        
+        finishedReading();
+        if (graph.getNodes() == 0)
+            throw new RuntimeException("Graph after reading OSM must not be empty. Read " + counter + " items and " + locations + " locations");
         
-        FeatureIterator<SimpleFeature>nodes = getFeatureIterator(dataStore, "planet_osm_nodes_import");
+    }
+    
+    /**
+     * Adds the accepted ways to the graph.
+     *
+     * @return the number of read ways
+     */
+    private long readWays(DataStore dataStore) {
+        long counter = 1;
+        String[] wayColumns = getWayColumns();
+        FeatureIterator<SimpleFeature> nodes;
+        if (inlineCoordinates) {
+            String tableName = Utils.createVirtualTable(dataStore, WAYS_TABLE + "_gh_inline", createInlineWaysSql(
+                    Utils.qualifiedTable(postgisParams, WAYS_TABLE), Utils.qualifiedTable(postgisParams, NODES_TABLE),
+                    wayFilter, wayColumns));
+            String[] inlineColumns = Arrays.copyOf(wayColumns, wayColumns.length + 3);
+            inlineColumns[wayColumns.length] = "gh_lats";
+            inlineColumns[wayColumns.length + 1] = "gh_lons";
+            inlineColumns[wayColumns.length + 2] = "gh_counts";
+            // the database parallelizes the join, splitting the query into id ranges would repeat the counting
+            nodes = new TransactionFeatureIterator(dataStore, new Query(tableName, Filter.INCLUDE, inlineColumns),
+                    beginTransaction(tableName));
+        } else if (externalSort) {
+            nodes = getOrderedFeatureIterator(dataStore, WAYS_TABLE, wayFilter, wayColumns);
+        } else {
+            nodes = getFeatureIterator(dataStore, WAYS_TABLE, wayFilter, wayColumns);
+        }
+        LongIntMap nodeFilter = getNodeMap();
+        try {
+            while (nodes.hasNext()) {
+                SimpleFeature node = nodes.next();
+
+                ReaderWay element = new ReaderWay((long) node.getProperty("osm_id").getValue());
+//                LOGGER.info("ATTRIBUTES " + node.getProperty("tags").getValue().getClass());
+                long[] wayNodes = Utils.LongsToPrimitive((Long[]) node.getProperty("nodes").getValue());
+                element.getNodes().add(wayNodes);
+
+                HStore tags = (HStore) node.getProperty("tags").getValue();
+                element.setTags(tags);
+                columnMapping.read(node, element);
+                if (inlineCoordinates)
+                    readInlineCoordinates(node, wayNodes.length);
+
+                this.processElement(element, nodeFilter);
+                if (++counter % 200_000 == 0) {
+                    LOGGER.info(nf(counter) + ", locs:" + nf(locations) + " (" + skippedLocations + ") " + Helper.getMemInfo());
+//                    System.gc();
+                }
+                if (counter % 1_000_000 == 0) {
+                    System.gc();
+                }
+            }
+        } finally {
+            nodes.close();
+        }
+        if (externalSort && wayNodeCursor != wayNodePositionCount)
+            throw new IllegalStateException("The ways changed between the passes, expected " + wayNodePositionCount
+                    + " way nodes but read " + wayNodeCursor);
+        return counter;
+    }
+
+    /**
+     * Reads only the nodes of the accepted ways together with the number of their references, which is counted by
+     * the database. Like in prepareHighwayNode a node used more than once is a tower node, otherwise a pillar node.
+     * The way filter is only a pre filter of the encoders, so a node shared with a way that matches the filter but is
+     * rejected by the encoders becomes a tower node and splits the edges there. The graph can therefore contain more
+     * nodes and edges than with the memory mode, the roads and their flags are the same.
+     */
+    private void readClassifiedNodes(DataStore dataStore) {
+        String sql = createClassifiedNodesSql(Utils.qualifiedTable(postgisParams, WAYS_TABLE),
+                Utils.qualifiedTable(postgisParams, NODES_TABLE), wayFilter);
+        String tableName = Utils.createVirtualTable(dataStore, NODES_TABLE + "_gh_classified", sql);
+        // the database parallelizes the aggregation, splitting the query into id ranges would repeat it
+        FeatureIterator<SimpleFeature> nodes = new TransactionFeatureIterator(dataStore,
+                new Query(tableName, Filter.INCLUDE, "osm_id", "lat", "lon", "gh_count"), beginTransaction(tableName));
+        LongIntMap nodeFilter = getNodeMap();
+        long counter = 1;
+        try {
+            while (nodes.hasNext()) {
+                SimpleFeature node = nodes.next();
+                long osmId = (long) node.getProperty("osm_id").getValue();
+                long count = ((Number) node.getProperty("gh_count").getValue()).longValue();
+                nodeFilter.put(osmId, count > 1 ? TOWER_NODE : PILLAR_NODE);
+
+                ReaderNode element = new ReaderNode(osmId, (double) node.getProperty("lat").getValue(),
+                        (double) node.getProperty("lon").getValue());
+                processElement(element, nodeFilter);
+                if (++counter % 1_000_000 == 0)
+                    LOGGER.info(nf(counter) + " (classified nodes), locs:" + nf(locations) + " " + Helper.getMemInfo());
+            }
+        } finally {
+            nodes.close();
+        }
+    }
+
+    /**
+     * Creates the statement that returns the nodes of the ways matching the filter and how often they are used.
+     */
+    static String createClassifiedNodesSql(String waysTable, String nodesTable, String wayFilter) {
+        return "with refs as ("
+                + " select unnest(nodes) as gh_ref from " + waysTable + " where " + wayFilter
+                + "), counts as ("
+                + " select gh_ref, count(*) as gh_count from refs group by gh_ref"
+                + ")"
+                + " select n.osm_id, n.lat, n.lon, c.gh_count from counts c join " + nodesTable + " n on n.osm_id = c.gh_ref";
+    }
+
+    private void readNodes(DataStore dataStore) {
+        long counter = 1;
+        FeatureIterator<SimpleFeature>nodes = getFeatureIterator(dataStore, NODES_TABLE, null, "osm_id", "lat", "lon");
         
 //        try (OSMInput in = openOsmInputFile(osmFile)) {
         LongIntMap nodeFilter = getNodeMap();
 
 //        while ((item = in.getNext()) != null) {
-        while (nodes.hasNext()) {
-            SimpleFeature node = nodes.next();         
+        try {
+            while (nodes.hasNext()) {
+                SimpleFeature node = nodes.next();
 
-            ReaderNode element = new ReaderNode((long) node.getProperty("osm_id").getValue(), (double) node.getProperty("lat").getValue(), (double) node.getProperty("lon").getValue() );
-            
-            this.processElement(element, nodeFilter);
-            if (++counter % 200_000 == 0) {
-                LOGGER.info(nf(counter) + ", locs:" + nf(locations) + " (" + skippedLocations + ") " + Helper.getMemInfo());
-//                System.gc();
-            }
-            if (++counter % 1_000_000 == 0) {
-                System.gc();
+                ReaderNode element = new ReaderNode((long) node.getProperty("osm_id").getValue(), (double) node.getProperty("lat").getValue(), (double) node.getProperty("lon").getValue() );
+
+                this.processElement(element, nodeFilter);
+                if (++counter % 200_000 == 0) {
+                    LOGGER.info(nf(counter) + ", locs:" + nf(locations) + " (" + skippedLocations + ") " + Helper.getMemInfo());
+//                    System.gc();
+                }
+                if (counter % 1_000_000 == 0) {
+                    System.gc();
+                }
             }
+        } finally {
+            nodes.close();
         }
-        nodes.close();
-        
-        counter = 1;
-        nodes = getFeatureIterator(dataStore, "planet_osm_ways_import");
-        while (nodes.hasNext()) {
-            SimpleFeature node = nodes.next();
-
-            ReaderWay element = new ReaderWay((long) node.getProperty("osm_id").getValue());
-//            LOGGER.info("ATTRIBUTES " + node.getProperty("tags").getValue().getClass());
-            long[] wayNodes = Utils.LongsToPrimitive((Long[]) node.getProperty("nodes").getValue());
-            element.getNodes().add(wayNodes);
-            
-            HStore tags = (HStore) node.getProperty("tags").getValue();
-            element.setTags(tags);
-            
-//            node.getProperty("hsi").
-//            element.setTag("hsi", node.getProperty("hsi").getValue());
-            element.setTag("tci", node.getProperty("hsi").getValue());
-            element.setTag("amb_rat", node.getProperty("amble_rating").getValue());
-            element.setTag("amb_con_rat", node.getProperty("amble_contra_rating").getValue());
-//            double hsi = node.getProperty("hsi").getValue();
-            
-            this.processElement(element, nodeFilter);
-            if (++counter % 200_000 == 0) {
-                LOGGER.info(nf(counter) + ", locs:" + nf(locations) + " (" + skippedLocations + ") " + Helper.getMemInfo());
-//                System.gc();
-            }
-            if (++counter % 1_000_000 == 0) {
-                System.gc();
+    }
+    
+    /**
+     * @return true if the node tags are read, see readTaggedNodes
+     */
+    private boolean canReadNodeTags() {
+        if (!readNodeTags)
+            return false;
+        if (snapshotReader != null && snapshotReader.getCount(ColumnarSnapshotWriter.TAGGED_NODES) == 0) {
+            LOGGER.info("The snapshot file does not contain node tags, skipping them");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The nodes pass reads only the coordinates, so the node flags of barriers and access restrictions are read in
+     * this separate query. The database returns only nodes with one of the keys evaluated by handleNodeTags, which are
+     * few compared to all nodes. The query runs concurrently with the nodes pass, which changes the node map, so the
+     * nodes are filtered afterwards in applyNodeFlags.
+     *
+     * @return the OSM id and the node flags of every node with node flags, one after the other
+     */
+    private LongArrayList readTaggedNodes(DataStore dataStore) {
+        long counter = 0;
+        LongArrayList nodeFlags = new LongArrayList();
+        FeatureIterator<SimpleFeature> nodes = snapshotReader != null
+                ? snapshotReader.read(ColumnarSnapshotWriter.TAGGED_NODES, "osm_id", "tags")
+                : getFeatureIterator(dataStore, NODES_TABLE, ImportFilter.forTaggedNodes(), "osm_id", "tags");
+        try {
+            while (nodes.hasNext()) {
+                SimpleFeature feature = nodes.next();
+                counter++;
+                long osmId = (long) feature.getProperty("osm_id").getValue();
+                // the coordinates are already stored, handleNodeTags uses only the tags
+                ReaderNode node = new ReaderNode(osmId, Double.NaN, Double.NaN);
+                node.setTags((HStore) feature.getProperty("tags").getValue());
+                long flags = encodingCache == null ? encodingManager.handleNodeTags(node) : encodingCache.getNodeFlags(node);
+                if (flags != 0)
+                    nodeFlags.add(osmId, flags);
             }
+        } finally {
+            nodes.close();
         }
-        nodes.close();
-        
-        counter = 1;
-        nodes = getFeatureIterator(dataStore, "planet_osm_rels_import");
-        while (nodes.hasNext()) {
-            SimpleFeature node = nodes.next();
+        LOGGER.info("Read " + nf(counter) + " tagged nodes, " + nf(nodeFlags.size() / 2) + " with node flags " + Helper.getMemInfo());
+        return nodeFlags;
+    }
 
-            ReaderRelation element = new ReaderRelation((long) node.getProperty("id").getValue());
-//            LOGGER.info("ATTRIBUTES " + node.getProperty("tags").getValue().getClass());
-            
-            HStore tags = (HStore) node.getProperty("tags").getValue();
-            element.setTags(tags);
-            
-            HStore members = (HStore) node.getProperty("members").getValue();
-            members.keySet().forEach(key -> {
-                String role = members.get(key);
-                int type = TYPE_DECODE.indexOf(key.charAt(0));
-                long ref = Long.parseLong(key.substring(1));
-                
-                ReaderRelation.Member member = new ReaderRelation.Member(type, ref, role);
-                element.add(member);
-            });
-            
-            this.processElement(element, nodeFilter);
-            if (++counter % 200_000 == 0) {
-                LOGGER.info(nf(counter) + ", locs:" + nf(locations) + " (" + skippedLocations + ") " + Helper.getMemInfo());
-//                System.gc();
+    /**
+     * Stores the node flags of the nodes that are part of an accepted way. Must be called after the nodes pass and
+     * before the ways are added.
+     */
+    private void applyNodeFlags(LongArrayList nodeFlags) {
+        LongIntMap nodeFilter = getNodeMap();
+        long flagged = 0;
+        for (int i = 0; i < nodeFlags.size(); i += 2) {
+            long osmId = nodeFlags.get(i);
+            if (nodeFilter.get(osmId) != EMPTY_NODE) {
+                getNodeFlagsMap().put(osmId, nodeFlags.get(i + 1));
+                flagged++;
             }
-            if (++counter % 1_000_000 == 0) {
-                System.gc();
+        }
+        LOGGER.info(nf(flagged) + " nodes of the ways have node flags");
+    }
+
+    /**
+     * Reads the turn restrictions. They can only be stored with storeTurnRelation once the edges of their ways exist.
+     */
+    private List<OSMTurnRelation> readTurnRelations(DataStore dataStore) {
+        List<OSMTurnRelation> turnRelations = new ArrayList<>();
+        RelationMembers members = new RelationMembers();
+        FeatureIterator<SimpleFeature> relations = getFeatureIterator(dataStore, RELATIONS_TABLE,
+                relationFilter == null ? null : ImportFilter.forRestrictions(), getRelationColumns());
+        try {
+            while (relations.hasNext()) {
+                SimpleFeature feature = relations.next();
+                ReaderRelation relation = new ReaderRelation((long) feature.getProperty("id").getValue());
+                relation.setTags((HStore) feature.getProperty("tags").getValue());
+                if (relation.hasTag("type", "restriction"))
+                    turnRelations.addAll(createTurnRelations(relation, readRelationMembers(feature, members)));
             }
+        } finally {
+            relations.close();
         }
-        nodes.close();
-        
-        finishedReading();
-        if (graph.getNodes() == 0)
-            throw new RuntimeException("Graph after reading OSM must not be empty. Read " + counter + " items and " + locations + " locations");
-        
+        LOGGER.info("Read " + nf(turnRelations.size()) + " turn restrictions " + Helper.getMemInfo());
+        return turnRelations;
     }
-    
+
     private void processElement(ReaderElement item, LongIntMap nodeFilter) {
         switch (item.getType()) {
             case ReaderElement.NODE:
@@ -495,13 +1543,6 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
 //                }
                 processWay((ReaderWay) item);
                 break;
-            case ReaderElement.RELATION:
-//                if (relationStart < 0) {
-//                    LOGGER.info(nf(counter) + ", now parsing relations");
-//                    relationStart = counter;
-//                }
-                processRelation((ReaderRelation) item);
-                break;
             case ReaderElement.FILEHEADER:
                 break;
             default:
@@ -520,28 +1561,128 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
         
     }
     
+    /**
+     * Returns an iterator over the features of the specified table. Only the specified columns are fetched. If a SQL
+     * predicate is specified, the table is read through a virtual table so that the predicate is evaluated by the
+     * database.
+     * <p>
+     * Every read happens in its own transaction that imports the snapshot of this import, if enabled. If more than one
+     * read connection is configured, the table is split into ranges of the first column, which has to be the numeric
+     * id, and the ranges are read concurrently.
+     */
     protected FeatureIterator<SimpleFeature> getFeatureIterator(
-            DataStore dataStore, String tableName) {
+            DataStore dataStore, String tableName, String where, String... columns) {
+
+        // the filter is only a pre filter, so it is fine to read all rows
+        if (snapshotReader != null)
+            return snapshotReader.read(getSnapshotSection(tableName), columns);
 
         if (dataStore == null)
             throw new IllegalArgumentException("DataStore cannot be null for getFeatureIterator");
 
-        LOGGER.info("Getting the feature iterator for " + tableName);
+        LOGGER.info("Getting the feature iterator for " + tableName + (where == null ? "" : " where " + where));
 
         try {
+            if (where != null)
+                tableName = Utils.createVirtualTable(dataStore, tableName + "_gh",
+                        "select " + String.join(", ", columns) + " from "
+                                + Utils.qualifiedTable(postgisParams, tableName) + " where " + where);
+
             FeatureSource<SimpleFeatureType, SimpleFeature> source =
                     dataStore.getFeatureSource(tableName);
 
             Filter filter = getFilter(source);
-            FeatureCollection<SimpleFeatureType, SimpleFeature> collection = source.getFeatures(filter);
-            
-            FeatureIterator<SimpleFeature> features = collection.features();
-            return features;
+            if (readConnections == 1)
+                return new TransactionFeatureIterator(dataStore, new Query(tableName, filter, columns), beginTransaction(tableName));
+
+            long[] bounds = getIdBounds(dataStore, tableName, where, columns[0]);
+            if (bounds == null)
+                return new TransactionFeatureIterator(dataStore, new Query(tableName, filter, columns), beginTransaction(tableName));
+
+            FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+            long rangeSize = (bounds[1] - bounds[0]) / readConnections + 1;
+            List<FeatureIterator<SimpleFeature>> iterators = new ArrayList<>(readConnections);
+            try {
+                for (int i = 0; i < readConnections; i++) {
+                    long from = bounds[0] + i * rangeSize;
+                    Filter rangeFilter = ff.and(Arrays.asList(filter,
+                            ff.greaterOrEqual(ff.property(columns[0]), ff.literal(from)),
+                            ff.less(ff.property(columns[0]), ff.literal(from + rangeSize))));
+                    iterators.add(new TransactionFeatureIterator(dataStore, new Query(tableName, rangeFilter, columns),
+                            beginTransaction(tableName + "_" + i)));
+                }
+            } catch (RuntimeException e) {
+                for (FeatureIterator<SimpleFeature> iterator : iterators) {
+                    iterator.close();
+                }
+                throw e;
+            }
+            return new ParallelFeatureIterator(iterators);
+
+        } catch (Exception e) {
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    /**
+     * Like getFeatureIterator, but the features are ordered by the first column and read with a single connection.
+     * Two calls with the same arguments return the features in the same order, if the snapshot is enabled.
+     */
+    protected FeatureIterator<SimpleFeature> getOrderedFeatureIterator(
+            DataStore dataStore, String tableName, String where, String... columns) {
+
+        // the snapshot file is ordered by the ids
+        if (snapshotReader != null)
+            return snapshotReader.read(getSnapshotSection(tableName), columns);
 
+        LOGGER.info("Getting the ordered feature iterator for " + tableName + (where == null ? "" : " where " + where));
+
+        try {
+            if (where != null)
+                tableName = Utils.createVirtualTable(dataStore, tableName + "_gh",
+                        "select " + String.join(", ", columns) + " from "
+                                + Utils.qualifiedTable(postgisParams, tableName) + " where " + where);
+
+            FeatureSource<SimpleFeatureType, SimpleFeature> source = dataStore.getFeatureSource(tableName);
+            Query query = new Query(tableName, getFilter(source), columns);
+            FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+            query.setSortBy(new SortBy[]{ff.sort(columns[0], SortOrder.ASCENDING)});
+            return new TransactionFeatureIterator(dataStore, query, beginTransaction(tableName));
         } catch (Exception e) {
             throw Utils.asUnchecked(e);
         }
     }
+
+    /**
+     * Creates a read transaction, that sees the snapshot of this import if enabled.
+     */
+    protected Transaction beginTransaction(String handle) {
+        if (snapshot != null)
+            return snapshot.begin(handle);
+        return new DefaultTransaction(handle);
+    }
+
+    /**
+     * @return the minimum and maximum value of the id column or null if the table is empty
+     */
+    private long[] getIdBounds(DataStore dataStore, String tableName, String where, String idColumn) throws IOException, SQLException {
+        Transaction transaction = beginTransaction(tableName + "_bounds");
+        try {
+            Connection connection = ((JDBCDataStore) dataStore).getConnection(transaction);
+            String table = where == null ? Utils.qualifiedTable(postgisParams, tableName) : "(" + ((JDBCDataStore) dataStore)
+                    .getVirtualTables().get(tableName).getSql() + ") as bounds";
+            try (Statement statement = connection.createStatement();
+                 ResultSet rs = statement.executeQuery("select min(" + idColumn + "), max(" + idColumn + ") from " + table)) {
+                rs.next();
+                long min = rs.getLong(1);
+                if (rs.wasNull())
+                    return null;
+                return new long[]{min, rs.getLong(2)};
+            }
+        } finally {
+            PostgisSnapshot.closeQuietly(transaction);
+        }
+    }
     
     /**
      * Filters can help a lot when you need to limit the results returned from PostGIS.
@@ -571,25 +1712,86 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
             return;
 
         long wayOsmId = way.getId();
+        IntsRef relationFlags = getRelFlagsMap(way.getId());
 
-        EncodingManager.AcceptWay acceptWay = new EncodingManager.AcceptWay();
-        if (!encodingManager.acceptWay(way, acceptWay))
+        // checked before the artificial tags are set, as these would make every way bypass the cache
+        boolean cached = encodingCache != null && encodingCache.isCacheable(way);
+        // the cache runs the encoders itself on a miss, an AcceptWay is only needed for uncached ways
+        EncodingManager.AcceptWay acceptWay = null;
+        if (cached) {
+            if (!encodingCache.acceptWay(way))
+                return;
+        } else {
+            acceptWay = new EncodingManager.AcceptWay();
+            if (!encodingManager.acceptWay(way, acceptWay))
+                return;
+        }
+
+        LongArrayList osmNodeIds = way.getNodes();
+        long firstPosition = wayNodeCursor;
+        if (externalSort)
+            // the ways are read in the same order as in preProcess, so the positions of their nodes follow each other
+            wayNodeCursor += osmNodeIds.size();
+
+        // the encoders see the same tags with and without cache, the artificial tags are not part of the cache key
+        setArtificialTags(way, firstPosition);
+        IntsRef edgeFlags = cached ? encodingCache.getEdgeFlags(way, relationFlags)
+                : encodingManager.handleWayTags(way, acceptWay, relationFlags);
+        if (edgeFlags == null || edgeFlags.isEmpty())
             return;
 
-        IntsRef relationFlags = getRelFlagsMap(way.getId());
+        columnMapping.applyTo(edgeFlags);
+
+        createdEdges.clear();
+        if (externalSort) {
+            addSortedWay(firstPosition, osmNodeIds.size(), edgeFlags, wayOsmId, createdEdges);
+        } else if (inlineCoordinates) {
+            addInlineWay(osmNodeIds, edgeFlags, wayOsmId, createdEdges);
+        } else {
+            addWayWithBarriers(osmNodeIds, edgeFlags, wayOsmId);
+        }
+
+        for (int i = 0; i < createdEdges.size(); i++) {
+            encodingManager.applyWayTags(way, createdEdges.get(i));
+        }
+    }
 
+    /**
+     * Adds the estimated distance and center and the duration in seconds as artificial tags, e.g. to calculate the
+     * speed of ferries.
+     */
+    private void setArtificialTags(ReaderWay way, long firstPosition) {
         // TODO move this after we have created the edge and know the coordinates => encodingManager.applyWayTags
         LongArrayList osmNodeIds = way.getNodes();
         // Estimate length of ways containing a route tag e.g. for ferry speed calculation
-        int first = getNodeMap().get(osmNodeIds.get(0));
-        int last = getNodeMap().get(osmNodeIds.get(osmNodeIds.size() - 1));
-        double firstLat = getTmpLatitude(first), firstLon = getTmpLongitude(first);
-        double lastLat = getTmpLatitude(last), lastLon = getTmpLongitude(last);
+        double firstLat, firstLon, lastLat, lastLon;
+        if (externalSort) {
+            long lastPosition = firstPosition + osmNodeIds.size() - 1;
+            firstLat = getPositionLatitude(firstPosition);
+            firstLon = getPositionLongitude(firstPosition);
+            lastLat = getPositionLatitude(lastPosition);
+            lastLon = getPositionLongitude(lastPosition);
+        } else if (inlineCoordinates) {
+            int last = osmNodeIds.size() - 1;
+            firstLat = inlineLats[0];
+            firstLon = inlineLons[0];
+            lastLat = inlineLats[last];
+            lastLon = inlineLons[last];
+        } else {
+            int first = getNodeMap().get(osmNodeIds.get(0));
+            int last = getNodeMap().get(osmNodeIds.get(osmNodeIds.size() - 1));
+            firstLat = getTmpLatitude(first);
+            firstLon = getTmpLongitude(first);
+            lastLat = getTmpLatitude(last);
+            lastLon = getTmpLongitude(last);
+        }
         if (!Double.isNaN(firstLat) && !Double.isNaN(firstLon) && !Double.isNaN(lastLat) && !Double.isNaN(lastLon)) {
             double estimatedDist = distCalc.calcDist(firstLat, firstLon, lastLat, lastLon);
             // Add artificial tag for the estimated distance and center
             way.setTag("estimated_distance", estimatedDist);
-            way.setTag("estimated_center", new GHPoint((firstLat + lastLat) / 2, (firstLon + lastLon) / 2));
+            estimatedCenter.lat = (firstLat + lastLat) / 2;
+            estimatedCenter.lon = (firstLon + lastLon) / 2;
+            way.setTag("estimated_center", estimatedCenter);
         }
 
         if (way.getTag("duration") != null) {
@@ -601,12 +1803,12 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
                 LOGGER.warn("Parsing error in way with OSMID=" + way.getId() + " : " + ex.getMessage());
             }
         }
+    }
 
-        IntsRef edgeFlags = encodingManager.handleWayTags(way, acceptWay, relationFlags);
-        if (edgeFlags.isEmpty())
-            return;
-
-        List<EdgeIteratorState> createdEdges = new ArrayList<>();
+    /**
+     * Adds the way to createdEdges, split at the passable barriers along the way.
+     */
+    private void addWayWithBarriers(LongArrayList osmNodeIds, IntsRef edgeFlags, long wayOsmId) {
         // look for barriers along the way
         final int size = osmNodeIds.size();
         int lastBarrier = -1;
@@ -628,16 +1830,16 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
 
                         // add way up to barrier shadow node                        
                         int length = i - lastBarrier + 1;
-                        LongArrayList partNodeIds = new LongArrayList();
+                        partNodeIds.clear();
                         partNodeIds.add(osmNodeIds.buffer, lastBarrier, length);
                         partNodeIds.set(length - 1, newNodeId);
-                        createdEdges.addAll(addOSMWay(partNodeIds, edgeFlags, wayOsmId));
+                        addOSMWay(partNodeIds, edgeFlags, wayOsmId, createdEdges);
 
                         // create zero length edge for barrier
-                        createdEdges.addAll(addBarrierEdge(newNodeId, nodeId, edgeFlags, nodeFlags, wayOsmId));
+                        addBarrierEdge(newNodeId, nodeId, edgeFlags, nodeFlags, wayOsmId, createdEdges);
                     } else {
                         // run edge from real first node to shadow node
-                        createdEdges.addAll(addBarrierEdge(nodeId, newNodeId, edgeFlags, nodeFlags, wayOsmId));
+                        addBarrierEdge(nodeId, newNodeId, edgeFlags, nodeFlags, wayOsmId, createdEdges);
 
                         // exchange first node for created barrier node
                         osmNodeIds.set(0, newNodeId);
@@ -651,23 +1853,14 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
         // just add remainder of way to graph if barrier was not the last node
         if (lastBarrier >= 0) {
             if (lastBarrier < size - 1) {
-                LongArrayList partNodeIds = new LongArrayList();
+                partNodeIds.clear();
                 partNodeIds.add(osmNodeIds.buffer, lastBarrier, size - lastBarrier);
-                createdEdges.addAll(addOSMWay(partNodeIds, edgeFlags, wayOsmId));
+                addOSMWay(partNodeIds, edgeFlags, wayOsmId, createdEdges);
             }
         } else {
             // no barriers - simply add the whole way
-            createdEdges.addAll(addOSMWay(way.getNodes(), edgeFlags, wayOsmId));
+            addOSMWay(osmNodeIds, edgeFlags, wayOsmId, createdEdges);
         }
-
-        for (EdgeIteratorState edge : createdEdges) {
-            encodingManager.applyWayTags(way, edge);
-        }
-    }
-
-    protected void processRelation(ReaderRelation relation) {
-        if (tcs != null && relation.hasTag("type", "restriction"))
-            storeTurnRelation(createTurnRelations(relation));
     }
 
     void storeTurnRelation(List<OSMTurnRelation> turnRelations) {
@@ -781,12 +1974,8 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
         return eleProvider.getEle(node.getLat(), node.getLon());
     }
 
-    void prepareWaysWithRelationInfo(ReaderRelation osmRelation) {
-        for (ReaderRelation.Member member : osmRelation.getMembers()) {
-            if (member.getType() != ReaderRelation.Member.WAY)
-                continue;
-
-            long osmId = member.getRef();
+    void prepareWaysWithRelationInfo(ReaderRelation osmRelation, long[] wayIds) {
+        for (long osmId : wayIds) {
             IntsRef oldRelationFlags = getRelFlagsMap(osmId);
 
             // Check if our new relation data is better compared to the last one
@@ -796,36 +1985,41 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
     }
 
     void prepareHighwayNode(long osmId) {
-        int tmpGHNodeId = getNodeMap().get(osmId);
+        LongIntMap nodeMap = getNodeMap();
+        int tmpGHNodeId = nodeMap.get(osmId);
+        int newGHNodeId = classifyHighwayNode(tmpGHNodeId);
+        if (newGHNodeId != tmpGHNodeId)
+            nodeMap.put(osmId, newGHNodeId);
+    }
+
+    /**
+     * @return the state of a node after it was seen once more in a way
+     */
+    static int classifyHighwayNode(int tmpGHNodeId) {
         if (tmpGHNodeId == EMPTY_NODE) {
             // osmId is used exactly once
-            getNodeMap().put(osmId, PILLAR_NODE);
+            return PILLAR_NODE;
         } else if (tmpGHNodeId > EMPTY_NODE) {
             // mark node as tower node as it occurred at least twice times
-            getNodeMap().put(osmId, TOWER_NODE);
-        } else {
-            // tmpIndex is already negative (already tower node)
+            return TOWER_NODE;
         }
+        // tmpIndex is already negative (already tower node)
+        return tmpGHNodeId;
     }
 
     int addTowerNode(long osmId, double lat, double lon, double ele) {
-        if (nodeAccess.is3D())
-            nodeAccess.setNode(nextTowerId, lat, lon, ele);
-        else
-            nodeAccess.setNode(nextTowerId, lat, lon);
-
-        int id = -(nextTowerId + 3);
+        int id = -(createTowerNode(osmId, lat, lon, ele) + 3);
         getNodeMap().put(osmId, id);
-        nextTowerId++;
         return id;
     }
 
     /**
      * This method creates from an OSM way (via the osm ids) one or more edges in the graph.
      */
-    Collection<EdgeIteratorState> addOSMWay(final LongIndexedContainer osmNodeIds, final IntsRef flags, final long wayOsmId) {
-        PointList pointList = new PointList(osmNodeIds.size(), nodeAccess.is3D());
-        List<EdgeIteratorState> newEdges = new ArrayList<>(5);
+    void addOSMWay(final LongIndexedContainer osmNodeIds, final IntsRef flags, final long wayOsmId,
+                   final List<EdgeIteratorState> newEdges) {
+        PointList pointList = wayPoints;
+        pointList.clear();
         int firstNode = -1;
         int lastIndex = osmNodeIds.size() - 1;
         int lastInBoundsPillarNode = -1;
@@ -908,7 +2102,6 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
             LOGGER.error("Couldn't properly add edge with osm ids:" + osmNodeIds, ex);
             throw ex;
         }
-        return newEdges;
     }
 
     EdgeIteratorState addEdge(int fromIndex, int toIndex, PointList pointList, IntsRef flags, long wayOsmId) {
@@ -954,10 +2147,17 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
             simplifyAlgo.simplify(pointList);
 
         // If the entire way is just the first and last point, do not waste space storing an empty way geometry
-        if (pointList.size() > 2)
-            iter.setWayGeometry(pointList.shallowCopy(1, pointList.size() - 1, false));
+        if (pointList.size() > 2) {
+            pillarPoints.clear();
+            for (int i = 1; i < pointList.size() - 1; i++) {
+                addPoint(pillarPoints, pointList.getLat(i), pointList.getLon(i), pointList.is3D() ? pointList.getEle(i) : Double.NaN);
+            }
+            iter.setWayGeometry(pillarPoints);
+        }
 
         storeOsmWayID(iter.getEdge(), wayOsmId);
+        if (osmIdIndex != null)
+            osmIdIndex.setWayId(iter.getEdge(), wayOsmId);
         return iter;
     }
 
@@ -996,14 +2196,45 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
 
     protected void finishedReading() {
         printInfo("way");
-        pillarInfo.clear();
+        if (encodingCache != null)
+            LOGGER.info(encodingCache.toString());
+        if (pillarInfo != null)
+            pillarInfo.clear();
         encodingManager.releaseParsers();
         eleProvider.release();
+        if (osmNodeIdToInternalNodeMap instanceof DataAccessLongIntMap)
+            ((DataAccessLongIntMap) osmNodeIdToInternalNodeMap).release();
         osmNodeIdToInternalNodeMap = null;
+        osmNodeIdToNodeFlagsMap.release();
         osmNodeIdToNodeFlagsMap = null;
+        osmWayIdToRouteWeightMap.release();
         osmWayIdToRouteWeightMap = null;
         osmWayIdSet = null;
         edgeIdToOsmWayIdMap = null;
+        viaNodeIds = null;
+        barrierCopyOsmIds = null;
+        if (wayNodePositions != null) {
+            scratchDirectory.remove(wayNodePositions);
+            wayNodePositions = null;
+        }
+        if (osmIdIndex != null) {
+            osmIdIndex.flush(getScratchDirectory(), sortBufferPairs);
+            LOGGER.info("stored the OSM ids of " + nf(osmIdIndex.getEdgeCount()) + " edges and "
+                    + nf(osmIdIndex.getNodeCount()) + " tower nodes");
+            osmIdIndex.close();
+            osmIdIndex = null;
+        }
+        removeScratchDirectory();
+    }
+
+    private void removeScratchDirectory() {
+        if (scratchLocation == null)
+            return;
+        // closes and deletes the files that are still open, e.g. the pillar coordinates
+        scratchDirectory.clear();
+        Helper.removeDir(scratchLocation);
+        scratchDirectory = null;
+        scratchLocation = null;
     }
 
     /**
@@ -1021,6 +2252,8 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
         }
 
         final long id = newNode.getId();
+        if (barrierCopyOsmIds != null)
+            barrierCopyOsmIds.put(id, nodeId);
         prepareHighwayNode(id);
         addNode(newNode);
         return id;
@@ -1033,7 +2266,8 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
     /**
      * Add a zero length edge with reduced routing options to the graph.
      */
-    Collection<EdgeIteratorState> addBarrierEdge(long fromId, long toId, IntsRef inEdgeFlags, long nodeFlags, long wayOsmId) {
+    void addBarrierEdge(long fromId, long toId, IntsRef inEdgeFlags, long nodeFlags, long wayOsmId,
+                        List<EdgeIteratorState> newEdges) {
         IntsRef edgeFlags = IntsRef.deepCopyOf(inEdgeFlags);
         // clear blocked directions from flags
         for (BooleanEncodedValue accessEnc : encodingManager.getAccessEncFromNodeFlags(nodeFlags)) {
@@ -1044,13 +2278,13 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
         barrierNodeIds.clear();
         barrierNodeIds.add(fromId);
         barrierNodeIds.add(toId);
-        return addOSMWay(barrierNodeIds, edgeFlags, wayOsmId);
+        addOSMWay(barrierNodeIds, edgeFlags, wayOsmId, newEdges);
     }
 
     /**
      * Creates turn relations out of an unspecified OSM relation
      */
-    List<OSMTurnRelation> createTurnRelations(ReaderRelation relation) {
+    List<OSMTurnRelation> createTurnRelations(ReaderRelation relation, RelationMembers members) {
         List<OSMTurnRelation> osmTurnRelations = new ArrayList<>();
         String vehicleTypeRestricted = "";
         List<String> vehicleTypesExcept = new ArrayList<>();
@@ -1063,7 +2297,7 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
             }
         }
         if (relation.hasTag("restriction")) {
-            OSMTurnRelation osmTurnRelation = createTurnRelation(relation, relation.getTag("restriction"), vehicleTypeRestricted, vehicleTypesExcept);
+            OSMTurnRelation osmTurnRelation = createTurnRelation(members, relation.getTag("restriction"), vehicleTypeRestricted, vehicleTypesExcept);
             if (osmTurnRelation != null) {
                 osmTurnRelations.add(osmTurnRelation);
             }
@@ -1074,7 +2308,7 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
             for (String vehicleType : vehicleTypesRestricted) {
                 String restrictionType = relation.getTag(vehicleType);
                 vehicleTypeRestricted = vehicleType.replace("restriction:", "").trim();
-                OSMTurnRelation osmTurnRelation = createTurnRelation(relation, restrictionType, vehicleTypeRestricted, vehicleTypesExcept);
+                OSMTurnRelation osmTurnRelation = createTurnRelation(members, restrictionType, vehicleTypeRestricted, vehicleTypesExcept);
                 if (osmTurnRelation != null) {
                     osmTurnRelations.add(osmTurnRelation);
                 }
@@ -1083,24 +2317,12 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
         return osmTurnRelations;
     }
 
-    OSMTurnRelation createTurnRelation(ReaderRelation relation, String restrictionType, String vehicleTypeRestricted, List<String> vehicleTypesExcept) {
+    OSMTurnRelation createTurnRelation(RelationMembers members, String restrictionType, String vehicleTypeRestricted, List<String> vehicleTypesExcept) {
         OSMTurnRelation.Type type = OSMTurnRelation.Type.getRestrictionType(restrictionType);
         if (type != OSMTurnRelation.Type.UNSUPPORTED) {
-            long fromWayID = -1;
-            long viaNodeID = -1;
-            long toWayID = -1;
-
-            for (ReaderRelation.Member member : relation.getMembers()) {
-                if (ReaderElement.WAY == member.getType()) {
-                    if ("from".equals(member.getRole())) {
-                        fromWayID = member.getRef();
-                    } else if ("to".equals(member.getRole())) {
-                        toWayID = member.getRef();
-                    }
-                } else if (ReaderElement.NODE == member.getType() && "via".equals(member.getRole())) {
-                    viaNodeID = member.getRef();
-                }
-            }
+            long fromWayID = members.findRef(ReaderElement.WAY, "from");
+            long viaNodeID = members.findRef(ReaderElement.NODE, "via");
+            long toWayID = members.findRef(ReaderElement.WAY, "to");
             if (fromWayID >= 0 && toWayID >= 0 && viaNodeID >= 0) {
                 OSMTurnRelation osmTurnRelation = new OSMTurnRelation(fromWayID, viaNodeID, toWayID, type);
                 osmTurnRelation.setVehicleTypeRestricted(vehicleTypeRestricted);
@@ -1125,12 +2347,12 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
         return osmNodeIdToInternalNodeMap;
     }
 
-    protected LongLongMap getNodeFlagsMap() {
+    protected DataAccessLongLongMap getNodeFlagsMap() {
         return osmNodeIdToNodeFlagsMap;
     }
 
     int getRelFlagsMapSize() {
-        return osmWayIdToRouteWeightMap.size();
+        return (int) osmWayIdToRouteWeightMap.getSize();
     }
 
     IntsRef getRelFlagsMap(long osmId) {
@@ -1194,10 +2416,18 @@ public class OSMPostgisReader implements DataReader, TurnCostParser.ExternalInte
         return this;
     }
 
+    /**
+     * @param blockCache the inflated blocks of the snapshot file shared with the imports of other graphs or null
+     */
+    public OSMPostgisReader setSnapshotBlockCache(ColumnarSnapshotReader.BlockCache blockCache) {
+        this.snapshotBlockCache = blockCache;
+        return this;
+    }
+
     private void printInfo(String str) {
         LOGGER.info("finished " + str + " processing." + " nodes: " + graph.getNodes()
                 + ", osmIdMap.size:" + getNodeMap().getSize() + ", osmIdMap:" + getNodeMap().getMemoryUsage() + "MB"
-                + ", nodeFlagsMap.size:" + getNodeFlagsMap().size() + ", relFlagsMap.size:" + getRelFlagsMapSize()
+                + ", nodeFlagsMap.size:" + getNodeFlagsMap().getSize() + ", relFlagsMap.size:" + getRelFlagsMapSize()
                 + ", zeroCounter:" + zeroCounter
                 + " " + Helper.getMemInfo());
     }
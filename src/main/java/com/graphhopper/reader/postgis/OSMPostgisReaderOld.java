@@ -17,7 +17,7 @@
  */
 package com.graphhopper.reader.postgis;
 
-import com.graphhopper.coll.GHObjectIntHashMap;
+import com.graphhopper.coll.GHLongHashSet;
 import com.graphhopper.reader.DataReader;
 import com.graphhopper.reader.PillarInfo;
 import com.graphhopper.reader.ReaderWay;
@@ -25,6 +25,7 @@ import com.graphhopper.reader.dem.EdgeSampling;
 import com.graphhopper.reader.dem.ElevationProvider;
 import com.graphhopper.reader.dem.GraphElevationSmoothing;
 import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.storage.DAType;
 import com.graphhopper.storage.GraphHopperStorage;
 import com.graphhopper.storage.IntsRef;
 import com.graphhopper.storage.NodeAccess;
@@ -35,7 +36,6 @@ import com.graphhopper.util.EdgeIteratorState;
 import com.graphhopper.util.Helper;
 import com.graphhopper.util.PointList;
 import com.graphhopper.util.shapes.GHPoint;
-import org.locationtech.jts.geom.Coordinate;
 import org.geotools.data.DataStore;
 import org.geotools.feature.FeatureIterator;
 import org.opengis.feature.simple.SimpleFeature;
@@ -62,9 +62,12 @@ import static com.graphhopper.util.Helper.*;
     private static final int COORD_STATE_UNKNOWN = 0;
     private static final int COORD_STATE_PILLAR = -2;
     private static final int FIRST_NODE_ID = 1;
+    // length of one degree of latitude, a longitude degree is never longer
+    private static final double METERS_PER_DEGREE = 111_320;
     private final String[] tagsToCopy;
     private File roadsFile;
-    private GHObjectIntHashMap<Coordinate> coordState = new GHObjectIntHashMap<>(1000, 0.7f);
+    // maps the packed and rounded coordinates to their state or tower node id
+    private DataAccessLongIntMap coordState;
     private final DistanceCalc distCalc = DistanceCalcEarth.DIST_EARTH;
     private int nextNodeId = FIRST_NODE_ID;
     protected long zeroCounter = 0;
@@ -80,6 +83,15 @@ import static com.graphhopper.util.Helper.*;
     private List<Double> elevations = new ArrayList<>();
     private boolean doSimplify = true;
     private final DouglasPeucker simplifyAlgo = new DouglasPeucker();
+    private final LineGeometryBuffer geometryBuffer = new LineGeometryBuffer();
+    // reused by every edge, the graph copies the pillar nodes and the encoders do not keep the centre
+    private final GHPoint estmCentre = new GHPoint();
+    private final PointList pillarNodes;
+    // if true the junctions are calculated by PostGIS and the roads are read as segments between junctions
+    private final boolean serverJunctions;
+    // if true the segments are simplified by PostGIS before they are transferred
+    private final boolean serverSimplify;
+    private double wayPointMaxDistance = 1;
     private double longEdgeSamplingDistance = 0;
 
     public OSMPostgisReaderOld(GraphHopperStorage ghStorage, Map<String, String> postgisParams) {
@@ -88,6 +100,19 @@ import static com.graphhopper.util.Helper.*;
         this.nodeAccess = graph.getNodeAccess();
         
         this.pillarInfo = new PillarInfo(nodeAccess.is3D(), ghStorage.getDirectory());
+        this.pillarNodes = new PointList(100, nodeAccess.is3D());
+        boolean junctionsRequested = "server".equalsIgnoreCase(Utils.getString(postgisParams, "junctions", "client"));
+        boolean simplifyRequested = "server".equalsIgnoreCase(Utils.getString(postgisParams, "simplify", "client"));
+        if (simplifyRequested && !junctionsRequested)
+            throw new IllegalArgumentException("postgis.simplify=server requires postgis.junctions=server");
+        boolean supported = supportsServerJunctions();
+        if (junctionsRequested && !supported)
+            LOGGER.warn("postgis.junctions=server is not used, because " + getClass().getSimpleName()
+                    + " does not support server side junctions");
+        this.serverJunctions = junctionsRequested && supported;
+        this.serverSimplify = simplifyRequested && supported;
+        this.coordState = new DataAccessLongIntMap(ghStorage.getDirectory(), "tmp_junctions",
+                DAType.fromString(Utils.getString(postgisParams, "junction_map_type", "RAM")), 1000, COORD_STATE_UNKNOWN);
         
         String tmpTagsToCopy = postgisParams.get("tags_to_copy");
         if (tmpTagsToCopy == null || tmpTagsToCopy.isEmpty()) {
@@ -103,17 +128,32 @@ import static com.graphhopper.util.Helper.*;
         tempRelFlags.ints[1] = (int) 0L;
     }
 
+    /**
+     * The database splits every road of the table, so subclasses that filter the roads with
+     * {@link #acceptFeature(SimpleFeature)} or {@link #getFilter(org.geotools.data.FeatureSource)} have to return
+     * false, otherwise the rejected roads would still create junctions.
+     */
+    protected boolean supportsServerJunctions() {
+        return true;
+    }
+
     @Override
     void processJunctions() {
+        if (serverJunctions) {
+            LOGGER.info("Junctions are calculated by the database");
+            return;
+        }
+
         DataStore dataStore = null;
         FeatureIterator<SimpleFeature> roads = null;
         int tmpJunctionCounter = 0;
 
         try {
             dataStore = openPostGisStore();
-            roads = getFeatureIterator(dataStore, roadsFile.getName());
+            // the same columns as for the edges, so acceptFeature decides the same in both passes
+            roads = getWkbFeatureIterator(dataStore, roadsFile.getName(), getRoadColumns());
 
-            HashSet<Coordinate> tmpSet = new HashSet<>();
+            GHLongHashSet tmpSet = new GHLongHashSet();
             while (roads.hasNext()) {
                 SimpleFeature road = roads.next();
 
@@ -121,42 +161,41 @@ import static com.graphhopper.util.Helper.*;
                     continue;
                 }
 
-                for (Coordinate[] points : getCoords(road)) {
+                LineGeometryBuffer points = readGeometry(road);
+                for (int part = 0; part < points.getPartCount(); part++) {
                     tmpSet.clear();
-                    for (int i = 0; i < points.length; i++) {
-                        Coordinate c = points[i];
-                        c.z = getElevation(c.y, c.x);
-                        c = roundCoordinate(c);
-
-//                        LOGGER.info("Pillar elevation " + String.valueOf(c.z));
+                    int first = points.getPartStart(part);
+                    int last = points.getPartEnd(part) - 1;
+                    for (int i = first; i <= last; i++) {
+                        long key = packCoordinate(points.getLat(i), points.getLon(i));
 
                         // don't add the same coord twice for the same edge - happens with bad geometry, i.e.
                         // duplicate coords or a road which forms a circle (e.g. roundabout)
-                        if (tmpSet.contains(c))
+                        if (!tmpSet.add(key))
                             continue;
 
-                        tmpSet.add(c);
-
                         // skip if its already a node
-                        int state = coordState.get(c);
+                        int state = coordState.get(key);
                         if (state >= FIRST_NODE_ID) {
                             continue;
                         }
 
-                        if (i == 0 || i == points.length - 1 || state == COORD_STATE_PILLAR) {
+                        if (i == first || i == last || state == COORD_STATE_PILLAR) {
                             // turn into a node if its the first or last
                             // point, or already appeared in another edge
                             int nodeId = nextNodeId++;
-                            coordState.put(c, nodeId);
-                            saveTowerPosition(nodeId, c);
+                            coordState.put(key, nodeId);
+                            double lat = points.getLat(i);
+                            double lon = points.getLon(i);
+                            saveTowerPosition(nodeId, lat, lon, Helper.round6(getElevation(lat, lon)));
                         } else if (state == COORD_STATE_UNKNOWN) {
                             // mark it as a pillar (which may get upgraded
                             // to an edge later)
-                            coordState.put(c, COORD_STATE_PILLAR);
+                            coordState.put(key, COORD_STATE_PILLAR);
                         }
 
                         if (++tmpJunctionCounter % 100_000 == 0) {
-                            LOGGER.info(nf(tmpJunctionCounter) + " (junctions), junctionMap:" + nf(coordState.size())
+                            LOGGER.info(nf(tmpJunctionCounter) + " (junctions), junctionMap:" + nf(coordState.getSize())
                                     + " " + Helper.getMemInfo());
                         }
                     }
@@ -179,6 +218,10 @@ import static com.graphhopper.util.Helper.*;
     
     @Override
     void processRoads() {
+        if (serverJunctions) {
+            processSegments();
+            return;
+        }
 
         DataStore dataStore = null;
         FeatureIterator<SimpleFeature> roads = null;
@@ -187,7 +230,7 @@ import static com.graphhopper.util.Helper.*;
 
         try {
             dataStore = openPostGisStore();
-            roads = getFeatureIterator(dataStore, roadsFile.getName());
+            roads = getWkbFeatureIterator(dataStore, roadsFile.getName(), getRoadColumns());
 
             while (roads.hasNext()) {
                 SimpleFeature road = roads.next();
@@ -196,53 +239,24 @@ import static com.graphhopper.util.Helper.*;
                     continue;
                 }
 
-                for (Coordinate[] points : getCoords(road)) {
+                LineGeometryBuffer points = readGeometry(road);
+                for (int part = 0; part < points.getPartCount(); part++) {
                     // Parse all points in the geometry, splitting into
                     // individual GraphHopper edges
-                    // whenever we find a node in the list of points
-                    Coordinate startTowerPnt = null;
-                    List<Coordinate> pillars = new ArrayList<>();
-                    for (Coordinate point : points) {
-                        point = roundCoordinate(point);
-                        if (startTowerPnt == null) {
-                            startTowerPnt = point;
-                        } else {
-                            int state = coordState.get(point);
-                            if (state >= FIRST_NODE_ID) {
-                                int fromTowerNodeId = coordState.get(startTowerPnt);
-                                int toTowerNodeId = state;
-
-                                // get distance and estimated centre
-                                GHPoint estmCentre = new GHPoint(
-                                        0.5 * (lat(startTowerPnt) + lat(point)),
-                                        0.5 * (lng(startTowerPnt) + lng(point)));
-                                PointList pillarNodes = new PointList(pillars.size(), nodeAccess.is3D());
-                                
-                                for (Coordinate pillar : pillars) {
-                                    if (pillarNodes.is3D()) {
-                                        double lat = lat(pillar);
-                                        double lng = lng(pillar);
-                                        double ele = Helper.round6(this.getElevation(lat, lng));
-//                                        double ele = this.getElevation(lat, lng);
-//                                        this.elevations.add(ele);
-//                                        LOGGER.info("Pillar elevation " + String.valueOf(ele));
-                                        pillarNodes.add(lat, lng, ele);
-                                    } else {
-                                        pillarNodes.add(lat(pillar), lng(pillar));
-                                    }
-                                }
-
-                                double distance = getWayLength(startTowerPnt, pillars, road, point);
-                                addEdge(fromTowerNodeId, toTowerNodeId, road, distance, estmCentre, pillarNodes);
-                                startTowerPnt = point;
-                                pillars.clear();
-
-                                if (++tmpEdgeCounter % 1_000_000 == 0) {
-                                    LOGGER.info(nf(tmpEdgeCounter) + " (edges) " + Helper.getMemInfo());
-                                }
-                            } else {
-                                pillars.add(point);
-                            }
+                    // whenever we find a node in the list of points.
+                    // The pillars are the points between the start tower and the current point.
+                    int startTower = points.getPartStart(part);
+                    for (int i = startTower + 1; i < points.getPartEnd(part); i++) {
+                        int state = coordState.get(packCoordinate(points.getLat(i), points.getLon(i)));
+                        if (state < FIRST_NODE_ID)
+                            continue;
+
+                        int fromTowerNodeId = coordState.get(packCoordinate(points.getLat(startTower), points.getLon(startTower)));
+                        addEdge(fromTowerNodeId, state, road, points, startTower, i);
+                        startTower = i;
+
+                        if (++tmpEdgeCounter % 1_000_000 == 0) {
+                            LOGGER.info(nf(tmpEdgeCounter) + " (edges) " + Helper.getMemInfo());
                         }
                     }
                 }
@@ -270,13 +284,164 @@ import static com.graphhopper.util.Helper.*;
            LOGGER.info("Min/max " + String.valueOf(min) + " " + String.valueOf(max));
         }
     }
+
+    /**
+     * Reads the roads split into segments by the database. Every segment starts and ends at a junction and has the
+     * node ids of both junctions, so neither a client side pass over all roads nor the coordinate map is required.
+     */
+    private void processSegments() {
+        DataStore dataStore = null;
+        FeatureIterator<SimpleFeature> segments = null;
+        BitSet towerPositionSaved = new BitSet();
+        int tmpEdgeCounter = 0;
+
+        try {
+            dataStore = openPostGisStore();
+            String table = roadsFile.getName();
+            String virtualTable = Utils.createVirtualTable(dataStore, table + "_gh_segments",
+                    createSegmentsSql(getQualifiedTable(table), getGeometryColumn(dataStore, table), getRoadColumns(),
+                            getServerTolerance()));
+            segments = getFeatureIterator(dataStore, virtualTable);
+
+            // acceptFeature and getFilter are not overridden, otherwise the junctions are calculated by the client
+            while (segments.hasNext()) {
+                SimpleFeature segment = segments.next();
+                LineGeometryBuffer points = geometryBuffer.readTwkb((byte[]) segment.getAttribute(TWKB_COLUMN));
+                int last = points.size() - 1;
+                int fromTowerNodeId = ((Number) segment.getAttribute("gh_from")).intValue();
+                int toTowerNodeId = ((Number) segment.getAttribute("gh_to")).intValue();
+                saveTowerPosition(towerPositionSaved, fromTowerNodeId, points.getLat(0), points.getLon(0));
+                saveTowerPosition(towerPositionSaved, toTowerNodeId, points.getLat(last), points.getLon(last));
+                addEdge(fromTowerNodeId, toTowerNodeId, segment, points, 0, last);
+
+                if (++tmpEdgeCounter % 1_000_000 == 0) {
+                    LOGGER.info(nf(tmpEdgeCounter) + " (edges) " + Helper.getMemInfo());
+                }
+            }
+        } finally {
+            if (segments != null) {
+                segments.close();
+            }
+            if (dataStore != null) {
+                dataStore.dispose();
+            }
+        }
+
+        if (tmpEdgeCounter == 0)
+            throw new IllegalArgumentException("No data found for roads file " + roadsFile);
+
+        nextNodeId = towerPositionSaved.length();
+        LOGGER.info("Number of junction points : " + (nextNodeId - FIRST_NODE_ID));
+    }
+
+    private void saveTowerPosition(BitSet towerPositionSaved, int nodeId, double lat, double lon) {
+        if (towerPositionSaved.get(nodeId))
+            return;
+        towerPositionSaved.set(nodeId);
+        saveTowerPosition(nodeId, lat, lon, Helper.round6(getElevation(lat, lon)));
+    }
+
+    /**
+     * @return the tolerance in degrees for ST_Simplify or 0 if the segments are not simplified by the database
+     */
+    private double getServerTolerance() {
+        if (!serverSimplify || !doSimplify)
+            return 0;
+        if (eleProvider != ElevationProvider.NOOP) {
+            // the database does not know the elevation, so it could remove points that are required for it
+            LOGGER.warn("Server side simplification is not used because an elevation provider is set");
+            return 0;
+        }
+        // conservative: a distance in degrees is never shorter in meters than the same distance in latitude
+        // degrees, so the server removes less than DouglasPeucker which still runs for every edge
+        return wayPointMaxDistance / METERS_PER_DEGREE;
+    }
+
+    /**
+     * Creates the statement that splits the roads at their junctions. Like in processJunctions a point is a
+     * junction if it is the first or last point of a road or if it is part of more than one road. The junctions are
+     * numbered starting with FIRST_NODE_ID, the coordinates are rounded to 6 decimal places.
+     * <p>
+     * The geometry of the segments is transferred as TWKB with 6 decimal places, which is lossless for the rounded
+     * coordinates. If the tolerance is positive the segments are simplified with ST_Simplify. As every segment ends
+     * at a junction and ST_Simplify keeps the end points, no vertex shared between roads is removed.
+     */
+    static String createSegmentsSql(String table, String geometryColumn, String[] columns, double tolerance) {
+        StringBuilder roadColumns = new StringBuilder();
+        for (String column : columns) {
+            roadColumns.append("r.").append(column).append(", ");
+        }
+        return "with roads as ("
+                + " select row_number() over () as gh_road, t.* from " + table + " t"
+                + "), points as ("
+                + " select r.gh_road, d.path[1] as gh_part, d.path[2] as gh_index,"
+                + " round(ST_Y(d.geom)::numeric, 6)::float8 as gh_lat, round(ST_X(d.geom)::numeric, 6)::float8 as gh_lon,"
+                + " count(*) over (partition by r.gh_road, d.path[1]) as gh_count"
+                + " from roads r, lateral ST_DumpPoints(ST_Multi(ST_Force2D(r." + geometryColumn + "))) d"
+                + "), junctions as ("
+                + " select gh_lat, gh_lon, dense_rank() over (order by gh_lat, gh_lon) + " + (FIRST_NODE_ID - 1) + " as gh_node"
+                + " from points group by gh_lat, gh_lon"
+                + " having count(distinct (gh_road, gh_part)) > 1 or bool_or(gh_index = 1 or gh_index = gh_count)"
+                + "), vertices as ("
+                // the number of junctions up to and including this point is the segment the point belongs to
+                + " select p.gh_road, p.gh_part, p.gh_index, p.gh_lat, p.gh_lon, j.gh_node,"
+                + " count(j.gh_node) over (partition by p.gh_road, p.gh_part order by p.gh_index) as gh_segment"
+                + " from points p left join junctions j on p.gh_lat = j.gh_lat and p.gh_lon = j.gh_lon"
+                + "), segment_vertices as ("
+                + " select gh_road, gh_part, gh_segment, gh_index, gh_lat, gh_lon, gh_node from vertices"
+                // a junction also ends the previous segment
+                + " union all"
+                + " select gh_road, gh_part, gh_segment - 1, gh_index, gh_lat, gh_lon, gh_node from vertices"
+                + " where gh_node is not null and gh_segment > 1"
+                + "), segments as ("
+                + " select gh_road, (array_agg(gh_node order by gh_index))[1] as gh_from,"
+                + " (array_agg(gh_node order by gh_index desc))[1] as gh_to,"
+                + " ST_MakeLine(ST_MakePoint(gh_lon, gh_lat) order by gh_index) as gh_geometry"
+                + " from segment_vertices group by gh_road, gh_part, gh_segment having count(*) > 1"
+                + ")"
+                + " select " + roadColumns + "s.gh_from, s.gh_to, ST_AsTWKB("
+                + (tolerance > 0 ? "ST_Simplify(s.gh_geometry, " + tolerance + ", true)" : "s.gh_geometry")
+                + ", 6) as " + TWKB_COLUMN
+                + " from segments s join roads r on r.gh_road = s.gh_road";
+    }
+
+    /**
+     * Decodes the WKB geometry of the road into the reusable buffer, rounded like the junctions.
+     */
+    private LineGeometryBuffer readGeometry(SimpleFeature road) {
+        return geometryBuffer.readWkb((byte[]) road.getAttribute(WKB_COLUMN)).round6();
+    }
+
+    /**
+     * Adds the edge between the points fromIndex and toIndex of the geometry, the points in between are the pillars.
+     */
+    private void addEdge(int fromTower, int toTower, SimpleFeature road, LineGeometryBuffer points, int fromIndex, int toIndex) {
+        // get distance and estimated centre, both objects are reused for the next edge
+        estmCentre.lat = 0.5 * (points.getLat(fromIndex) + points.getLat(toIndex));
+        estmCentre.lon = 0.5 * (points.getLon(fromIndex) + points.getLon(toIndex));
+        pillarNodes.clear();
+
+        for (int i = fromIndex + 1; i < toIndex; i++) {
+            double lat = points.getLat(i);
+            double lng = points.getLon(i);
+            if (pillarNodes.is3D()) {
+                double ele = Helper.round6(this.getElevation(lat, lng));
+                pillarNodes.add(lat, lng, ele);
+            } else {
+                pillarNodes.add(lat, lng);
+            }
+        }
+
+        double distance = getWayLength(points, fromIndex, toIndex, road);
+        addEdge(fromTower, toTower, road, distance, estmCentre, pillarNodes);
+    }
     
     double min = 0;
     double max = 0;
 
     @Override
     protected void finishReading() {
-        this.coordState.clear();
+        this.coordState.release();
         this.coordState = null;
         this.pillarInfo.clear();
         this.encodingManager.releaseParsers();
@@ -284,15 +449,11 @@ import static com.graphhopper.util.Helper.*;
         LOGGER.info("Finished reading. Zero Counter " + nf(zeroCounter) + " " + Helper.getMemInfo());
     }
 
-    protected double getWayLength(Coordinate start, List<Coordinate> pillars, SimpleFeature road, Coordinate end) {
+    protected double getWayLength(LineGeometryBuffer points, int fromIndex, int toIndex, SimpleFeature road) {
         double distance = 0;
-
-        Coordinate previous = start;
-        for (Coordinate point : pillars) {
-            distance += distCalc.calcDist(lat(previous), lng(previous), lat(point), lng(point));
-            previous = point;
+        for (int i = fromIndex + 1; i <= toIndex; i++) {
+            distance += distCalc.calcDist(points.getLat(i - 1), points.getLon(i - 1), points.getLat(i), points.getLon(i));
         }
-        distance += distCalc.calcDist(lat(previous), lng(previous), lat(end), lng(end));
 
         if (distance < 0.0001) {
             // As investigation shows often two paths should have crossed via one identical point
@@ -344,6 +505,7 @@ import static com.graphhopper.util.Helper.*;
     @Override
     public DataReader setWayPointMaxDistance(double wayPointMaxDistance) {
         doSimplify = wayPointMaxDistance > 0;
+        this.wayPointMaxDistance = wayPointMaxDistance;
         simplifyAlgo.setMaxDistance(wayPointMaxDistance);
         return this;
     }
@@ -460,21 +622,33 @@ import static com.graphhopper.util.Helper.*;
         encodingManager.applyWayTags(way, edge);
     }
 
+    /**
+     * @return the attribute columns read from the roads table, the geometry column is always fetched
+     */
+    private String[] getRoadColumns() {
+        String[] columns = new String[3 + tagsToCopy.length];
+        columns[0] = "osm_id";
+        columns[1] = "fclass";
+        columns[2] = "maxspeed";
+        System.arraycopy(tagsToCopy, 0, columns, 3, tagsToCopy.length);
+        return columns;
+    }
+
     private long getOSMId(SimpleFeature road) {
         long id = Long.parseLong(road.getAttribute("osm_id").toString());
         return id;
     }
 
-    private Coordinate roundCoordinate(Coordinate c) {
-        c.x = Helper.round6(c.x);
-        c.y = Helper.round6(c.y);
-
-        if (!Double.isNaN(c.z))
-            c.z = Helper.round6(c.z);
-
-        return c;
+    /**
+     * Packs the coordinate, rounded to 6 decimal places, into a single long: 28 bits for the
+     * latitude and 29 bits for the longitude.
+     */
+    static long packCoordinate(double lat, double lon) {
+        long latitude = Math.round(lat * 1e6) + 90_000_000L;
+        long longitude = Math.round(lon * 1e6) + 180_000_000L;
+        return latitude << 29 | longitude;
     }
-    
+
     protected double getElevation(double lat, double lng) {
         return eleProvider.getEle(lat, lng);
     }
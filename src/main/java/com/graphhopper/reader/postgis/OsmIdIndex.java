@@ -0,0 +1,215 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.storage.DAType;
+import com.graphhopper.storage.DataAccess;
+import com.graphhopper.storage.Directory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Maps every edge to the OSM id of its way and every tower node to the OSM id of its node, and back. The index is
+ * stored as memory mapped files next to the graph, so route results can be joined with the import tables without
+ * matching geometries.
+ * <p>
+ * The forward lookups are arrays indexed by the edge or node. The reverse lookups are (OSM id, edge or node) entries
+ * sorted by the OSM id, which are built with an external sort in {@link #flush(File, int)} and searched binary.
+ * Edges and nodes without OSM id, e.g. the end nodes of loops created by the <code>external_sort</code> and
+ * <code>inline_coordinates</code> modes, return {@link #UNKNOWN}.
+ */
+public class OsmIdIndex implements Closeable {
+
+    /**
+     * Returned for edges and nodes without OSM id, real OSM ids start at 1.
+     */
+    public static final long UNKNOWN = 0;
+    private static final int ID_BYTES = 8;
+    // OSM id and edge or node per entry of the reverse lookups
+    private static final int ENTRY_BYTES = 12;
+
+    private final DataAccess edgeWayIds;
+    private final DataAccess nodeIds;
+    private final DataAccess wayEdges;
+    private final DataAccess nodeTowers;
+    private int edgeCount;
+    private int nodeCount;
+
+    public OsmIdIndex(Directory dir) {
+        edgeWayIds = dir.find("osm_edge_way_ids", DAType.MMAP);
+        nodeIds = dir.find("osm_tower_node_ids", DAType.MMAP);
+        wayEdges = dir.find("osm_way_edges", DAType.MMAP);
+        nodeTowers = dir.find("osm_node_towers", DAType.MMAP);
+    }
+
+    public OsmIdIndex create(int expectedEdges, int expectedNodes) {
+        // new segments are zeroed, i.e. every edge and node is UNKNOWN until it is set
+        edgeWayIds.create((long) Math.max(1, expectedEdges) * ID_BYTES);
+        nodeIds.create((long) Math.max(1, expectedNodes) * ID_BYTES);
+        wayEdges.create(ENTRY_BYTES);
+        nodeTowers.create(ENTRY_BYTES);
+        return this;
+    }
+
+    /**
+     * @return false if the index was not stored with the graph
+     */
+    public boolean loadExisting() {
+        if (!edgeWayIds.loadExisting() || !nodeIds.loadExisting() || !wayEdges.loadExisting() || !nodeTowers.loadExisting())
+            return false;
+        edgeCount = edgeWayIds.getHeader(0);
+        nodeCount = nodeIds.getHeader(0);
+        return true;
+    }
+
+    void setWayId(int edge, long osmWayId) {
+        setId(edgeWayIds, edge, osmWayId);
+        edgeCount = Math.max(edgeCount, edge + 1);
+    }
+
+    void setNodeId(int towerNode, long osmNodeId) {
+        setId(nodeIds, towerNode, osmNodeId);
+        nodeCount = Math.max(nodeCount, towerNode + 1);
+    }
+
+    private static void setId(DataAccess da, int index, long id) {
+        long pointer = (long) index * ID_BYTES;
+        da.ensureCapacity(pointer + ID_BYTES);
+        da.setInt(pointer, (int) (id >>> 32));
+        da.setInt(pointer + 4, (int) id);
+    }
+
+    private static long getId(DataAccess da, int index, int count) {
+        if (index < 0 || index >= count)
+            return UNKNOWN;
+        long pointer = (long) index * ID_BYTES;
+        return ((long) da.getInt(pointer) << 32) | (da.getInt(pointer + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Builds the reverse lookups and writes the index to disk.
+     *
+     * @param scratchDir  directory for the runs of the external sort
+     * @param bufferPairs the number of pairs sorted in memory
+     */
+    public void flush(File scratchDir, int bufferPairs) {
+        buildReverse(edgeWayIds, edgeCount, wayEdges, scratchDir, bufferPairs);
+        buildReverse(nodeIds, nodeCount, nodeTowers, scratchDir, bufferPairs);
+        edgeWayIds.setHeader(0, edgeCount);
+        nodeIds.setHeader(0, nodeCount);
+        edgeWayIds.flush();
+        nodeIds.flush();
+        wayEdges.flush();
+        nodeTowers.flush();
+    }
+
+    private static void buildReverse(DataAccess forward, int count, DataAccess reverse, File scratchDir, int bufferPairs) {
+        try (ExternalLongPairSorter sorter = new ExternalLongPairSorter(scratchDir, bufferPairs)) {
+            for (int index = 0; index < count; index++) {
+                long id = getId(forward, index, count);
+                if (id != UNKNOWN)
+                    sorter.add(id, index);
+            }
+            sorter.sort();
+            reverse.ensureCapacity(Math.max(1, sorter.getCount()) * ENTRY_BYTES);
+            long pointer = 0;
+            while (sorter.next()) {
+                reverse.setInt(pointer, (int) (sorter.getKey() >>> 32));
+                reverse.setInt(pointer + 4, (int) sorter.getKey());
+                reverse.setInt(pointer + 8, (int) sorter.getValue());
+                pointer += ENTRY_BYTES;
+            }
+            reverse.setHeader(0, (int) sorter.getCount());
+        }
+    }
+
+    /**
+     * @return the OSM id of the way the edge was created from or UNKNOWN
+     */
+    public long getWayId(int edge) {
+        return getId(edgeWayIds, edge, edgeCount);
+    }
+
+    /**
+     * @return the OSM id of the tower node or UNKNOWN
+     */
+    public long getNodeId(int towerNode) {
+        return getId(nodeIds, towerNode, nodeCount);
+    }
+
+    /**
+     * @return the edges created from the way in ascending order, empty if there are none
+     */
+    public int[] getEdges(long osmWayId) {
+        return findAll(wayEdges, osmWayId);
+    }
+
+    /**
+     * @return the tower nodes created for the OSM node in ascending order. Usually there is one, but barriers and
+     * loops can lead to copies of a node.
+     */
+    public int[] getTowerNodes(long osmNodeId) {
+        return findAll(nodeTowers, osmNodeId);
+    }
+
+    private static int[] findAll(DataAccess reverse, long id) {
+        int entries = reverse.getHeader(0);
+        // the first entry with a key >= id
+        int low = 0, high = entries;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getKey(reverse, middle) < id)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        int end = low;
+        while (end < entries && getKey(reverse, end) == id) {
+            end++;
+        }
+        int[] result = new int[end - low];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = reverse.getInt((long) (low + i) * ENTRY_BYTES + 8);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static long getKey(DataAccess reverse, int entry) {
+        long pointer = (long) entry * ENTRY_BYTES;
+        return ((long) reverse.getInt(pointer) << 32) | (reverse.getInt(pointer + 4) & 0xFFFFFFFFL);
+    }
+
+    public int getEdgeCount() {
+        return edgeCount;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    @Override
+    public void close() {
+        edgeWayIds.close();
+        nodeIds.close();
+        wayEdges.close();
+        nodeTowers.close();
+    }
+}
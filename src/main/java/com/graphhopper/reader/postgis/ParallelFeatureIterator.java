@@ -0,0 +1,132 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import org.geotools.feature.FeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reads several FeatureIterators concurrently, each in its own thread, and returns their features as one stream.
+ * Fetching and decoding the rows happens in parallel while the features are consumed by a single thread. The order
+ * of the features is not defined.
+ */
+public class ParallelFeatureIterator implements FeatureIterator<SimpleFeature> {
+
+    private static final int BATCH_SIZE = 1_000;
+    private static final List<SimpleFeature> END = Collections.emptyList();
+
+    private final BlockingQueue<List<SimpleFeature>> queue;
+    private final ExecutorService executor;
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+    private final int sources;
+    private int finishedSources = 0;
+    private List<SimpleFeature> batch = END;
+    private int batchIndex = 0;
+
+    public ParallelFeatureIterator(List<FeatureIterator<SimpleFeature>> iterators) {
+        this.sources = iterators.size();
+        // limit the number of buffered batches so that a slow consumer does not fill the heap
+        this.queue = new ArrayBlockingQueue<>(Math.max(4, 4 * sources));
+        this.executor = Executors.newFixedThreadPool(Math.max(1, sources));
+        for (FeatureIterator<SimpleFeature> iterator : iterators) {
+            executor.execute(() -> read(iterator));
+        }
+        executor.shutdown();
+    }
+
+    private void read(FeatureIterator<SimpleFeature> iterator) {
+        try {
+            List<SimpleFeature> tmpBatch = new ArrayList<>(BATCH_SIZE);
+            while (iterator.hasNext()) {
+                tmpBatch.add(iterator.next());
+                if (tmpBatch.size() == BATCH_SIZE) {
+                    queue.put(tmpBatch);
+                    tmpBatch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+            if (!tmpBatch.isEmpty())
+                queue.put(tmpBatch);
+        } catch (InterruptedException e) {
+            // closed by the consumer
+            return;
+        } catch (Throwable t) {
+            error.compareAndSet(null, t);
+        } finally {
+            iterator.close();
+        }
+
+        try {
+            queue.put(END);
+        } catch (InterruptedException e) {
+            // closed by the consumer
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (batchIndex >= batch.size()) {
+            if (finishedSources == sources)
+                return false;
+            try {
+                batch = queue.take();
+                batchIndex = 0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while reading features", e);
+            }
+            if (batch == END)
+                finishedSources++;
+            if (error.get() != null) {
+                // stop the other readers, the caller may not close this iterator after the exception
+                close();
+                throw Utils.asUnchecked(error.get());
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public SimpleFeature next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return batch.get(batchIndex++);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES))
+                throw new IllegalStateException("Reader threads did not terminate");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        queue.clear();
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.util.Helper;
+import com.graphhopper.util.StopWatch;
+import org.geotools.data.DataStore;
+import org.geotools.data.DataStoreFinder;
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.Query;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.jdbc.JDBCDataStore;
+import org.geotools.jdbc.JDBCDataStoreFactory;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.filter.Filter;
+import org.postgresql.PGConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.StringReader;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.graphhopper.util.Helper.nf;
+
+/**
+ * Reads the rows of a PostGIS table or view in batches, processes the batches on a thread pool and writes the results
+ * of every batch with one <code>COPY</code> into a target table. At most two batches per thread wait for a worker, so
+ * a slow database or slow processing blocks the reader instead of filling the heap.
+ */
+public abstract class PostgisBatchJob {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PostgisBatchJob.class);
+
+    private final Map<String, Object> postgisParams;
+    private final String sourceTable;
+    private final String targetTable;
+    private final int threads;
+    private final int batchSize;
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    protected PostgisBatchJob(Map<String, Object> postgisParams, String sourceTable, String targetTable) {
+        // the job sets its own pool size, the import keeps its settings
+        this.postgisParams = new HashMap<>(postgisParams);
+        this.sourceTable = sourceTable;
+        this.targetTable = targetTable;
+        this.threads = Math.max(1, Utils.getInt(postgisParams, "batch_threads", Runtime.getRuntime().availableProcessors()));
+        this.batchSize = Math.max(1, Utils.getInt(postgisParams, "batch_size", 1000));
+        if (sourceTable == null || sourceTable.isEmpty() || targetTable == null || targetTable.isEmpty())
+            throw new IllegalArgumentException("The source and the target table are required for " + getClass().getSimpleName());
+    }
+
+    /**
+     * @return the columns read from the source table
+     */
+    protected abstract String[] getSourceColumns();
+
+    /**
+     * @return the columns of the rows written by {@link #process(SimpleFeature, StringBuilder)}
+     */
+    protected abstract String[] getTargetColumns();
+
+    /**
+     * Processes a row of the source table and appends the resulting rows in the text format of COPY. Called
+     * concurrently by the worker threads.
+     *
+     * @return false if the row failed, the job continues with the next row
+     */
+    protected abstract boolean process(SimpleFeature row, StringBuilder rows);
+
+    /**
+     * Processes all rows of the source table.
+     *
+     * @return the number of processed rows, including failed ones
+     */
+    public long run() {
+        postgisParams.put(JDBCDataStoreFactory.FETCHSIZE.key, batchSize);
+        // one connection per worker writing its batch and one for the reader
+        postgisParams.put(JDBCDataStoreFactory.MAXCONN.key, threads + 2);
+        DataStore dataStore;
+        try {
+            dataStore = DataStoreFinder.getDataStore(postgisParams);
+        } catch (Exception e) {
+            throw Utils.asUnchecked(e);
+        }
+        if (!(dataStore instanceof JDBCDataStore))
+            throw new IllegalArgumentException("Error Connecting to Database ");
+
+        StopWatch sw = new StopWatch().start();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Semaphore permits = new Semaphore(2 * threads);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        FeatureIterator<SimpleFeature> features = null;
+        try {
+            // a transaction makes the driver respect the fetch size
+            features = new TransactionFeatureIterator(dataStore, new Query(sourceTable, Filter.INCLUDE, getSourceColumns()),
+                    new DefaultTransaction(sourceTable));
+            List<SimpleFeature> batch = new ArrayList<>(batchSize);
+            while (error.get() == null && features.hasNext()) {
+                batch.add(features.next());
+                if (batch.size() < batchSize && features.hasNext())
+                    continue;
+
+                permits.acquire();
+                List<SimpleFeature> tmpBatch = batch;
+                executor.execute(() -> {
+                    try {
+                        StringBuilder rows = new StringBuilder(tmpBatch.size() * 64);
+                        for (SimpleFeature row : tmpBatch) {
+                            if (!process(row, rows))
+                                failed.incrementAndGet();
+                        }
+                        copy((JDBCDataStore) dataStore, rows.toString());
+                        long count = processed.addAndGet(tmpBatch.size());
+                        // report about every 100 batches
+                        long reportSize = 100L * batchSize;
+                        if (count / reportSize != (count - tmpBatch.size()) / reportSize)
+                            logProgress(sw);
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    } finally {
+                        permits.release();
+                    }
+                });
+                batch = new ArrayList<>(batchSize);
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while processing " + sourceTable, e);
+        } finally {
+            executor.shutdownNow();
+            if (features != null)
+                features.close();
+            dataStore.dispose();
+        }
+        if (error.get() != null)
+            throw Utils.asUnchecked(error.get());
+
+        sw.stop();
+        logProgress(sw);
+        return processed.get();
+    }
+
+    private void logProgress(StopWatch sw) {
+        double seconds = Math.max(sw.getCurrentSeconds(), 0.001);
+        LOGGER.info(getClass().getSimpleName() + ": " + nf(processed.get()) + " rows of " + sourceTable + " processed into "
+                + targetTable + ", failed:" + nf(failed.get()) + ", " + nf((long) (processed.get() / seconds)) + " rows/s "
+                + Helper.getMemInfo());
+    }
+
+    private void copy(JDBCDataStore dataStore, String rows) throws Exception {
+        if (rows.isEmpty())
+            return;
+        String sql = "COPY " + Utils.qualifiedTable(postgisParams, targetTable)
+                + " (" + String.join(", ", getTargetColumns()) + ") FROM STDIN";
+        try (Connection connection = dataStore.getDataSource().getConnection()) {
+            connection.unwrap(PGConnection.class).getCopyAPI().copyIn(sql, new StringReader(rows));
+        }
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Appends the value escaped for the text format of COPY, null is written as \N.
+     */
+    static StringBuilder appendCopyValue(StringBuilder sb, Object value) {
+        if (value == null)
+            return sb.append("\\N");
+        String str = value.toString();
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb;
+    }
+}
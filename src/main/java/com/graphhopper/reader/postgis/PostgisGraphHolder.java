@@ -0,0 +1,294 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.GraphHopperConfig;
+import com.graphhopper.json.geo.JsonFeatureCollection;
+import com.graphhopper.util.Helper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.graphhopper.util.Helper.nf;
+
+/**
+ * Serves a GraphHopperPostgis while a new graph is imported in the background. The graphs are stored alternately in
+ * the sibling directories <code>graph.location-blue</code> and <code>graph.location-green</code>. A rebuild imports
+ * the tables into the directory that is not served with a limited number of connections and threads, checks the new
+ * graph and then replaces the served graph. The file <code>graph.location.current</code> points to the served
+ * directory, so a restart loads the last graph that passed the check.
+ * <p>
+ * Requests acquire a lease of the current graph, the replaced graph is closed once its last lease is released:
+ * <pre>
+ * try (PostgisGraphHolder.Lease lease = holder.acquire()) {
+ *     GHResponse response = lease.getHopper().route(request);
+ * }
+ * </pre>
+ */
+public class PostgisGraphHolder implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PostgisGraphHolder.class);
+
+    private final GraphHopperConfig config;
+    private final JsonFeatureCollection landmarkSplittingFeatureCollection;
+    private final File baseLocation;
+    private final File pointerFile;
+    private final int rebuildThreads;
+    private final double minNodeRatio;
+    private final AtomicReference<Generation> current = new AtomicReference<>();
+    // the graph replaced by the last rebuild, its directory is the target of the next one. Only the rebuild uses it
+    private Generation replaced;
+    private final ExecutorService rebuildExecutor;
+    private Future<?> rebuild;
+
+    /**
+     * Loads the graph of the last successful build or imports it if there is none.
+     */
+    public PostgisGraphHolder(GraphHopperConfig config, JsonFeatureCollection landmarkSplittingFeatureCollection) {
+        this.config = config;
+        this.landmarkSplittingFeatureCollection = landmarkSplittingFeatureCollection;
+        String location = config.getString("graph.location", "");
+        if (location.isEmpty())
+            throw new IllegalArgumentException("The graph holder requires graph.location");
+        this.baseLocation = new File(location);
+        this.pointerFile = new File(location + ".current");
+        this.rebuildThreads = Math.max(1, config.getInt("postgis.rebuild_threads", 1));
+        this.minNodeRatio = config.getDouble("postgis.rebuild_min_node_ratio", 0.5);
+        this.rebuildExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "postgis-rebuild");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        File currentLocation = readCurrentLocation(pointerFile, baseLocation);
+        GraphHopperPostgis hopper = new GraphHopperPostgis(createConfig(currentLocation, false), landmarkSplittingFeatureCollection);
+        hopper.importOrLoad();
+        current.set(new Generation(hopper, currentLocation));
+    }
+
+    /**
+     * @return a lease of the current graph, which has to be closed after the request
+     */
+    public Lease acquire() {
+        while (true) {
+            Generation generation = current.get();
+            if (generation == null)
+                throw new IllegalStateException("The graph holder is closed");
+            if (generation.retain())
+                return new Lease(generation);
+        }
+    }
+
+    /**
+     * Starts a rebuild in the background unless one is running already.
+     *
+     * @return the running rebuild, which fails if the new graph was not imported or did not pass the check
+     */
+    public synchronized Future<?> rebuild() {
+        if (rebuild == null || rebuild.isDone())
+            rebuild = rebuildExecutor.submit(this::rebuildGraph);
+        return rebuild;
+    }
+
+    private void rebuildGraph() {
+        Generation served = current.get();
+        if (served == null)
+            return;
+        File location = nextLocation(baseLocation, served.location);
+        // requests that acquired the graph before the last switch may still read the files of the directory
+        if (replaced != null && replaced.location.equals(location))
+            awaitClosed(replaced);
+        replaced = null;
+        LOGGER.info("Rebuilding the graph into " + location + ", serving " + served.location);
+        Helper.removeDir(location);
+        GraphHopperPostgis hopper = new GraphHopperPostgis(createConfig(location, true), landmarkSplittingFeatureCollection);
+        try {
+            hopper.importOrLoad();
+            int nodes = hopper.getGraphHopperStorage().getNodes();
+            int servedNodes = served.hopper.getGraphHopperStorage().getNodes();
+            if (!isValid(nodes, servedNodes, minNodeRatio))
+                throw new IllegalStateException("The rebuilt graph has " + nf(nodes) + " nodes, the served graph "
+                        + nf(servedNodes) + ", keeping the served graph");
+            writeCurrentLocation(pointerFile, location);
+        } catch (IOException | RuntimeException e) {
+            hopper.close();
+            Helper.removeDir(location);
+            throw Utils.asUnchecked(e);
+        }
+
+        Generation generation = new Generation(hopper, location);
+        if (!current.compareAndSet(served, generation)) {
+            // closed while rebuilding
+            generation.release();
+            return;
+        }
+        replaced = served;
+        served.release();
+        LOGGER.info("Switched to the graph in " + location);
+    }
+
+    private static void awaitClosed(Generation generation) {
+        try {
+            while (!generation.closed.await(1, TimeUnit.MINUTES)) {
+                LOGGER.info("Waiting for " + generation.references.get() + " leases of the graph in "
+                        + generation.location + " before rebuilding into it");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the leases of the graph in "
+                    + generation.location, e);
+        }
+    }
+
+    /**
+     * The rebuild reads the database instead of a snapshot file, which would contain the old data. It has to share the
+     * machine and the database with the served graph, so the import reads with a single connection and the import
+     * and the preparations use postgis.rebuild_threads threads.
+     */
+    private GraphHopperConfig createConfig(File location, boolean rebuild) {
+        GraphHopperConfig graphConfig = new GraphHopperConfig(config);
+        graphConfig.putObject("graph.location", location.getPath());
+        if (rebuild) {
+            graphConfig.putObject("postgis.snapshot_file", "");
+            graphConfig.putObject("postgis.read_connections", 1);
+            graphConfig.putObject("datareader.worker_threads", rebuildThreads);
+            graphConfig.putObject("prepare.ch.threads", rebuildThreads);
+            graphConfig.putObject("prepare.lm.threads", rebuildThreads);
+        }
+        return graphConfig;
+    }
+
+    /**
+     * Stops a running rebuild and closes the current graph once its last lease is released.
+     */
+    @Override
+    public synchronized void close() {
+        rebuildExecutor.shutdownNow();
+        Generation generation = current.getAndSet(null);
+        if (generation != null)
+            generation.release();
+    }
+
+    /**
+     * @return the directory of the next build, the sibling of the served directory
+     */
+    static File nextLocation(File baseLocation, File currentLocation) {
+        File blue = new File(baseLocation.getPath() + "-blue");
+        return blue.equals(currentLocation) ? new File(baseLocation.getPath() + "-green") : blue;
+    }
+
+    /**
+     * @return true if the rebuilt graph is not much smaller than the served one, e.g. because a table was truncated
+     */
+    static boolean isValid(int nodes, int servedNodes, double minNodeRatio) {
+        return nodes > 0 && nodes >= servedNodes * minNodeRatio;
+    }
+
+    /**
+     * @return the served directory or the base location if no rebuild finished yet
+     */
+    static File readCurrentLocation(File pointerFile, File baseLocation) {
+        if (!pointerFile.exists())
+            return baseLocation;
+        try {
+            String location = new String(Files.readAllBytes(pointerFile.toPath()), StandardCharsets.UTF_8).trim();
+            return location.isEmpty() ? baseLocation : new File(location);
+        } catch (IOException e) {
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    /**
+     * Replaces the pointer file atomically, so a crash never leaves it half written.
+     */
+    static void writeCurrentLocation(File pointerFile, File location) throws IOException {
+        File tmpFile = new File(pointerFile.getPath() + ".tmp");
+        Files.write(tmpFile.toPath(), location.getPath().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmpFile.toPath(), pointerFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * A served graph. The holder keeps one reference until the graph is replaced, every lease another one.
+     */
+    private static class Generation {
+        final GraphHopperPostgis hopper;
+        final File location;
+        final AtomicInteger references = new AtomicInteger(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        Generation(GraphHopperPostgis hopper, File location) {
+            this.hopper = hopper;
+            this.location = location;
+        }
+
+        boolean retain() {
+            while (true) {
+                int count = references.get();
+                if (count == 0)
+                    return false;
+                if (references.compareAndSet(count, count + 1))
+                    return true;
+            }
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                LOGGER.info("Closing the graph in " + location);
+                try {
+                    hopper.close();
+                } finally {
+                    closed.countDown();
+                }
+            }
+        }
+    }
+
+    public static class Lease implements AutoCloseable {
+        private final Generation generation;
+        private boolean released;
+
+        private Lease(Generation generation) {
+            this.generation = generation;
+        }
+
+        public GraphHopperPostgis getHopper() {
+            return generation.hopper;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                generation.release();
+            }
+        }
+    }
+}
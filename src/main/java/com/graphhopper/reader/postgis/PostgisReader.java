@@ -34,6 +34,7 @@ import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.GeometryDescriptor;
 import org.opengis.filter.Filter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,6 +43,7 @@ import org.locationtech.jts.geom.LineString;
 import org.locationtech.jts.geom.MultiLineString;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import org.geotools.jdbc.JDBCDataStoreFactory;
@@ -57,6 +59,8 @@ import org.geotools.jdbc.JDBCDataStoreFactory;
 public abstract class PostgisReader implements DataReader {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(PostgisReader.class);
+    protected static final String WKB_COLUMN = "gh_wkb";
+    protected static final String TWKB_COLUMN = "gh_twkb";
 
     private final GraphStorage graphStorage;
     private final NodeAccess nodeAccess;
@@ -93,7 +97,11 @@ public abstract class PostgisReader implements DataReader {
      */
     protected abstract void finishReading();
 
-    protected SimpleFeatureIterator getFeatureIterator(DataStore dataStore, String tableName) {
+    /**
+     * Returns an iterator over the features of the specified table. If columns are specified only these and the
+     * geometry column are fetched, otherwise all columns.
+     */
+    protected SimpleFeatureIterator getFeatureIterator(DataStore dataStore, String tableName, String... columns) {
 
         if (dataStore == null)
             throw new IllegalArgumentException("DataStore cannot be null for getFeatureIterator");
@@ -104,9 +112,14 @@ public abstract class PostgisReader implements DataReader {
             SimpleFeatureSource source = dataStore.getFeatureSource(tableName);
             SimpleFeatureType inputType = dataStore.getSchema(tableName);
             Filter filter = getFilter(source);
-            
-//            Query query = new Query(tableName, )
-            SimpleFeatureCollection collection = source.getFeatures(filter);
+
+            Query query = new Query(tableName, filter);
+            if (columns.length > 0) {
+                String[] properties = Arrays.copyOf(columns, columns.length + 1);
+                properties[columns.length] = inputType.getGeometryDescriptor().getLocalName();
+                query.setPropertyNames(properties);
+            }
+            SimpleFeatureCollection collection = source.getFeatures(query);
             SimpleFeatureIterator featureIterator = collection.features();
             
             return featureIterator;
@@ -116,6 +129,58 @@ public abstract class PostgisReader implements DataReader {
         }
     }
 
+    /**
+     * Like getFeatureIterator, but instead of the geometry the column {@link #WKB_COLUMN} is fetched, that contains
+     * the 2D geometry as WKB. Use a {@link LineGeometryBuffer} to decode it without creating JTS geometries.
+     * <p>
+     * The features are read from a virtual table with all columns of the table, including the geometry, so that the
+     * filter of {@link #getFilter(FeatureSource)} is still evaluated. If {@link #readsAllColumns()} returns true all
+     * columns are fetched like before, otherwise only the specified ones.
+     */
+    protected SimpleFeatureIterator getWkbFeatureIterator(DataStore dataStore, String tableName, String... columns) {
+        try {
+            GeometryDescriptor geometry = dataStore.getSchema(tableName).getGeometryDescriptor();
+            String sql = "select t.*, ST_AsBinary(ST_Force2D(t." + geometry.getLocalName() + ")) as " + WKB_COLUMN
+                    + " from " + getQualifiedTable(tableName) + " t";
+            String virtualTable = Utils.createVirtualTable(dataStore, tableName + "_gh_wkb", sql, geometry);
+
+            // the virtual table has the same attributes, so the filter created for the table can be used
+            Query query = new Query(virtualTable, getFilter(dataStore.getFeatureSource(tableName)));
+            if (!readsAllColumns()) {
+                String[] properties = Arrays.copyOf(columns, columns.length + 1);
+                properties[columns.length] = WKB_COLUMN;
+                query.setPropertyNames(properties);
+            }
+            LOGGER.info("Getting the WKB feature iterator for " + tableName);
+            return dataStore.getFeatureSource(virtualTable).getFeatures(query).features();
+        } catch (IOException e) {
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    /**
+     * Subclasses whose {@link #acceptFeature(SimpleFeature)} reads other columns than the ones requested by the reader
+     * have to return true, so that getWkbFeatureIterator fetches all columns.
+     */
+    protected boolean readsAllColumns() {
+        return false;
+    }
+
+    /**
+     * @return the quoted and schema qualified table name to be used in SQL statements
+     */
+    protected String getQualifiedTable(String tableName) {
+        return Utils.qualifiedTable(postgisParams, tableName);
+    }
+
+    protected String getGeometryColumn(DataStore dataStore, String tableName) {
+        try {
+            return dataStore.getSchema(tableName).getGeometryDescriptor().getLocalName();
+        } catch (IOException e) {
+            throw Utils.asUnchecked(e);
+        }
+    }
+
     /**
      * Filters can help a lot when you need to limit the results returned from PostGIS.
      * A Filter can be used similar to the WHERE clause in regular SQL statements.
@@ -143,7 +208,8 @@ public abstract class PostgisReader implements DataReader {
     }
 
     /**
-     * This method can be used to filter features. One way to use it is to filter for features withing a certain BBox
+     * This method can be used to filter features. One way to use it is to filter for features withing a certain BBox.
+     * See {@link #readsAllColumns()} if the filter needs additional columns.
      *
      * @return true if the feature should be accepted
      */
@@ -197,6 +263,10 @@ public abstract class PostgisReader implements DataReader {
     }
 
     protected void saveTowerPosition(int nodeId, Coordinate point) {
-        nodeAccess.setNode(nodeId, lat(point), lng(point), ele(point));
+        saveTowerPosition(nodeId, lat(point), lng(point), ele(point));
+    }
+
+    protected void saveTowerPosition(int nodeId, double lat, double lon, double ele) {
+        nodeAccess.setNode(nodeId, lat, lon, ele);
     }
 }
\ No newline at end of file
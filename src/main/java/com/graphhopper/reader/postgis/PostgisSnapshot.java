@@ -0,0 +1,147 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import org.geotools.data.DataStore;
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.Transaction;
+import org.geotools.jdbc.JDBCDataStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Exports a snapshot of the database via <code>pg_export_snapshot</code> and lets other connections import it. All
+ * reads done in a transaction created via {@link #begin(String)} see exactly the same data, even if the tables are
+ * modified concurrently or if the reads are spread over several connections.
+ * <p>
+ * The exporting transaction is kept open until this object is closed.
+ */
+public class PostgisSnapshot implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PostgisSnapshot.class);
+
+    private final JDBCDataStore dataStore;
+    private final Connection exportConnection;
+    private final String snapshotId;
+
+    private PostgisSnapshot(JDBCDataStore dataStore, Connection exportConnection, String snapshotId) {
+        this.dataStore = dataStore;
+        this.exportConnection = exportConnection;
+        this.snapshotId = snapshotId;
+    }
+
+    /**
+     * Opens a REPEATABLE READ transaction on a new connection and exports its snapshot.
+     */
+    public static PostgisSnapshot export(DataStore dataStore) {
+        if (!(dataStore instanceof JDBCDataStore))
+            throw new IllegalArgumentException("Snapshots require a JDBCDataStore but was " + dataStore.getClass().getName());
+
+        JDBCDataStore jdbcDataStore = (JDBCDataStore) dataStore;
+        Connection connection = null;
+        try {
+            connection = jdbcDataStore.getDataSource().getConnection();
+            connection.setAutoCommit(false);
+            connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            try (Statement statement = connection.createStatement();
+                 ResultSet rs = statement.executeQuery("select pg_export_snapshot()")) {
+                rs.next();
+                String snapshotId = rs.getString(1);
+                LOGGER.info("Exported snapshot " + snapshotId);
+                return new PostgisSnapshot(jdbcDataStore, connection, snapshotId);
+            }
+        } catch (SQLException e) {
+            closeQuietly(connection);
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    public String getId() {
+        return snapshotId;
+    }
+
+    /**
+     * Creates a new transaction whose connection imports this snapshot. The transaction has to be closed by the
+     * caller.
+     */
+    public Transaction begin(String handle) {
+        Transaction transaction = new DefaultTransaction(handle);
+        try {
+            Connection connection = dataStore.getConnection(transaction);
+            importInto(connection);
+            return transaction;
+        } catch (IOException | SQLException e) {
+            closeQuietly(transaction);
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    /**
+     * Lets the specified connection see this snapshot. The connection must not be in auto commit mode and must not
+     * have executed a statement in the current transaction yet.
+     */
+    public void importInto(Connection connection) throws SQLException {
+        if (connection.getAutoCommit())
+            throw new IllegalArgumentException("Importing a snapshot requires a connection without auto commit");
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+            // the id is returned by the database and has a fixed format, so it does not need escaping
+            statement.execute("SET TRANSACTION SNAPSHOT '" + snapshotId + "'");
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            exportConnection.rollback();
+        } catch (SQLException e) {
+            LOGGER.warn("Could not end transaction of snapshot " + snapshotId, e);
+        }
+        closeQuietly(exportConnection);
+    }
+
+    static void closeQuietly(Transaction transaction) {
+        try {
+            transaction.rollback();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Could not rollback transaction " + transaction, e);
+        }
+        try {
+            transaction.close();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Could not close transaction " + transaction, e);
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        if (connection == null)
+            return;
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOGGER.warn("Could not close connection", e);
+        }
+    }
+}
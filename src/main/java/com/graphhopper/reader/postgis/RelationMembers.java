@@ -0,0 +1,165 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.reader.ReaderElement;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The members of a relation as primitive arrays, that are reused for the next relation. The members can be read from
+ * the hstore column <code>members</code>, that maps the type and id of a member to its role, e.g. "w123" to "from",
+ * or from the typed array columns {@link #TYPES_COLUMN}, {@link #REFS_COLUMN} and {@link #ROLES_COLUMN}. Only the
+ * typed columns keep the order of the members and members that occur more than once.
+ * <p>
+ * The types are the constants of ReaderElement. The roles are interned, as most relations share few roles.
+ */
+public class RelationMembers {
+
+    public static final String HSTORE_COLUMN = "members";
+    public static final String TYPES_COLUMN = "member_types";
+    public static final String REFS_COLUMN = "member_refs";
+    public static final String ROLES_COLUMN = "member_roles";
+    // the index is the type of ReaderElement
+    static final String TYPE_DECODE = "nwr";
+    private static final int MAX_INTERNED_ROLES = 1000;
+
+    private byte[] types = new byte[16];
+    private long[] refs = new long[16];
+    private String[] roles = new String[16];
+    private int size;
+    private final Map<String, String> internedRoles = new HashMap<>();
+
+    /**
+     * Replaces the members with the members of the hstore column.
+     *
+     * @return this object
+     */
+    public RelationMembers readHStore(Map<String, String> members) {
+        clear();
+        if (members == null)
+            return this;
+
+        for (Map.Entry<String, String> member : members.entrySet()) {
+            String key = member.getKey();
+            add(decodeType(key.charAt(0)), Long.parseLong(key.substring(1)), member.getValue());
+        }
+        return this;
+    }
+
+    /**
+     * Replaces the members with the members of the typed columns, which have to be of the same length. The types can
+     * be <code>char(1)[]</code> or <code>text[]</code> columns, the refs <code>int8[]</code>.
+     *
+     * @return this object
+     */
+    public RelationMembers readArrays(Object[] memberTypes, Object[] memberRefs, Object[] memberRoles) {
+        clear();
+        if (memberTypes == null || memberRefs == null)
+            return this;
+        if (memberTypes.length != memberRefs.length || memberRoles != null && memberRoles.length != memberRefs.length)
+            throw new IllegalArgumentException("The member columns have different lengths " + memberTypes.length
+                    + ", " + memberRefs.length + ", " + (memberRoles == null ? 0 : memberRoles.length));
+
+        for (int i = 0; i < memberTypes.length; i++) {
+            String role = memberRoles == null || memberRoles[i] == null ? "" : memberRoles[i].toString();
+            add(decodeType(memberTypes[i].toString().charAt(0)), ((Number) memberRefs[i]).longValue(), role);
+        }
+        return this;
+    }
+
+    private static int decodeType(char type) {
+        int index = TYPE_DECODE.indexOf(Character.toLowerCase(type));
+        if (index < 0)
+            throw new IllegalArgumentException("Unknown member type " + type);
+        return index;
+    }
+
+    /**
+     * Appends a member.
+     *
+     * @param type one of ReaderElement.NODE, WAY or RELATION
+     */
+    public void add(int type, long ref, String role) {
+        if (size == refs.length) {
+            types = Arrays.copyOf(types, size * 2);
+            refs = Arrays.copyOf(refs, size * 2);
+            roles = Arrays.copyOf(roles, size * 2);
+        }
+        types[size] = (byte) type;
+        refs[size] = ref;
+        roles[size] = intern(role);
+        size++;
+    }
+
+    private String intern(String role) {
+        String interned = internedRoles.get(role);
+        if (interned != null)
+            return interned;
+        if (internedRoles.size() < MAX_INTERNED_ROLES)
+            internedRoles.put(role, role);
+        return role;
+    }
+
+    public void clear() {
+        // release the references to roles that are not interned
+        Arrays.fill(roles, 0, size, null);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getType(int index) {
+        return types[index];
+    }
+
+    public long getRef(int index) {
+        return refs[index];
+    }
+
+    public String getRole(int index) {
+        return roles[index];
+    }
+
+    /**
+     * @return true if one of the members is a relation, like ReaderRelation.isMetaRelation
+     */
+    public boolean isMetaRelation() {
+        for (int i = 0; i < size; i++) {
+            if (types[i] == ReaderElement.RELATION)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the ref of the last member with the specified type and role or -1 if there is no such member. Like
+     * the turn relations of the OSMReader the last member wins if a relation has several.
+     */
+    public long findRef(int type, String role) {
+        for (int i = size - 1; i >= 0; i--) {
+            if (types[i] == type && role.equals(roles[i]))
+                return refs[i];
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import com.carrotsearch.hppc.LongIntHashMap;
+import com.carrotsearch.hppc.cursors.LongIntCursor;
+import com.graphhopper.coll.GHLongIntBTree;
+import com.graphhopper.coll.LongIntMap;
+import com.graphhopper.util.Helper;
+
+/**
+ * A thread safe LongIntMap that distributes the keys over several hash map stripes, each guarded by its own lock.
+ * Threads working on keys of different stripes do not block each other. Like GHLongIntBTree get returns -1 for keys
+ * that are not contained.
+ * <p>
+ * The map is meant for a phase in which several threads write, afterwards it is converted with toBTree, so that the
+ * reads of a single thread take no locks.
+ */
+public class StripedLongIntMap implements LongIntMap {
+
+    private static final int EMPTY = -1;
+    private final LongIntHashMap[] stripes;
+    private final int mask;
+
+    /**
+     * @param concurrency the expected number of threads, the number of stripes is a multiple of it
+     */
+    public StripedLongIntMap(int concurrency) {
+        // more stripes than threads keep the probability of contention low
+        int count = Integer.highestOneBit(Math.max(1, concurrency) * 16 - 1) << 1;
+        stripes = new LongIntHashMap[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new LongIntHashMap();
+        }
+        mask = count - 1;
+    }
+
+    private LongIntHashMap stripe(long key) {
+        return stripes[(int) DataAccessLongIntMap.hash(key) & mask];
+    }
+
+    @Override
+    public int put(long key, int value) {
+        LongIntHashMap stripe = stripe(key);
+        synchronized (stripe) {
+            int oldValue = stripe.getOrDefault(key, EMPTY);
+            stripe.put(key, value);
+            return oldValue;
+        }
+    }
+
+    @Override
+    public int get(long key) {
+        LongIntHashMap stripe = stripe(key);
+        synchronized (stripe) {
+            return stripe.getOrDefault(key, EMPTY);
+        }
+    }
+
+    /**
+     * Atomically sets the value of the key to the value returned by the transition for its current value. The
+     * transition is called while the stripe of the key is locked, so it has to be fast and must not access this map.
+     *
+     * @return the new value
+     */
+    public int update(long key, IntTransition transition) {
+        LongIntHashMap stripe = stripe(key);
+        synchronized (stripe) {
+            int oldValue = stripe.getOrDefault(key, EMPTY);
+            int newValue = transition.apply(oldValue);
+            if (newValue != oldValue)
+                stripe.put(key, newValue);
+            return newValue;
+        }
+    }
+
+    /**
+     * Copies the entries into a GHLongIntBTree. Every stripe is released after it was copied, so at most one stripe
+     * exists twice. The writing threads have to be finished, this map is empty afterwards.
+     */
+    public GHLongIntBTree toBTree(int maxLeafEntries) {
+        GHLongIntBTree tree = new GHLongIntBTree(maxLeafEntries);
+        for (int i = 0; i < stripes.length; i++) {
+            synchronized (stripes[i]) {
+                for (LongIntCursor cursor : stripes[i]) {
+                    tree.put(cursor.key, cursor.value);
+                }
+                stripes[i].release();
+            }
+        }
+        return tree;
+    }
+
+    @Override
+    public long getSize() {
+        long size = 0;
+        for (LongIntHashMap stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void optimize() {
+    }
+
+    @Override
+    public int getMemoryUsage() {
+        long bytes = 0;
+        for (LongIntHashMap stripe : stripes) {
+            synchronized (stripe) {
+                bytes += (long) stripe.keys.length * (8 + 4);
+            }
+        }
+        return (int) (bytes / Helper.MB);
+    }
+
+    @Override
+    public String toString() {
+        return "stripes:" + stripes.length + ", size:" + getSize();
+    }
+
+    public interface IntTransition {
+        int apply(int value);
+    }
+}
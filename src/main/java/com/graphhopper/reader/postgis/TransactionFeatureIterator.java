@@ -0,0 +1,79 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import org.geotools.data.DataStore;
+import org.geotools.data.FeatureReader;
+import org.geotools.data.Query;
+import org.geotools.data.Transaction;
+import org.geotools.feature.FeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import java.io.IOException;
+
+/**
+ * Reads the features of a query within its own transaction. Closing the iterator ends the transaction.
+ * <p>
+ * Reading within a transaction (i.e. without auto commit) is also what makes the PostgreSQL driver respect the fetch
+ * size, otherwise the whole result would be loaded into memory.
+ */
+public class TransactionFeatureIterator implements FeatureIterator<SimpleFeature> {
+
+    private final Transaction transaction;
+    private final FeatureReader<SimpleFeatureType, SimpleFeature> reader;
+
+    public TransactionFeatureIterator(DataStore dataStore, Query query, Transaction transaction) {
+        this.transaction = transaction;
+        try {
+            this.reader = dataStore.getFeatureReader(query, transaction);
+        } catch (IOException | RuntimeException e) {
+            PostgisSnapshot.closeQuietly(transaction);
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            return reader.hasNext();
+        } catch (IOException e) {
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    @Override
+    public SimpleFeature next() {
+        try {
+            return reader.next();
+        } catch (IOException e) {
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            throw Utils.asUnchecked(e);
+        } finally {
+            PostgisSnapshot.closeQuietly(transaction);
+        }
+    }
+}
@@ -18,6 +18,13 @@
 package com.graphhopper.reader.postgis;
 
 import com.graphhopper.GraphHopperConfig;
+import org.geotools.data.DataStore;
+import org.geotools.jdbc.JDBCDataStore;
+import org.geotools.jdbc.VirtualTable;
+import org.locationtech.jts.geom.Geometry;
+import org.opengis.feature.type.GeometryDescriptor;
+
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -55,7 +62,111 @@ public class Utils {
         postgisParams.put("user", configuration.getString("postgis.user", ""));
         postgisParams.put("passwd", configuration.getString("postgis.password", ""));
         postgisParams.put("tags_to_copy", configuration.getString("postgis.tags_to_copy", ""));
+        postgisParams.put("pushdown_filter", configuration.getBool("postgis.pushdown_filter", false));
+        postgisParams.put("consistent_snapshot", configuration.getBool("postgis.consistent_snapshot", false));
+        postgisParams.put("read_connections", configuration.getInt("postgis.read_connections", 1));
+        postgisParams.put("junctions", configuration.getString("postgis.junctions", "client"));
+        postgisParams.put("simplify", configuration.getString("postgis.simplify", "client"));
+        postgisParams.put("junction_map_type", configuration.getString("postgis.junction_map_type", "RAM"));
+        postgisParams.put("import_mode", configuration.getString("postgis.import_mode", "memory"));
+        postgisParams.put("sort_buffer_mb", configuration.getInt("postgis.sort_buffer_mb", 256));
+        postgisParams.put("preflight", configuration.getString("postgis.preflight", "off"));
+        postgisParams.put("scratch_dir", configuration.getString("postgis.scratch_dir", ""));
+        postgisParams.put("scratch_storage", configuration.getString("postgis.scratch_storage", "MMAP"));
+        postgisParams.put("import_storage", configuration.getString("postgis.import_storage", "heap"));
+        postgisParams.put("snapshot_file", configuration.getString("postgis.snapshot_file", ""));
+        postgisParams.put("osm_id_index", configuration.getBool("postgis.osm_id_index", false));
+        postgisParams.put("batch_source", configuration.getString("postgis.batch_source", ""));
+        postgisParams.put("batch_target", configuration.getString("postgis.batch_target", ""));
+        postgisParams.put("batch_profile", configuration.getString("postgis.batch_profile", ""));
+        postgisParams.put("batch_threads", configuration.getInt("postgis.batch_threads", Runtime.getRuntime().availableProcessors()));
+        postgisParams.put("batch_size", configuration.getInt("postgis.batch_size", 1000));
+        postgisParams.put("batch_geometry", configuration.getBool("postgis.batch_geometry", false));
+        postgisParams.put("isochrone_source", configuration.getString("postgis.isochrone_source", ""));
+        postgisParams.put("isochrone_target", configuration.getString("postgis.isochrone_target", ""));
+        postgisParams.put("isochrone_profile", configuration.getString("postgis.isochrone_profile", ""));
+        postgisParams.put("isochrone_limits", configuration.getString("postgis.isochrone_limits", "600"));
+        postgisParams.put("isochrone_output", configuration.getString("postgis.isochrone_output", "polygon"));
+        postgisParams.put("lm_split_table", configuration.getString("postgis.lm_split_table", ""));
+        postgisParams.put("node_tags", configuration.getBool("postgis.node_tags", false));
+        postgisParams.put("relation_members", configuration.getString("postgis.relation_members", "hstore"));
+        postgisParams.put("encoding_cache_size", configuration.getInt("postgis.encoding_cache_size", 0));
+        postgisParams.put("custom_columns", configuration.getString("postgis.custom_columns", ColumnMapping.DEFAULT_MAPPING));
         return postgisParams;
     }
 
+    /**
+     * @return the value of the parameter or the default if it is not set, e.g. because the params were not created by
+     * postGisParamsFromConfig
+     */
+    public static String getString(Map<String, ?> postgisParams, String key, String defaultValue) {
+        Object value = postgisParams.get(key);
+        return value == null ? defaultValue : value.toString();
+    }
+
+    public static int getInt(Map<String, ?> postgisParams, String key, int defaultValue) {
+        Object value = postgisParams.get(key);
+        if (value instanceof Number)
+            return ((Number) value).intValue();
+        if (value == null || value.toString().trim().isEmpty())
+            return defaultValue;
+        try {
+            return Integer.parseInt(value.toString().trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("postgis." + key + " has to be a number but was " + value, e);
+        }
+    }
+
+    public static boolean getBool(Map<String, ?> postgisParams, String key, boolean defaultValue) {
+        Object value = postgisParams.get(key);
+        if (value == null || value.toString().trim().isEmpty())
+            return defaultValue;
+        return Boolean.parseBoolean(value.toString().trim());
+    }
+
+    /**
+     * @return the quoted and schema qualified name of the specified table to be used in SQL statements
+     */
+    public static String qualifiedTable(Map<String, ?> postgisParams, String table) {
+        Object schema = postgisParams.get("schema");
+        if (schema == null || schema.toString().isEmpty())
+            return "\"" + table + "\"";
+        return "\"" + schema + "\".\"" + table + "\"";
+    }
+
+    /**
+     * Registers the SQL statement as virtual table, so that it can be read like a normal table. Tables are registered
+     * one after the other, as the import reads several tables concurrently.
+     *
+     * @return the name of the virtual table
+     */
+    public static String createVirtualTable(DataStore dataStore, String name, String sql) {
+        return createVirtualTable(dataStore, name, sql, null);
+    }
+
+    /**
+     * Like createVirtualTable, but the virtual table has a geometry column like the specified one, e.g. so that
+     * spatial filters can be evaluated.
+     */
+    @SuppressWarnings("unchecked")
+    public static String createVirtualTable(DataStore dataStore, String name, String sql, GeometryDescriptor geometry) {
+        if (!(dataStore instanceof JDBCDataStore))
+            throw new IllegalArgumentException("Virtual tables require a JDBCDataStore but was " + dataStore.getClass().getName());
+        VirtualTable virtualTable = new VirtualTable(name, sql);
+        if (geometry != null) {
+            Object srid = geometry.getUserData().get(JDBCDataStore.JDBC_NATIVE_SRID);
+            // the roads are expected in WGS84 if the table does not declare its SRID
+            virtualTable.addGeometryMetadatata(geometry.getLocalName(),
+                    (Class<? extends Geometry>) geometry.getType().getBinding(), srid instanceof Integer ? (Integer) srid : 4326);
+        }
+        try {
+            synchronized (dataStore) {
+                ((JDBCDataStore) dataStore).createVirtualTable(virtualTable);
+            }
+            return name;
+        } catch (IOException e) {
+            throw asUnchecked(e);
+        }
+    }
+
 }
\ No newline at end of file
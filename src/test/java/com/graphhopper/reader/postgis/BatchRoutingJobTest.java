@@ -0,0 +1,80 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.GraphHopper;
+import com.graphhopper.config.Profile;
+import com.graphhopper.util.PointList;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BatchRoutingJobTest {
+
+    @Test
+    public void testAppendCopyValue() {
+        assertEquals("\\N", PostgisBatchJob.appendCopyValue(new StringBuilder(), null).toString());
+        assertEquals("42", PostgisBatchJob.appendCopyValue(new StringBuilder(), 42L).toString());
+        assertEquals("a\\tb\\nc\\\\d", PostgisBatchJob.appendCopyValue(new StringBuilder(), "a\tb\nc\\d").toString());
+    }
+
+    @Test
+    public void testToEwkt() {
+        PointList points = new PointList();
+        assertNull(BatchRoutingJob.toEwkt(points));
+
+        points.add(52.5, 13.4);
+        assertEquals("SRID=4326;LINESTRING(13.4 52.5,13.4 52.5)", BatchRoutingJob.toEwkt(points));
+
+        points.add(52.6, 13.5);
+        assertEquals("SRID=4326;LINESTRING(13.4 52.5,13.5 52.6)", BatchRoutingJob.toEwkt(points));
+    }
+
+    @Test
+    public void testFailingPair() {
+        Map<String, Object> params = new HashMap<>();
+        params.put("batch_source", "pairs");
+        params.put("batch_target", "routes");
+        params.put("batch_profile", "car");
+        GraphHopper hopper = new GraphHopper().setProfiles(new Profile("car").setVehicle("car").setWeighting("fastest"));
+        BatchRoutingJob job = new BatchRoutingJob(hopper, params);
+
+        SimpleFeatureTypeBuilder typeBuilder = new SimpleFeatureTypeBuilder();
+        typeBuilder.setName("pairs");
+        typeBuilder.add("id", Long.class);
+        for (String column : new String[]{"from_lat", "from_lon", "to_lat", "to_lon"}) {
+            typeBuilder.add(column, Double.class);
+        }
+        // a NULL coordinate is written as an error row instead of aborting the job
+        SimpleFeature pair = SimpleFeatureBuilder.build(typeBuilder.buildFeatureType(),
+                new Object[]{7L, null, 13.4, 52.6, 13.5}, "pairs.7");
+        StringBuilder rows = new StringBuilder();
+        assertFalse(job.process(pair, rows));
+        assertTrue(rows.toString().startsWith("7\t\\N\t\\N\tjava.lang.NullPointerException"));
+        assertTrue(rows.toString().endsWith("\n"));
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.reader.ReaderElement;
+import org.geotools.data.postgis.HStore;
+import org.geotools.feature.FeatureIterator;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opengis.feature.simple.SimpleFeature;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ColumnarSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        File file = folder.newFile("snapshot.ghs");
+        Map<String, String> tags = new HashMap<>();
+        tags.put("highway", "primary");
+        tags.put("name", "Hauptstraße");
+        Map<String, String> members = new HashMap<>();
+        members.put("w10", "from");
+        members.put("n7", "via");
+
+        try (ColumnarSnapshotWriter writer = new ColumnarSnapshotWriter(file, new String[]{"hsi", "surface"})) {
+            // more nodes than fit into one block
+            for (int i = 0; i < ColumnarSnapshotWriter.BLOCK_SIZE + 10; i++) {
+                writer.addNode(i * 3, 52.1234567 + i * 1e-7, -13.5 - i * 1e-7);
+            }
+            writer.addWay(10, new long[]{3, 0, 6}, tags, new Object[]{5, "asphalt"});
+            writer.addWay(12, new long[]{6, 9}, new HashMap<>(), new Object[]{2.5, null});
+            writer.addRelation(1, tags, members);
+        }
+
+        try (ColumnarSnapshotReader reader = new ColumnarSnapshotReader(file)) {
+            assertArrayEquals(new String[]{"hsi", "surface"}, reader.getCustomColumns());
+            assertEquals(ColumnarSnapshotWriter.BLOCK_SIZE + 10, reader.getCount(ColumnarSnapshotWriter.NODES));
+
+            FeatureIterator<SimpleFeature> nodes = reader.read(ColumnarSnapshotWriter.NODES, "osm_id", "lat", "lon");
+            SimpleFeature node = null;
+            int count = 0;
+            while (nodes.hasNext()) {
+                node = nodes.next();
+                count++;
+            }
+            nodes.close();
+            assertEquals(ColumnarSnapshotWriter.BLOCK_SIZE + 10, count);
+            int last = count - 1;
+            assertEquals(last * 3L, node.getAttribute("osm_id"));
+            assertEquals(52.1234567 + last * 1e-7, (Double) node.getAttribute("lat"), 1e-7);
+            assertEquals(-13.5 - last * 1e-7, (Double) node.getAttribute("lon"), 1e-7);
+
+            FeatureIterator<SimpleFeature> ways = reader.read(ColumnarSnapshotWriter.WAYS, "osm_id", "nodes", "tags", "hsi");
+            SimpleFeature way = ways.next();
+            assertEquals(10L, way.getAttribute("osm_id"));
+            assertArrayEquals(new Long[]{3L, 0L, 6L}, (Long[]) way.getAttribute("nodes"));
+            assertEquals("Hauptstraße", ((HStore) way.getAttribute("tags")).get("name"));
+            assertEquals(5L, way.getAttribute("hsi"));
+            assertEquals("asphalt", way.getAttribute("surface"));
+            way = ways.next();
+            assertEquals(2.5, way.getAttribute("hsi"));
+            assertNull(way.getAttribute("surface"));
+            assertTrue(((HStore) way.getAttribute("tags")).isEmpty());
+            assertFalse(ways.hasNext());
+            ways.close();
+
+            FeatureIterator<SimpleFeature> relations = reader.read(ColumnarSnapshotWriter.RELATIONS, "id", "tags", "members");
+            SimpleFeature relation = relations.next();
+            assertEquals(members, relation.getAttribute("members"));
+            relations.close();
+        }
+    }
+
+    @Test
+    public void testSharedBlockCache() throws Exception {
+        File file = folder.newFile("snapshot.ghs");
+        int nodeCount = 3 * ColumnarSnapshotWriter.BLOCK_SIZE + 10;
+        try (ColumnarSnapshotWriter writer = new ColumnarSnapshotWriter(file, new String[0])) {
+            for (int i = 0; i < nodeCount; i++) {
+                writer.addNode(i, 52 + i * 1e-7, 13);
+            }
+        }
+
+        // the second reader is a block behind, so it reads the cached blocks and the ones inflated again
+        ColumnarSnapshotReader.BlockCache cache = new ColumnarSnapshotReader.BlockCache(1);
+        try (ColumnarSnapshotReader first = new ColumnarSnapshotReader(file, cache);
+             ColumnarSnapshotReader second = new ColumnarSnapshotReader(file, cache)) {
+            FeatureIterator<SimpleFeature> firstNodes = first.read(ColumnarSnapshotWriter.NODES, "osm_id", "lat");
+            FeatureIterator<SimpleFeature> secondNodes = second.read(ColumnarSnapshotWriter.NODES, "osm_id", "lat");
+            for (int i = 0; i < nodeCount + ColumnarSnapshotWriter.BLOCK_SIZE; i++) {
+                if (i < nodeCount)
+                    assertNode(i, firstNodes.next());
+                if (i >= ColumnarSnapshotWriter.BLOCK_SIZE)
+                    assertNode(i - ColumnarSnapshotWriter.BLOCK_SIZE, secondNodes.next());
+            }
+            assertFalse(firstNodes.hasNext());
+            assertFalse(secondNodes.hasNext());
+            firstNodes.close();
+            secondNodes.close();
+        }
+    }
+
+    @Test
+    public void testBlockCacheOfExportedAgain() throws Exception {
+        File file = folder.newFile("snapshot.ghs");
+        ColumnarSnapshotReader.BlockCache cache = new ColumnarSnapshotReader.BlockCache(4);
+        try (ColumnarSnapshotWriter writer = new ColumnarSnapshotWriter(file, new String[0])) {
+            writer.addNode(1, 52, 13);
+        }
+        try (ColumnarSnapshotReader reader = new ColumnarSnapshotReader(file, cache)) {
+            FeatureIterator<SimpleFeature> nodes = reader.read(ColumnarSnapshotWriter.NODES, "osm_id", "lat");
+            assertNode(1, nodes.next());
+            nodes.close();
+
+            // exported again like OSMPostgisReader.writeSnapshotFile while the first reader is still open, the block
+            // has the same offset
+            File tmpFile = folder.newFile("snapshot.ghs.tmp");
+            try (ColumnarSnapshotWriter writer = new ColumnarSnapshotWriter(tmpFile, new String[0])) {
+                writer.addNode(2, 52 + 2 * 1e-7, 13);
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            try (ColumnarSnapshotReader second = new ColumnarSnapshotReader(file, cache)) {
+                nodes = second.read(ColumnarSnapshotWriter.NODES, "osm_id", "lat");
+                assertNode(2, nodes.next());
+                nodes.close();
+            }
+        }
+    }
+
+    private static void assertNode(long id, SimpleFeature node) {
+        assertEquals(id, node.getAttribute("osm_id"));
+        assertEquals(52 + id * 1e-7, (Double) node.getAttribute("lat"), 1e-7);
+    }
+
+    @Test
+    public void testNullValues() throws Exception {
+        File file = folder.newFile("snapshot.ghs");
+        // 'fixme=>NULL' is a valid hstore entry
+        Map<String, String> tags = new HashMap<>();
+        tags.put("highway", "primary");
+        tags.put("fixme", null);
+        Map<String, String> members = new HashMap<>();
+        members.put("w10", null);
+        try (ColumnarSnapshotWriter writer = new ColumnarSnapshotWriter(file, new String[0])) {
+            writer.addWay(10, new long[]{3, 6}, tags, new Object[0]);
+            writer.addRelation(1, tags, members);
+        }
+
+        try (ColumnarSnapshotReader reader = new ColumnarSnapshotReader(file)) {
+            FeatureIterator<SimpleFeature> ways = reader.read(ColumnarSnapshotWriter.WAYS, "osm_id", "tags");
+            assertEquals(tags, ways.next().getAttribute("tags"));
+            ways.close();
+            FeatureIterator<SimpleFeature> relations = reader.read(ColumnarSnapshotWriter.RELATIONS, "id", "tags", "members");
+            SimpleFeature relation = relations.next();
+            assertEquals(tags, relation.getAttribute("tags"));
+            assertEquals(members, relation.getAttribute("members"));
+            relations.close();
+        }
+    }
+
+    @Test
+    public void testRelationMemberOrder() throws Exception {
+        File file = folder.newFile("snapshot.ghs");
+        RelationMembers members = new RelationMembers();
+        members.add(ReaderElement.WAY, 20, "");
+        members.add(ReaderElement.WAY, 10, "");
+        members.add(ReaderElement.WAY, 20, "");
+        try (ColumnarSnapshotWriter writer = new ColumnarSnapshotWriter(file, new String[0])) {
+            writer.addRelation(1, new HashMap<>(), members);
+        }
+
+        try (ColumnarSnapshotReader reader = new ColumnarSnapshotReader(file)) {
+            FeatureIterator<SimpleFeature> relations = reader.read(ColumnarSnapshotWriter.RELATIONS, "id",
+                    RelationMembers.TYPES_COLUMN, RelationMembers.REFS_COLUMN, RelationMembers.ROLES_COLUMN);
+            SimpleFeature relation = relations.next();
+            assertArrayEquals(new String[]{"w", "w", "w"}, (Object[]) relation.getAttribute(RelationMembers.TYPES_COLUMN));
+            assertArrayEquals(new Long[]{20L, 10L, 20L}, (Object[]) relation.getAttribute(RelationMembers.REFS_COLUMN));
+            assertArrayEquals(new String[]{"", "", ""}, (Object[]) relation.getAttribute(RelationMembers.ROLES_COLUMN));
+            relations.close();
+        }
+    }
+
+    @Test
+    public void testTaggedNodes() throws Exception {
+        File file = folder.newFile("snapshot.ghs");
+        Map<String, String> tags = new HashMap<>();
+        tags.put("barrier", "gate");
+        try (ColumnarSnapshotWriter writer = new ColumnarSnapshotWriter(file, new String[0])) {
+            writer.addNode(5, 52.1, 13.1);
+            writer.addNode(8, 52.2, 13.2);
+            writer.addRelation(1, new HashMap<>(), new HashMap<>());
+            writer.addTaggedNode(8, tags);
+        }
+
+        try (ColumnarSnapshotReader reader = new ColumnarSnapshotReader(file)) {
+            assertEquals(2, reader.getCount(ColumnarSnapshotWriter.NODES));
+            assertEquals(1, reader.getCount(ColumnarSnapshotWriter.TAGGED_NODES));
+            FeatureIterator<SimpleFeature> nodes = reader.read(ColumnarSnapshotWriter.TAGGED_NODES, "osm_id", "tags");
+            SimpleFeature node = nodes.next();
+            assertEquals(8L, node.getAttribute("osm_id"));
+            assertEquals("gate", ((HStore) node.getAttribute("tags")).get("barrier"));
+            assertFalse(nodes.hasNext());
+            nodes.close();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testTaggedNodesLast() throws Exception {
+        try (ColumnarSnapshotWriter writer = new ColumnarSnapshotWriter(folder.newFile("snapshot.ghs"), new String[0])) {
+            writer.addTaggedNode(8, new HashMap<>());
+            writer.addWay(1, new long[]{8, 9}, new HashMap<>(), new Object[0]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingColumn() throws Exception {
+        File file = folder.newFile("snapshot.ghs");
+        new ColumnarSnapshotWriter(file, new String[0]).close();
+        try (ColumnarSnapshotReader reader = new ColumnarSnapshotReader(file)) {
+            reader.read(ColumnarSnapshotWriter.WAYS, "osm_id", "hsi");
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.storage.DAType;
+import com.graphhopper.storage.RAMDirectory;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class DataAccessLongIntMapTest {
+
+    @Test
+    public void testPutAndGet() {
+        DataAccessLongIntMap map = new DataAccessLongIntMap(new RAMDirectory(), "test", DAType.RAM, 10, -1);
+        assertEquals(-1, map.get(5));
+        assertEquals(-1, map.put(5, 7));
+        assertEquals(7, map.put(5, 8));
+        assertEquals(8, map.get(5));
+
+        // 0 and negative keys are valid too
+        map.put(0, 3);
+        map.put(-Long.MAX_VALUE, 4);
+        assertEquals(3, map.get(0));
+        assertEquals(4, map.get(-Long.MAX_VALUE));
+        assertEquals(3, map.getSize());
+        map.release();
+    }
+
+    @Test
+    public void testGrow() {
+        DataAccessLongIntMap map = new DataAccessLongIntMap(new RAMDirectory(), "test", DAType.RAM, 10, 0);
+        for (int i = 1; i <= 100_000; i++) {
+            map.put(i * 31L, i);
+        }
+        assertEquals(100_000, map.getSize());
+        for (int i = 1; i <= 100_000; i++) {
+            assertEquals(i, map.get(i * 31L));
+        }
+        assertEquals(0, map.get(17));
+        map.release();
+    }
+
+    @Test
+    public void testPackCoordinate() {
+        long key = OSMPostgisReaderOld.packCoordinate(52.5123456, 13.3987654);
+        assertEquals(key, OSMPostgisReaderOld.packCoordinate(52.51234561, 13.39876539));
+        assertNotEquals(key, OSMPostgisReaderOld.packCoordinate(52.5123457, 13.3987654));
+        assertNotEquals(key, OSMPostgisReaderOld.packCoordinate(52.5123456, 13.3987655));
+        assertNotEquals(OSMPostgisReaderOld.packCoordinate(90, 180), OSMPostgisReaderOld.packCoordinate(-90, -180));
+    }
+}
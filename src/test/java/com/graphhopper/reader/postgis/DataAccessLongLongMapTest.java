@@ -0,0 +1,58 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.storage.DAType;
+import com.graphhopper.storage.RAMDirectory;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DataAccessLongLongMapTest {
+
+    @Test
+    public void testPutAndGet() {
+        DataAccessLongLongMap map = new DataAccessLongLongMap(new RAMDirectory(), "test", DAType.RAM, 10, 0);
+        assertEquals(0, map.get(5));
+        assertEquals(0, map.put(5, Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, map.put(5, -7));
+        assertEquals(-7, map.get(5));
+
+        // 0 and negative keys are valid too
+        map.put(0, 3L << 40);
+        map.put(-Long.MAX_VALUE, 4);
+        assertEquals(3L << 40, map.get(0));
+        assertEquals(4, map.get(-Long.MAX_VALUE));
+        assertEquals(3, map.getSize());
+        map.release();
+    }
+
+    @Test
+    public void testGrow() {
+        DataAccessLongLongMap map = new DataAccessLongLongMap(new RAMDirectory(), "test", DAType.RAM, 10, -1);
+        for (int i = 1; i <= 100_000; i++) {
+            map.put(i * 31L, (long) i << 32 | i);
+        }
+        assertEquals(100_000, map.getSize());
+        for (int i = 1; i <= 100_000; i++) {
+            assertEquals((long) i << 32 | i, map.get(i * 31L));
+        }
+        assertEquals(-1, map.get(17));
+        map.release();
+    }
+}
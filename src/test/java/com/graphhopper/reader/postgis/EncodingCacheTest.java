@@ -0,0 +1,192 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.reader.ReaderNode;
+import com.graphhopper.reader.ReaderWay;
+import com.graphhopper.routing.ev.EncodedValue;
+import com.graphhopper.routing.ev.EncodedValueLookup;
+import com.graphhopper.routing.ev.IntEncodedValue;
+import com.graphhopper.routing.ev.UnsignedIntEncodedValue;
+import com.graphhopper.routing.util.CarFlagEncoder;
+import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.routing.util.parsers.TagParser;
+import com.graphhopper.storage.IntsRef;
+import com.graphhopper.util.shapes.GHPoint;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EncodingCacheTest {
+
+    private final EncodingManager encodingManager = EncodingManager.create("car");
+    private final IntsRef relationFlags = encodingManager.createRelationFlags();
+
+    @Test
+    public void testSameTagsInOtherOrder() {
+        EncodingCache cache = new EncodingCache(encodingManager, 10);
+        ReaderWay first = new ReaderWay(1);
+        first.setTag("highway", "primary");
+        first.setTag("maxspeed", "50");
+        ReaderWay second = new ReaderWay(2);
+        second.setTag("maxspeed", "50");
+        second.setTag("highway", "primary");
+
+        IntsRef firstFlags = cache.getEdgeFlags(first, relationFlags);
+        IntsRef secondFlags = cache.getEdgeFlags(second, relationFlags);
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        // every caller gets its own copy, as the flags are modified afterwards
+        assertNotSame(firstFlags, secondFlags);
+        assertArrayEquals(firstFlags.ints, secondFlags.ints);
+
+        EncodingManager.AcceptWay acceptWay = new EncodingManager.AcceptWay();
+        assertTrue(encodingManager.acceptWay(second, acceptWay));
+        assertArrayEquals(encodingManager.handleWayTags(second, acceptWay, relationFlags).ints, secondFlags.ints);
+    }
+
+    @Test
+    public void testRejectedAndBypassedWays() {
+        EncodingCache cache = new EncodingCache(encodingManager, 10);
+        ReaderWay footway = new ReaderWay(1);
+        footway.setTag("highway", "footway");
+        assertNull(cache.getEdgeFlags(footway, relationFlags));
+        assertFalse(cache.acceptWay(footway));
+        assertFalse(cache.acceptWay(footway));
+        assertEquals(1, cache.getHits());
+
+        ReaderWay ferry = new ReaderWay(2);
+        ferry.setTag("route", "ferry");
+        ferry.setTag("duration", "00:30");
+        assertFalse(cache.isCacheable(ferry));
+    }
+
+    @Test
+    public void testEviction() {
+        EncodingCache cache = new EncodingCache(encodingManager, 1);
+        ReaderWay primary = new ReaderWay(1);
+        primary.setTag("highway", "primary");
+        ReaderWay secondary = new ReaderWay(2);
+        secondary.setTag("highway", "secondary");
+        cache.acceptWay(primary);
+        cache.acceptWay(secondary);
+        cache.acceptWay(primary);
+        assertEquals(0, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void testNodeFlags() {
+        EncodingCache cache = new EncodingCache(encodingManager, 10);
+        ReaderNode bollard = new ReaderNode(1, 52, 13);
+        bollard.setTag("barrier", "bollard");
+        ReaderNode otherBollard = new ReaderNode(2, 53, 14);
+        otherBollard.setTag("barrier", "bollard");
+        ReaderNode crossing = new ReaderNode(3, 52, 13);
+        crossing.setTag("highway", "crossing");
+
+        long nodeFlags = cache.getNodeFlags(bollard);
+        assertNotEquals(0, nodeFlags);
+        assertEquals(encodingManager.handleNodeTags(bollard), nodeFlags);
+        assertEquals(nodeFlags, cache.getNodeFlags(otherBollard));
+        assertEquals(0, cache.getNodeFlags(crossing));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testSameFlagsAsWithoutCache() {
+        EncodingCache cache = new EncodingCache(encodingManager, 100);
+        String[][] tagCombinations = {
+                {"highway", "primary", "name", "Main Street", "ref", "B 1"},
+                {"highway", "primary", "name", "Other Street", "ref", "B 2"},
+                {"highway", "residential", "maxspeed", "30", "oneway", "yes", "name", "Side Street"},
+                {"highway", "residential", "maxspeed", "30", "oneway", "yes", "name:de", "Seitenstraße"},
+                {"highway", "track", "tracktype", "grade2", "source", "survey"},
+                {"highway", "motorway", "maxspeed", "120", "note", "reviewed"}};
+        for (int i = 0; i < 2 * tagCombinations.length; i++) {
+            ReaderWay cachedWay = createWay(i, tagCombinations[i % tagCombinations.length]);
+            ReaderWay uncachedWay = createWay(i, tagCombinations[i % tagCombinations.length]);
+            assertTrue(cache.isCacheable(cachedWay));
+            // like the reader, which sets the artificial tags for both
+            for (ReaderWay way : new ReaderWay[]{cachedWay, uncachedWay}) {
+                way.setTag("estimated_distance", 100.0 * i);
+                way.setTag("estimated_center", new GHPoint(52 + i, 13));
+            }
+
+            EncodingManager.AcceptWay acceptWay = new EncodingManager.AcceptWay();
+            assertTrue(encodingManager.acceptWay(uncachedWay, acceptWay));
+            IntsRef uncachedFlags = encodingManager.handleWayTags(uncachedWay, acceptWay, relationFlags);
+            assertArrayEquals(uncachedFlags.ints, cache.getEdgeFlags(cachedWay, relationFlags).ints);
+        }
+        // the names, references and other ignored tags are not part of the key
+        assertEquals(4, cache.getMisses());
+        assertEquals(8, cache.getHits());
+    }
+
+    @Test
+    public void testCustomColumnTags() {
+        // a tag parser that reads the tag set by a custom column without an encoded value
+        IntEncodedValue tciEnc = new UnsignedIntEncodedValue("tci_value", 4, false);
+        EncodingManager tciManager = new EncodingManager.Builder().add(new CarFlagEncoder()).add(new TagParser() {
+            @Override
+            public void createEncodedValues(EncodedValueLookup lookup, List<EncodedValue> registerNewEncodedValue) {
+                registerNewEncodedValue.add(tciEnc);
+            }
+
+            @Override
+            public IntsRef handleWayTags(IntsRef edgeFlags, ReaderWay way, boolean ferry, IntsRef relationFlags) {
+                tciEnc.setInt(false, edgeFlags, Integer.parseInt(way.getTag("tci", "0")));
+                return edgeFlags;
+            }
+        }).build();
+        IntsRef tciRelationFlags = tciManager.createRelationFlags();
+        EncodingCache cache = new EncodingCache(tciManager, 10);
+        ReaderWay first = createWay(1, "highway", "primary", "tci", "1");
+        ReaderWay second = createWay(2, "highway", "primary", "tci", "5");
+
+        IntsRef firstFlags = cache.getEdgeFlags(first, tciRelationFlags);
+        IntsRef secondFlags = cache.getEdgeFlags(second, tciRelationFlags);
+        assertEquals(2, cache.getMisses());
+        assertFalse(Arrays.equals(firstFlags.ints, secondFlags.ints));
+        for (ReaderWay way : new ReaderWay[]{first, second}) {
+            EncodingManager.AcceptWay acceptWay = new EncodingManager.AcceptWay();
+            assertTrue(tciManager.acceptWay(way, acceptWay));
+            assertArrayEquals(tciManager.handleWayTags(way, acceptWay, tciRelationFlags).ints,
+                    cache.getEdgeFlags(way, tciRelationFlags).ints);
+        }
+        assertEquals(2, cache.getHits());
+    }
+
+    private static ReaderWay createWay(long id, String... tags) {
+        ReaderWay way = new ReaderWay(id);
+        for (int i = 0; i < tags.length; i += 2) {
+            way.setTag(tags[i], tags[i + 1]);
+        }
+        return way;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ExternalLongPairSorterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testInMemory() throws Exception {
+        try (ExternalLongPairSorter sorter = new ExternalLongPairSorter(folder.getRoot(), 10)) {
+            sorter.add(5, 50);
+            sorter.add(-1, 10);
+            sorter.add(3, 30);
+            sorter.sort();
+            assertEquals(0, sorter.getRunCount());
+            assertTrue(sorter.next());
+            assertEquals(-1, sorter.getKey());
+            assertEquals(10, sorter.getValue());
+            assertTrue(sorter.next());
+            assertEquals(3, sorter.getKey());
+            assertTrue(sorter.next());
+            assertEquals(50, sorter.getValue());
+            assertFalse(sorter.next());
+        }
+    }
+
+    @Test
+    public void testSpilledRuns() throws Exception {
+        Random random = new Random(42);
+        long keySum = 0;
+        try (ExternalLongPairSorter sorter = new ExternalLongPairSorter(folder.getRoot(), 1_000)) {
+            for (int i = 0; i < 10_500; i++) {
+                long key = random.nextInt(2_000);
+                keySum += key;
+                // the value allows to check that the pairs stay together
+                sorter.add(key, key * 3);
+            }
+            sorter.sort();
+            assertEquals(11, sorter.getRunCount());
+
+            long previous = Long.MIN_VALUE;
+            int count = 0;
+            while (sorter.next()) {
+                assertTrue(sorter.getKey() >= previous);
+                assertEquals(sorter.getKey() * 3, sorter.getValue());
+                previous = sorter.getKey();
+                keySum -= sorter.getKey();
+                count++;
+            }
+            assertEquals(10_500, count);
+            assertEquals(0, keySum);
+        }
+        // the runs are removed
+        assertEquals(0, folder.getRoot().list().length);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ImportPreflightTest {
+
+    @Test
+    public void testEstimates() {
+        // 10% of the ways are accepted with 10 nodes each
+        ImportPreflight preflight = new ImportPreflight(50_000_000, 5_000_000, 0.1, 10, 1000, 200);
+        assertEquals(500_000, preflight.getAcceptedWays());
+        assertEquals(5_000_000, preflight.getUsedNodes());
+        assertEquals(1_000_000, preflight.getTowerNodes());
+        assertEquals(4_000_000, preflight.getPillarNodes());
+        assertEquals(1_250_000, preflight.getEdges());
+
+        // the used nodes cannot exceed the nodes table
+        assertEquals(1000, new ImportPreflight(1000, 5_000_000, 0.1, 10, 0, 0).getUsedNodes());
+    }
+
+    @Test
+    public void testHeapByImportMode() {
+        ImportPreflight preflight = new ImportPreflight(50_000_000, 5_000_000, 0.1, 10, 0, 0);
+        long memory = preflight.getImportHeapBytes("memory", 0, false, false);
+        long externalSort = preflight.getImportHeapBytes("external_sort", 16 * 1024 * 1024, false, false);
+        assertTrue(externalSort < memory);
+        assertEquals(0, preflight.getScratchBytes("memory", false, false));
+        assertTrue(preflight.getScratchBytes("external_sort", false, false) > 0);
+        assertEquals(memory, preflight.getHeapBytes("memory", 0, 4, false, false, false));
+        assertTrue(preflight.getHeapBytes("memory", 0, 4, false, false, true) > memory);
+
+        // the maps move from the heap into the scratch directory
+        assertEquals(0, preflight.getImportHeapBytes("memory", 0, false, true));
+        assertEquals(memory, preflight.getScratchBytes("memory", false, true));
+
+        assertTrue(ImportPreflight.fitsIntoHeap(800, 1000));
+        assertFalse(ImportPreflight.fitsIntoHeap(900, 1000));
+    }
+
+    @Test
+    public void testPolicyAndSample() {
+        assertEquals(ImportPreflight.Policy.AUTO, ImportPreflight.Policy.parse(" Auto"));
+        assertEquals(100, ImportPreflight.getSamplePercent(1000), 0);
+        assertEquals(1, ImportPreflight.getSamplePercent(10_000_000), 1e-9);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownPolicy() {
+        ImportPreflight.Policy.parse("sometimes");
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class IsochroneJobTest {
+
+    @Test
+    public void testParseLimits() {
+        assertArrayEquals(new long[]{300_000, 600_000}, IsochroneJob.parseLimits("600, 300"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLimits() {
+        IsochroneJob.parseLimits("0");
+    }
+
+    @Test
+    public void testToArrayLiteral() {
+        assertEquals("{}", IsochroneJob.toArrayLiteral(Collections.emptyList()));
+        assertEquals("{3,5}", IsochroneJob.toArrayLiteral(Arrays.asList(3L, 5L)));
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.GraphHopperConfig;
+import com.graphhopper.json.geo.JsonFeature;
+import com.graphhopper.json.geo.JsonFeatureCollection;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.jts.io.WKTReader;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class LandmarkSplittingAreasTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testFallbackWithoutTable() {
+        JsonFeatureCollection fallback = new JsonFeatureCollection();
+        assertSame(fallback, LandmarkSplittingAreas.load(new GraphHopperConfig(), fallback));
+    }
+
+    @Test
+    public void testCacheIsUsedInsteadOfTable() throws Exception {
+        WKTReader reader = new WKTReader();
+        File graph = folder.newFolder("graph");
+        LandmarkSplittingAreas.writeCache(new File(graph, LandmarkSplittingAreas.CACHE_FILE), Arrays.asList(
+                new JsonFeature("mainland", "Feature", null, reader.read("POLYGON ((0 0, 1 0, 1 1, 0 0))"), null),
+                new JsonFeature("island", "Feature", null, reader.read("MULTIPOLYGON (((2 2, 3 2, 3 3, 2 2)))"), null)));
+
+        // no database is configured, so the areas have to come from the cache
+        GraphHopperConfig config = new GraphHopperConfig()
+                .putObject("graph.location", graph.getAbsolutePath())
+                .putObject("postgis.lm_split_table", "split_areas");
+        List<JsonFeature> features = LandmarkSplittingAreas.load(config, null).getFeatures();
+        assertEquals(2, features.size());
+        assertEquals("island", features.get(1).getId());
+        assertEquals("island", features.get(1).getProperties().get("area"));
+        assertEquals(reader.read("MULTIPOLYGON (((2 2, 3 2, 3 3, 2 2)))"), features.get(1).getGeometry());
+    }
+}
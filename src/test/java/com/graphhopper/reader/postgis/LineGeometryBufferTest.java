@@ -0,0 +1,145 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.io.ByteOrderValues;
+import org.locationtech.jts.io.WKBWriter;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LineGeometryBufferTest {
+
+    private final GeometryFactory factory = new GeometryFactory();
+
+    private LineString line(double... lonLat) {
+        Coordinate[] coordinates = new Coordinate[lonLat.length / 2];
+        for (int i = 0; i < coordinates.length; i++) {
+            coordinates[i] = new Coordinate(lonLat[2 * i], lonLat[2 * i + 1]);
+        }
+        return factory.createLineString(coordinates);
+    }
+
+    @Test
+    public void testLineString() {
+        byte[] wkb = new WKBWriter(2, ByteOrderValues.LITTLE_ENDIAN).write(line(13.1, 52.1, 13.2, 52.2, 13.3, 52.3));
+        LineGeometryBuffer buffer = new LineGeometryBuffer().readWkb(wkb);
+        assertEquals(1, buffer.getPartCount());
+        assertEquals(0, buffer.getPartStart(0));
+        assertEquals(3, buffer.getPartEnd(0));
+        assertEquals(52.2, buffer.getLat(1), 1e-9);
+        assertEquals(13.3, buffer.getLon(2), 1e-9);
+        assertFalse(buffer.is3D());
+    }
+
+    @Test
+    public void testMultiLineStringBigEndian() {
+        LineString[] lines = {line(1, 2, 3, 4), line(5, 6, 7, 8, 9, 10)};
+        byte[] wkb = new WKBWriter(2, ByteOrderValues.BIG_ENDIAN).write(factory.createMultiLineString(lines));
+        LineGeometryBuffer buffer = new LineGeometryBuffer();
+        // the buffer is reused
+        buffer.readWkb(new WKBWriter().write(line(0, 0, 1, 1)));
+        buffer.readWkb(wkb);
+        assertEquals(2, buffer.getPartCount());
+        assertEquals(2, buffer.getPartStart(1));
+        assertEquals(5, buffer.getPartEnd(1));
+        assertEquals(10, buffer.getLat(4), 1e-9);
+        assertEquals(9, buffer.getLon(4), 1e-9);
+    }
+
+    @Test
+    public void testExtendedWkbWithZAndSrid() {
+        LineString lineString = factory.createLineString(new Coordinate[]{new Coordinate(1, 2, 3), new Coordinate(4, 5, 6)});
+        lineString.setSRID(4326);
+        byte[] wkb = new WKBWriter(3, ByteOrderValues.LITTLE_ENDIAN, true).write(lineString);
+        LineGeometryBuffer buffer = new LineGeometryBuffer().readWkb(wkb);
+        assertTrue(buffer.is3D());
+        assertEquals(2, buffer.size());
+        assertEquals(5, buffer.getLat(1), 1e-9);
+        assertEquals(6, buffer.getEle(1), 1e-9);
+    }
+
+    @Test
+    public void testTwkbLineString() {
+        // SELECT ST_AsTWKB('LINESTRING(1 1,5 5)'::geometry)
+        byte[] twkb = {0x02, 0x00, 0x02, 0x02, 0x02, 0x08, 0x08};
+        LineGeometryBuffer buffer = new LineGeometryBuffer().readTwkb(twkb);
+        assertEquals(1, buffer.getPartCount());
+        assertEquals(2, buffer.size());
+        assertEquals(1, buffer.getLat(0), 1e-9);
+        assertEquals(5, buffer.getLon(1), 1e-9);
+        assertFalse(buffer.is3D());
+    }
+
+    @Test
+    public void testTwkbReusedBuffer() {
+        byte[] twkb = {0x02, 0x00, 0x02, 0x02, 0x02, 0x08, 0x08};
+        LineGeometryBuffer buffer = new LineGeometryBuffer().readTwkb(twkb);
+        // the differences of the next geometry start at zero again
+        buffer.readTwkb(twkb);
+        assertEquals(2, buffer.size());
+        assertEquals(1, buffer.getLat(0), 1e-9);
+        assertEquals(5, buffer.getLon(1), 1e-9);
+    }
+
+    @Test
+    public void testTwkbMultiLineStringWithPrecision() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // multi line string with 6 decimal places and a bounding box
+        out.write(zigZag(6) << 4 | 5);
+        out.write(0x01);
+        writeSigned(out, 13_100_000, 100_000, 52_100_000, 200_000);
+        writeUnsigned(out, 2);
+        writeUnsigned(out, 2);
+        writeSigned(out, 13_100_000, 52_100_000, 100_000, 100_000);
+        // the differences continue in the second part
+        writeUnsigned(out, 2);
+        writeSigned(out, -100_000, 0, 0, 100_000);
+        LineGeometryBuffer buffer = new LineGeometryBuffer().readTwkb(out.toByteArray());
+        assertEquals(2, buffer.getPartCount());
+        assertEquals(2, buffer.getPartStart(1));
+        assertEquals(52.2, buffer.getLat(1), 1e-9);
+        assertEquals(13.1, buffer.getLon(2), 1e-9);
+        assertEquals(52.3, buffer.getLat(3), 1e-9);
+    }
+
+    private static int zigZag(long value) {
+        return (int) ((value << 1) ^ (value >> 63));
+    }
+
+    private static void writeSigned(ByteArrayOutputStream out, long... values) {
+        for (long value : values) {
+            writeUnsigned(out, zigZag(value));
+        }
+    }
+
+    private static void writeUnsigned(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.storage.DAType;
+import com.graphhopper.storage.GHDirectory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OsmIdIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testStoreAndLoad() throws Exception {
+        String location = folder.newFolder("graph").getAbsolutePath();
+        try (OsmIdIndex index = new OsmIdIndex(new GHDirectory(location, DAType.RAM_STORE)).create(2, 2)) {
+            // a way is split into several edges, the arrays grow beyond the expected size
+            index.setWayId(0, 100);
+            index.setWayId(1, 7_000_000_000L);
+            index.setWayId(5, 100);
+            index.setNodeId(0, 1);
+            index.setNodeId(1, 2);
+            // the copy of a barrier node
+            index.setNodeId(2, 1);
+            index.setNodeId(3, OsmIdIndex.UNKNOWN);
+            index.flush(folder.newFolder("scratch"), 2);
+        }
+
+        try (OsmIdIndex index = new OsmIdIndex(new GHDirectory(location, DAType.RAM_STORE))) {
+            assertTrue(index.loadExisting());
+            assertEquals(6, index.getEdgeCount());
+            assertEquals(100, index.getWayId(0));
+            assertEquals(7_000_000_000L, index.getWayId(1));
+            assertEquals(OsmIdIndex.UNKNOWN, index.getWayId(3));
+            assertEquals(OsmIdIndex.UNKNOWN, index.getWayId(6));
+            assertArrayEquals(new int[]{0, 5}, index.getEdges(100));
+            assertArrayEquals(new int[]{1}, index.getEdges(7_000_000_000L));
+            assertArrayEquals(new int[0], index.getEdges(99));
+
+            assertEquals(4, index.getNodeCount());
+            assertEquals(2, index.getNodeId(1));
+            assertArrayEquals(new int[]{0, 2}, index.getTowerNodes(1));
+            assertArrayEquals(new int[0], index.getTowerNodes(OsmIdIndex.UNKNOWN));
+        }
+    }
+
+    @Test
+    public void testMissingIndex() throws Exception {
+        OsmIdIndex index = new OsmIdIndex(new GHDirectory(folder.newFolder("empty").getAbsolutePath(), DAType.RAM_STORE));
+        assertFalse(index.loadExisting());
+    }
+}
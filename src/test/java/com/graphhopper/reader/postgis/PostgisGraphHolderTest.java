@@ -0,0 +1,65 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class PostgisGraphHolderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testNextLocation() {
+        File base = new File("/data/philview-gh");
+        File blue = new File("/data/philview-gh-blue");
+        File green = new File("/data/philview-gh-green");
+        assertEquals(blue, PostgisGraphHolder.nextLocation(base, base));
+        assertEquals(green, PostgisGraphHolder.nextLocation(base, blue));
+        assertEquals(blue, PostgisGraphHolder.nextLocation(base, green));
+    }
+
+    @Test
+    public void testIsValid() {
+        assertTrue(PostgisGraphHolder.isValid(900, 1000, 0.5));
+        assertTrue(PostgisGraphHolder.isValid(500, 1000, 0.5));
+        assertFalse(PostgisGraphHolder.isValid(499, 1000, 0.5));
+        assertFalse(PostgisGraphHolder.isValid(0, 0, 0.5));
+    }
+
+    @Test
+    public void testCurrentLocation() throws Exception {
+        File base = new File(folder.getRoot(), "graph");
+        File pointer = new File(folder.getRoot(), "graph.current");
+        assertEquals(base, PostgisGraphHolder.readCurrentLocation(pointer, base));
+
+        File green = new File(folder.getRoot(), "graph-green");
+        PostgisGraphHolder.writeCurrentLocation(pointer, green);
+        assertEquals(green, PostgisGraphHolder.readCurrentLocation(pointer, base));
+        File blue = new File(folder.getRoot(), "graph-blue");
+        PostgisGraphHolder.writeCurrentLocation(pointer, blue);
+        assertEquals(blue, PostgisGraphHolder.readCurrentLocation(pointer, base));
+        assertFalse(new File(folder.getRoot(), "graph.current.tmp").exists());
+    }
+}
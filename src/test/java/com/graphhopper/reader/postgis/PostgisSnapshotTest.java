@@ -0,0 +1,111 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import org.geotools.data.DataStore;
+import org.geotools.data.DataStoreFinder;
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.Query;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.jdbc.JDBCDataStore;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Needs a local PostgreSQL database, which is configured via the same environment variables as the
+ * OSMPostgisReaderTest. The test is skipped if they are not set.
+ */
+public class PostgisSnapshotTest {
+
+    private static final String TABLE = "gh_snapshot_test";
+    private DataStore dataStore;
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue("You need to define the environment variables to run the test", System.getenv("GH_DB_HOST") != null);
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("dbtype", "postgis");
+        params.put("host", System.getenv("GH_DB_HOST"));
+        params.put("port", System.getenv("GH_DB_PORT"));
+        params.put("database", System.getenv("GH_DB_DATABASE"));
+        params.put("schema", System.getenv("GH_DB_SCHEMA"));
+        params.put("user", System.getenv("GH_DB_USER"));
+        params.put("passwd", System.getenv("GH_DB_PASSWD"));
+        dataStore = DataStoreFinder.getDataStore(params);
+        execute("drop table if exists " + TABLE);
+        // the primary key is not exposed as attribute, so the ids are read from a second column
+        execute("create table " + TABLE + " (id int8 primary key, ref int8)");
+        execute("insert into " + TABLE + " values (1, 1), (2, 2), (3, 3)");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (dataStore == null)
+            return;
+        execute("drop table if exists " + TABLE);
+        dataStore.dispose();
+    }
+
+    @Test
+    public void testConcurrentWritesAreInvisible() throws Exception {
+        try (PostgisSnapshot snapshot = PostgisSnapshot.export(dataStore)) {
+            execute("delete from " + TABLE + " where id = 1");
+            execute("insert into " + TABLE + " values (4, 4)");
+
+            // a read without the snapshot sees the changes
+            assertEquals(new HashSet<>(Arrays.asList(2L, 3L, 4L)), readIds(
+                    new TransactionFeatureIterator(dataStore, new Query(TABLE), new DefaultTransaction("plain"))));
+
+            // two readers that import the snapshot, open at the same time, both see the rows of the time of the export
+            FeatureIterator<SimpleFeature> first = new TransactionFeatureIterator(dataStore, new Query(TABLE), snapshot.begin("first"));
+            FeatureIterator<SimpleFeature> second = new TransactionFeatureIterator(dataStore, new Query(TABLE), snapshot.begin("second"));
+            Set<Long> expected = new HashSet<>(Arrays.asList(1L, 2L, 3L));
+            assertEquals(expected, readIds(first));
+            assertEquals(expected, readIds(second));
+        }
+    }
+
+    private Set<Long> readIds(FeatureIterator<SimpleFeature> iterator) {
+        Set<Long> ids = new HashSet<>();
+        try {
+            while (iterator.hasNext()) {
+                ids.add(((Number) iterator.next().getAttribute("ref")).longValue());
+            }
+        } finally {
+            iterator.close();
+        }
+        return ids;
+    }
+
+    private void execute(String sql) throws Exception {
+        try (Connection connection = ((JDBCDataStore) dataStore).getDataSource().getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.reader.ReaderElement;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RelationMembersTest {
+
+    @Test
+    public void testTypedColumnsKeepOrderAndDuplicates() {
+        RelationMembers members = new RelationMembers().readArrays(
+                new Object[]{"w", "n", "w", "w"},
+                new Object[]{10L, 7L, 11L, 10L},
+                new Object[]{"from", "via", "to", "from"});
+        assertEquals(4, members.size());
+        assertEquals(ReaderElement.WAY, members.getType(3));
+        assertEquals(10, members.getRef(3));
+        assertEquals(10, members.findRef(ReaderElement.WAY, "from"));
+        assertEquals(7, members.findRef(ReaderElement.NODE, "via"));
+        assertEquals(11, members.findRef(ReaderElement.WAY, "to"));
+        assertEquals(-1, members.findRef(ReaderElement.NODE, "to"));
+        assertFalse(members.isMetaRelation());
+        // equal roles share one instance
+        assertSame(members.getRole(0), members.getRole(3));
+    }
+
+    @Test
+    public void testLastMemberWins() {
+        RelationMembers members = new RelationMembers().readArrays(
+                new Object[]{"w", "n", "w", "w", "n"},
+                new Object[]{10L, 7L, 11L, 12L, 8L},
+                new Object[]{"from", "via", "to", "from", "via"});
+        assertEquals(12, members.findRef(ReaderElement.WAY, "from"));
+        assertEquals(8, members.findRef(ReaderElement.NODE, "via"));
+        assertEquals(11, members.findRef(ReaderElement.WAY, "to"));
+    }
+
+    @Test
+    public void testHStoreAndReuse() {
+        Map<String, String> hstore = new HashMap<>();
+        hstore.put("r5", "");
+        hstore.put("w3", "forward");
+        RelationMembers members = new RelationMembers().readHStore(hstore);
+        assertEquals(2, members.size());
+        assertTrue(members.isMetaRelation());
+        assertEquals(3, members.findRef(ReaderElement.WAY, "forward"));
+
+        members.readArrays(new Object[]{'n'}, new Object[]{1L}, null);
+        assertEquals(1, members.size());
+        assertEquals(ReaderElement.NODE, members.getType(0));
+        assertEquals("", members.getRole(0));
+        assertFalse(members.isMetaRelation());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDifferentLengths() {
+        new RelationMembers().readArrays(new Object[]{"w", "w"}, new Object[]{1L}, new Object[]{"", ""});
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ *  Licensed to GraphHopper GmbH under one or more contributor
+ *  license agreements. See the NOTICE file distributed with this work for
+ *  additional information regarding copyright ownership.
+ *
+ *  GraphHopper GmbH licenses this file to you under the Apache License,
+ *  Version 2.0 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.coll.GHLongIntBTree;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StripedLongIntMapTest {
+
+    @Test
+    public void testPutAndGet() {
+        StripedLongIntMap map = new StripedLongIntMap(2);
+        assertEquals(-1, map.get(5));
+        map.put(5, 7);
+        assertEquals(7, map.get(5));
+        assertEquals(1, map.getSize());
+    }
+
+    @Test
+    public void testConcurrentClassification() throws InterruptedException {
+        StripedLongIntMap map = new StripedLongIntMap(4);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        // every thread sees all even nodes, the odd nodes are seen by exactly one thread
+        for (int thread = 0; thread < 4; thread++) {
+            int offset = thread;
+            executor.execute(() -> {
+                for (long id = 0; id < 40_000; id += 2) {
+                    map.update(id, OSMPostgisReader::classifyHighwayNode);
+                }
+                for (long id = 1 + 2 * offset; id < 40_000; id += 8) {
+                    map.update(id, OSMPostgisReader::classifyHighwayNode);
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+        assertEquals(40_000, map.getSize());
+        for (long id = 0; id < 40_000; id++) {
+            assertEquals(id % 2 == 0 ? OSMPostgisReader.TOWER_NODE : OSMPostgisReader.PILLAR_NODE, map.get(id));
+        }
+    }
+
+    @Test
+    public void testToBTree() {
+        StripedLongIntMap map = new StripedLongIntMap(2);
+        for (long id = 0; id < 10_000; id++) {
+            map.put(id * 3, (int) id);
+        }
+        GHLongIntBTree tree = map.toBTree(200);
+        assertEquals(10_000, tree.getSize());
+        assertEquals(0, map.getSize());
+        for (long id = 0; id < 10_000; id++) {
+            assertEquals(id, tree.get(id * 3));
+        }
+        assertEquals(-1, tree.get(1));
+    }
+}